@@ -0,0 +1,67 @@
+package com.tianscar.jamplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+final class Benchmarks {
+
+    private Benchmarks() {
+        throw new AssertionError("No " + Benchmarks.class.getName() + " instances for you");
+    }
+
+    // stereo sine, slightly different per channel, so nothing can be folded away
+    static float[] sine(int frames) {
+        return sine(frames, 2);
+    }
+
+    static float[] sine(int frames, int channels) {
+        float[] pcm = new float[frames * channels];
+        for (int i = 0; i < frames; i ++) {
+            pcm[i * channels] = (float) Math.sin(i * 0.0627) * 0.8f;
+            if (channels == 2) pcm[i * 2 + 1] = (float) Math.sin(i * 0.0314) * 0.8f;
+        }
+        return pcm;
+    }
+
+    // the same PCM in the named SoundClip.Storage
+    static SoundClip clip(float[] pcm, int channels, String storage, int polyphony) {
+        if (storage.equals(SoundClip.Storage.FLOAT.toString())) return new SoundClip(pcm, channels, polyphony);
+        short[] samples = new short[pcm.length];
+        for (int i = 0; i < pcm.length; i ++) {
+            samples[i] = (short) Math.round(pcm[i] * 32767);
+        }
+        if (storage.equals(SoundClip.Storage.SHORT.toString())) return new SoundClip(samples, channels, polyphony);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(samples.length * 2).order(ByteOrder.nativeOrder());
+        buffer.asShortBuffer().put(samples);
+        return new SoundClip(buffer, channels, polyphony);
+    }
+
+    // clipCount clips opened on muxer, each looping polyphony voices at speed
+    static SoundClip[] play(SoundMuxer muxer, int clipCount, int polyphony, double speed) {
+        float[] pcm = sine(44100 * 2);
+        SoundClip[] clips = new SoundClip[clipCount];
+        for (int i = 0; i < clipCount; i ++) {
+            clips[i] = new SoundClip(pcm, polyphony);
+            clips[i].open(muxer);
+            for (int j = 0; j < polyphony; j ++) {
+                clips[i].play(0.25, 0.25, speed, -1);
+            }
+        }
+        return clips;
+    }
+
+    static void close(SoundMuxer muxer, SoundClip[] clips) {
+        for (SoundClip clip : clips) {
+            clip.close();
+        }
+        muxer.close();
+    }
+
+    // the named SoundClip.Interpolation
+    static SoundClip.Interpolation interpolation(String name) {
+        if (name.equals(SoundClip.Interpolation.CUBIC.toString())) return SoundClip.Interpolation.CUBIC;
+        if (name.equals(SoundClip.Interpolation.SINC.toString())) return SoundClip.Interpolation.SINC;
+        return SoundClip.Interpolation.LINEAR;
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleConverterBenchmark {
+
+    @Param({"256", "2048"})
+    public int bufferFrames;
+
+    private float[] source;
+    private float[] pcm;
+    private byte[] audioBytes;
+    private ShortBuffer heapView;
+    private ShortBuffer directView;
+    private SampleConverter sampleConverter;
+
+    @Setup
+    public void setup() {
+        source = Benchmarks.sine(bufferFrames);
+        pcm = new float[source.length];
+        audioBytes = new byte[bufferFrames * 4];
+        heapView = Utils.audioBytesView(audioBytes);
+        directView = ByteBuffer.allocateDirect(bufferFrames * 4).order(ByteOrder.nativeOrder()).asShortBuffer();
+        sampleConverter = new SampleConverter(0);
+    }
+
+    // the conversion SoundMuxer and SoundClip used before SampleConverter
+    @Benchmark
+    public byte[] legacy() {
+        // it scaled its source in place, so a copy is part of the real cost
+        System.arraycopy(source, 0, pcm, 0, source.length);
+        for (int i = 0, n = pcm.length; i < n; i ++) {
+            pcm[i] *= 32767;
+
+            audioBytes[i * 2] = (byte) pcm[i];
+            audioBytes[i * 2 + 1] = (byte)((int) pcm[i] >> 8);
+        }
+        return audioBytes;
+    }
+
+    @Benchmark
+    public ShortBuffer heap() {
+        heapView.clear();
+        sampleConverter.toPcm16(source, 0, source.length, heapView, false);
+        return heapView;
+    }
+
+    @Benchmark
+    public ShortBuffer heapDithered() {
+        heapView.clear();
+        sampleConverter.toPcm16(source, 0, source.length, heapView, true);
+        return heapView;
+    }
+
+    @Benchmark
+    public ShortBuffer direct() {
+        directView.clear();
+        sampleConverter.toPcm16(source, 0, source.length, directView, false);
+        return directView;
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// the block renderer's spans; storage, layout and interpolation have benchmarks of their own
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundClipBenchmark {
+
+    @Param({"1", "8", "32"})
+    public int polyphony;
+
+    @Param({"256", "2048"})
+    public int bufferFrames;
+
+    @Param({"1.0", "0.75", "1.5"})
+    public double speed;
+
+    private SoundClip clip;
+    private float[] buffer;
+
+    @Setup
+    public void setup() {
+        clip = new SoundClip(Benchmarks.sine(44100 * 2), polyphony);
+        for (int i = 0; i < polyphony; i ++) {
+            int instanceID = clip.play(0.5, 0.5, speed, -1);
+            clip.setPan(instanceID, -0.25);
+        }
+        buffer = new float[bufferFrames * 2];
+    }
+
+    @TearDown
+    public void tearDown() {
+        clip.close();
+    }
+
+    @Benchmark
+    public float[] read() {
+        clip.read(buffer);
+        return buffer;
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// the kernels, below and above speed 1, where the sinc widens to filter out what would alias
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundClipInterpolationBenchmark {
+
+    @Param({"Linear", "Cubic", "Sinc"})
+    public String interpolation;
+
+    @Param({"0.75", "1.5"})
+    public double speed;
+
+    private SoundClip clip;
+    private float[] buffer;
+
+    @Setup
+    public void setup() {
+        clip = new SoundClip(Benchmarks.sine(44100 * 2), 8);
+        clip.setInterpolation(Benchmarks.interpolation(interpolation));
+        for (int i = 0; i < 8; i ++) {
+            int instanceID = clip.play(0.5, 0.5, speed, -1);
+            clip.setPan(instanceID, -0.25);
+        }
+        buffer = new float[2048 * 2];
+    }
+
+    @TearDown
+    public void tearDown() {
+        clip.close();
+    }
+
+    @Benchmark
+    public float[] read() {
+        clip.read(buffer);
+        return buffer;
+    }
+
+}
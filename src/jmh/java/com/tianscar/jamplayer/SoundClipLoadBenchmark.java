@@ -0,0 +1,42 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.tianscar.jamplayer.Utils.DEFAULT_AUDIO_FORMAT;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundClipLoadBenchmark {
+
+    @Param({"44100", "441000"})
+    public int frames;
+
+    // of the muxer the clip is loaded for, anything but 44100 converts the rate
+    @Param({"44100", "48000"})
+    public float sampleRate;
+
+    private byte[] audioBytes;
+
+    @Setup
+    public void setup() {
+        audioBytes = new byte[frames * 4];
+        float[] pcm = Benchmarks.sine(frames);
+        new SampleConverter().toPcm16(pcm, 0, pcm.length, Utils.audioBytesView(audioBytes), false);
+    }
+
+    @Benchmark
+    public SoundClip load() throws IOException {
+        return new SoundClip(new AudioInputStream(new ByteArrayInputStream(audioBytes), DEFAULT_AUDIO_FORMAT, frames), 1,
+                SoundClip.Storage.FLOAT, sampleRate);
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// the same voices read from each storage; mono storage reads half the samples per voice
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundClipStorageBenchmark {
+
+    @Param({"Float", "Short", "Direct"})
+    public String storage;
+
+    @Param({"2", "1"})
+    public int channels;
+
+    @Param({"0.75"})
+    public double speed;
+
+    private SoundClip clip;
+    private float[] buffer;
+
+    @Setup
+    public void setup() {
+        clip = Benchmarks.clip(Benchmarks.sine(44100 * 2, channels), channels, storage, 8);
+        for (int i = 0; i < 8; i ++) {
+            int instanceID = clip.play(0.5, 0.5, speed, -1);
+            clip.setPan(instanceID, -0.25);
+        }
+        buffer = new float[2048 * 2];
+    }
+
+    @TearDown
+    public void tearDown() {
+        clip.close();
+    }
+
+    @Benchmark
+    public float[] read() {
+        clip.read(buffer);
+        return buffer;
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// the mixing loop itself; channel layouts, the voice limit, idle clips and metrics have benchmarks of their own
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundMuxerBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int clipCount;
+
+    @Param({"4"})
+    public int polyphony;
+
+    @Param({"256", "2048"})
+    public int bufferFrames;
+
+    @Param({"1.0", "0.75"})
+    public double speed;
+
+    private SoundMuxer muxer;
+    private SoundClip[] clips;
+    private float[] buffer;
+
+    @Setup
+    public void setup() {
+        // never started, so no SourceDataLine is opened
+        muxer = new SoundMuxer(bufferFrames);
+        clips = Benchmarks.play(muxer, clipCount, polyphony, speed);
+        buffer = new float[muxer.getReadBufferSize()];
+    }
+
+    @TearDown
+    public void tearDown() {
+        Benchmarks.close(muxer, clips);
+    }
+
+    @Benchmark
+    public float[] fillBufferFromClips() {
+        muxer.fillBuffer(buffer, 0, buffer.length);
+        return buffer;
+    }
+
+}
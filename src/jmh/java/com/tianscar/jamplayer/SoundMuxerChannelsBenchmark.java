@@ -0,0 +1,51 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// mono and stereo take the fast paths, 5.1 routes every other voice to the back
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundMuxerChannelsBenchmark {
+
+    @Param({"2", "1", "6"})
+    public int channels;
+
+    private static final float[] BACK = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+
+    private SoundMuxer muxer;
+    private SoundClip[] clips;
+    private float[] buffer;
+
+    @Setup
+    public void setup() {
+        // never started, so no SourceDataLine is opened
+        muxer = new SoundMuxer(new NullAudioSink(), Utils.audioFormat(44100, channels), 1024, Thread.MAX_PRIORITY);
+        clips = Benchmarks.play(muxer, 16, 4, 0.75);
+        if (channels == 6) {
+            for (SoundClip clip : clips) {
+                for (int instanceID = 1; instanceID < clip.getPolyphony(); instanceID += 2) {
+                    clip.setChannelGains(instanceID, BACK);
+                }
+            }
+        }
+        buffer = new float[muxer.getReadBufferSize()];
+    }
+
+    @TearDown
+    public void tearDown() {
+        Benchmarks.close(muxer, clips);
+    }
+
+    @Benchmark
+    public float[] fillBuffer() {
+        muxer.fillBuffer(buffer, 0, buffer.length);
+        return buffer;
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// opened but silent, a game's loaded sound bank, next to the playing clips
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundMuxerIdleClipsBenchmark {
+
+    @Param({"0", "1024"})
+    public int idleClipCount;
+
+    private SoundMuxer muxer;
+    private SoundClip[] clips;
+    private SoundClip[] idleClips;
+    private float[] buffer;
+
+    @Setup
+    public void setup() {
+        // never started, so no SourceDataLine is opened
+        muxer = new SoundMuxer(1024);
+        clips = Benchmarks.play(muxer, 16, 4, 0.75);
+        float[] pcm = Benchmarks.sine(44100 * 2);
+        idleClips = new SoundClip[idleClipCount];
+        for (int i = 0; i < idleClipCount; i ++) {
+            idleClips[i] = new SoundClip(pcm, 4);
+            idleClips[i].open(muxer);
+        }
+        buffer = new float[muxer.getReadBufferSize()];
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (SoundClip clip : idleClips) {
+            clip.close();
+        }
+        Benchmarks.close(muxer, clips);
+    }
+
+    @Benchmark
+    public float[] fillBuffer() {
+        muxer.fillBuffer(buffer, 0, buffer.length);
+        return buffer;
+    }
+
+}
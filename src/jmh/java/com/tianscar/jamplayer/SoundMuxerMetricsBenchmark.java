@@ -0,0 +1,43 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// timing every block, the cost of RenderMetrics
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundMuxerMetricsBenchmark {
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private SoundMuxer muxer;
+    private SoundClip[] clips;
+    private float[] buffer;
+
+    @Setup
+    public void setup() {
+        // never started, so no SourceDataLine is opened
+        muxer = new SoundMuxer(1024);
+        muxer.getMetrics().setEnabled(metrics);
+        clips = Benchmarks.play(muxer, 16, 4, 0.75);
+        buffer = new float[muxer.getReadBufferSize()];
+    }
+
+    @TearDown
+    public void tearDown() {
+        Benchmarks.close(muxer, clips);
+    }
+
+    @Benchmark
+    public float[] fillBuffer() {
+        muxer.fillBuffer(buffer, 0, buffer.length);
+        return buffer;
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// parallel mixing: hundreds of voices, 1 to 8 mixing threads
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundMuxerScalingBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int mixingThreads;
+
+    @Param({"64", "256"})
+    public int clipCount;
+
+    @Param({"4"})
+    public int polyphony;
+
+    @Param({"1024"})
+    public int bufferFrames;
+
+    private SoundMuxer muxer;
+    private SoundClip[] clips;
+    private float[] buffer;
+
+    @Setup
+    public void setup() {
+        // never started, so no SourceDataLine is opened
+        muxer = new SoundMuxer(bufferFrames);
+        muxer.setMixingThreads(mixingThreads);
+        float[] pcm = Benchmarks.sine(44100 * 2);
+        clips = new SoundClip[clipCount];
+        for (int i = 0; i < clipCount; i ++) {
+            clips[i] = new SoundClip(pcm, polyphony);
+            clips[i].open(muxer);
+            for (int j = 0; j < polyphony; j ++) {
+                // the interpolating path, as most pitched voices take
+                clips[i].play(0.01, 0.01, 0.75 + j * 0.125, -1);
+            }
+        }
+        buffer = new float[muxer.getReadBufferSize()];
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (SoundClip clip : clips) {
+            clip.close();
+        }
+        muxer.close();
+    }
+
+    @Benchmark
+    public float[] fillBuffer() {
+        muxer.fillBuffer(buffer, 0, buffer.length);
+        return buffer;
+    }
+
+}
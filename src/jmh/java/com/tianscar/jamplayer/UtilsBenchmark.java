@@ -0,0 +1,33 @@
+package com.tianscar.jamplayer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Param({"256", "2048"})
+    public int bufferFrames;
+
+    private byte[] audioBytes;
+
+    @Setup
+    public void setup() {
+        audioBytes = new byte[bufferFrames * 4];
+        float[] pcm = Benchmarks.sine(bufferFrames);
+        new SampleConverter().toPcm16(pcm, 0, pcm.length, Utils.audioBytesView(audioBytes), false);
+    }
+
+    @Benchmark
+    public byte[] adjustVolume() {
+        Utils.adjustVolume(audioBytes, 0, audioBytes.length, 0.5, 0.75);
+        return audioBytes;
+    }
+
+}
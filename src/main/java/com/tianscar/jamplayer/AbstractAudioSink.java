@@ -0,0 +1,123 @@
+package com.tianscar.jamplayer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import java.util.Objects;
+
+import static com.tianscar.jamplayer.Utils.DEFAULT_BUFFER_FRAMES;
+import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
+
+/*
+ * Base for sinks without a line behind them. Keeps the format, the
+ * open/running state and the frame position, subclasses only move bytes.
+ */
+public abstract class AbstractAudioSink implements AudioSink {
+
+    private volatile AudioFormat format;
+    private volatile int bufferSize;
+    private volatile boolean open;
+    private volatile boolean running;
+    private volatile long bytesWritten;
+
+    protected final Object lock = new byte[0];
+
+    @Override
+    public final void open(AudioFormat format, int bufferSize) throws LineUnavailableException {
+        Objects.requireNonNull(format);
+        synchronized (lock) {
+            if (open) throw new IllegalStateException("Sink is already open");
+            if (bufferSize == NOT_SPECIFIED) bufferSize = DEFAULT_BUFFER_FRAMES * format.getFrameSize();
+            else if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize <= 0");
+            implOpen(format, bufferSize);
+            this.format = format;
+            this.bufferSize = bufferSize;
+            bytesWritten = 0;
+            open = true;
+        }
+    }
+
+    protected void implOpen(AudioFormat format, int bufferSize) throws LineUnavailableException {
+    }
+
+    @Override
+    public final boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public final boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public final int write(byte[] b, int off, int len) {
+        if (!open) return 0;
+        if (len % format.getFrameSize() != 0) {
+            throw new IllegalArgumentException("Illegal request to write non-integral number of frames (" + len + " bytes)");
+        }
+        int written = implWrite(b, off, len);
+        bytesWritten += written;
+        return written;
+    }
+
+    protected abstract int implWrite(byte[] b, int off, int len);
+
+    @Override
+    public void drain() {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public int available() {
+        return bufferSize;
+    }
+
+    @Override
+    public final int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public final AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public final long getLongFramePosition() {
+        AudioFormat format = this.format;
+        return format == null ? 0 : bytesWritten / format.getFrameSize();
+    }
+
+    @Override
+    public final long getMicrosecondPosition() {
+        AudioFormat format = this.format;
+        return format == null ? 0 : (long) (getLongFramePosition() * 1_000_000.0 / format.getFrameRate());
+    }
+
+    @Override
+    public final void close() {
+        synchronized (lock) {
+            if (!open) return;
+            open = false;
+            running = false;
+            implClose();
+        }
+    }
+
+    protected void implClose() {
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.tianscar.jamplayer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineUnavailableException;
+
+/*
+ * Where SoundClip, SoundMuxer and MusicPlayer send their rendered bytes.
+ * Mirrors the parts of SourceDataLine the players use, so a line is
+ * just one kind of sink (see LineAudioSink).
+ * write() gets the player's own buffer, sinks must not keep it after returning.
+ */
+public interface AudioSink extends AutoCloseable {
+
+    // bufferSize in bytes, NOT_SPECIFIED for the sink's default
+    void open(AudioFormat format, int bufferSize) throws LineUnavailableException;
+
+    boolean isOpen();
+
+    void start();
+
+    void stop();
+
+    boolean isRunning();
+
+    int write(byte[] b, int off, int len);
+
+    void drain();
+
+    void flush();
+
+    int available();
+
+    int getBufferSize();
+
+    AudioFormat getFormat();
+
+    long getLongFramePosition();
+
+    long getMicrosecondPosition();
+
+    @Override
+    void close();
+
+    // the underlying line, if there is one
+    default Line getLine() {
+        return null;
+    }
+
+}
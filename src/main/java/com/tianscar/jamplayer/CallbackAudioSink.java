@@ -0,0 +1,25 @@
+package com.tianscar.jamplayer;
+
+import java.util.Objects;
+
+// hands the player's buffer straight to a callback, no copy in between
+public class CallbackAudioSink extends AbstractAudioSink {
+
+    @FunctionalInterface
+    public interface Callback {
+        void write(byte[] b, int off, int len);
+    }
+
+    private final Callback callback;
+
+    public CallbackAudioSink(Callback callback) {
+        this.callback = Objects.requireNonNull(callback);
+    }
+
+    @Override
+    protected int implWrite(byte[] b, int off, int len) {
+        callback.write(b, off, len);
+        return len;
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.tianscar.jamplayer;
+
+/*
+ * The commands API threads send to the render role of a SoundClip,
+ * applied in the order each thread sent them.
+ */
+final class CommandRing extends MpscRing<CommandRing.Command> {
+
+    static final class Command extends MpscRing.Slot {
+        int type;
+        int instanceID;
+        double value0, value1;
+        // the frame time it takes effect at, see SoundClip.NOW
+        long frame;
+    }
+
+    // rounded up to a power of two
+    CommandRing(int capacity) {
+        super(capacity, Command::new);
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.tianscar.jamplayer;
+
+import java.util.Arrays;
+
+/*
+ * The commands SoundClip holds back until their frame time, taken off
+ * the CommandRing by the render role and only ever touched by it.
+ * Sorted by frame time, commands of the same time in the order they
+ * were added. Grows when full, so it only allocates when more commands
+ * are pending than ever before.
+ */
+final class CommandSchedule {
+
+    private int[] types;
+    private int[] instanceIDs;
+    private double[] values0, values1;
+    private long[] frames;
+    // the pending commands are [head, tail)
+    private int head, tail;
+
+    CommandSchedule(int capacity) {
+        types = new int[capacity];
+        instanceIDs = new int[capacity];
+        values0 = new double[capacity];
+        values1 = new double[capacity];
+        frames = new long[capacity];
+    }
+
+    int size() {
+        return tail - head;
+    }
+
+    // the frame time of the first command, Long.MAX_VALUE if there is none
+    long nextFrame() {
+        return head == tail ? Long.MAX_VALUE : frames[head];
+    }
+
+    void add(CommandRing.Command command) {
+        if (tail == frames.length) {
+            if (head > 0) compact();
+            else grow();
+        }
+        // behind those of the same time
+        int low = head, high = tail;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (frames[middle] <= command.frame) low = middle + 1;
+            else high = middle;
+        }
+        int moved = tail - low;
+        System.arraycopy(types, low, types, low + 1, moved);
+        System.arraycopy(instanceIDs, low, instanceIDs, low + 1, moved);
+        System.arraycopy(values0, low, values0, low + 1, moved);
+        System.arraycopy(values1, low, values1, low + 1, moved);
+        System.arraycopy(frames, low, frames, low + 1, moved);
+        types[low] = command.type;
+        instanceIDs[low] = command.instanceID;
+        values0[low] = command.value0;
+        values1[low] = command.value1;
+        frames[low] = command.frame;
+        tail ++;
+    }
+
+    // takes the first command into command
+    void poll(CommandRing.Command command) {
+        command.type = types[head];
+        command.instanceID = instanceIDs[head];
+        command.value0 = values0[head];
+        command.value1 = values1[head];
+        command.frame = frames[head];
+        if (++ head == tail) head = tail = 0;
+    }
+
+    // drops the commands of an instance handed to its next owner
+    void remove(int instanceID) {
+        int count = head;
+        for (int i = head; i < tail; i ++) {
+            if (instanceIDs[i] == instanceID) continue;
+            types[count] = types[i];
+            instanceIDs[count] = instanceIDs[i];
+            values0[count] = values0[i];
+            values1[count] = values1[i];
+            frames[count] = frames[i];
+            count ++;
+        }
+        tail = count;
+        if (head == tail) head = tail = 0;
+    }
+
+    private void compact() {
+        int size = tail - head;
+        System.arraycopy(types, head, types, 0, size);
+        System.arraycopy(instanceIDs, head, instanceIDs, 0, size);
+        System.arraycopy(values0, head, values0, 0, size);
+        System.arraycopy(values1, head, values1, 0, size);
+        System.arraycopy(frames, head, frames, 0, size);
+        head = 0;
+        tail = size;
+    }
+
+    private void grow() {
+        int capacity = frames.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        instanceIDs = Arrays.copyOf(instanceIDs, capacity);
+        values0 = Arrays.copyOf(values0, capacity);
+        values1 = Arrays.copyOf(values1, capacity);
+        frames = Arrays.copyOf(frames, capacity);
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.tianscar.jamplayer;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Delivers the events of SoundClips and MusicPlayers off the threads
+ * raising them, so no listener can hold up the render thread. Events
+ * are published into a preallocated lock-free ring, which a thread of
+ * the dispatcher drains; the listeners are called on that thread, or
+ * on an executor a batch of events at a time. Publishing never blocks
+ * nor allocates: with the ring full, the event is dropped and counted.
+ *
+ * Events are delivered in the order they were published. With
+ * coalescing, of the LOOP_INSTANCE events of an instance waiting
+ * one after another, only the last one is delivered.
+ */
+public final class EventDispatcher implements AutoCloseable {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int BATCH_SIZE = 256;
+
+    private static final AtomicInteger nextSerialNumber = new AtomicInteger();
+
+    // what SoundClip and MusicPlayer have their events delivered through
+    @FunctionalInterface
+    interface Target {
+        void deliver(Object type, int instanceID, double framePosition);
+    }
+
+    private static final class DefaultHolder {
+        private static final EventDispatcher DEFAULT = new EventDispatcher(null, DEFAULT_CAPACITY, true);
+    }
+
+    // shared by every clip and player unless told otherwise, never closed
+    public static EventDispatcher getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    private final EventRing ring;
+    private final Executor executor;
+    private final boolean shared;
+    private final Thread thread;
+    private volatile boolean closed;
+    // set while the thread parks, or is about to
+    private volatile boolean waiting;
+
+    private final AtomicLong droppedEventCount = new AtomicLong();
+    // events lost to a full ring, or rejected by the executor
+    public long getDroppedEventCount() {
+        return droppedEventCount.get();
+    }
+
+    private final AtomicLong listenerFailureCount = new AtomicLong();
+    // listeners which threw, each reported to the UncaughtExceptionHandler of the thread calling it
+    public long getListenerFailureCount() {
+        return listenerFailureCount.get();
+    }
+
+    private volatile boolean coalescing;
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    // the batch being delivered, dispatcher thread only
+    private final Target[] targets = new Target[BATCH_SIZE];
+    private final Object[] types = new Object[BATCH_SIZE];
+    private final int[] instanceIDs = new int[BATCH_SIZE];
+    private final double[] framePositions = new double[BATCH_SIZE];
+
+    public EventDispatcher() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // capacity is rounded up to a power of two
+    public EventDispatcher(int capacity) {
+        this(null, capacity, false);
+    }
+
+    /*
+     * Calls the listeners on executor, one task per batch of events. A
+     * serial executor, say SwingUtilities::invokeLater, keeps them in order.
+     */
+    public EventDispatcher(Executor executor, int capacity) {
+        this(Objects.requireNonNull(executor), capacity, false);
+    }
+
+    private EventDispatcher(Executor executor, int capacity, boolean shared) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity < 1");
+        ring = new EventRing(capacity);
+        this.executor = executor;
+        this.shared = shared;
+        thread = new Thread(this::run, "EventDispatcher-" + nextSerialNumber.getAndIncrement());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getCapacity() {
+        return ring.capacity();
+    }
+
+    // events published and not yet taken off the ring for delivery
+    public int getQueuedEventCount() {
+        return ring.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // delivers what was published before, then stops the thread; later events are dropped
+    @Override
+    public void close() {
+        if (shared) throw new IllegalStateException("The default EventDispatcher can't be closed");
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    // any thread, never blocks: false if the event was dropped
+    boolean publish(Target target, Object type, int instanceID, double framePosition) {
+        EventRing.Record record = closed ? null : ring.claim();
+        if (record == null) {
+            droppedEventCount.incrementAndGet();
+            return false;
+        }
+        record.target = target;
+        record.type = type;
+        record.instanceID = instanceID;
+        record.framePosition = framePosition;
+        ring.publish(record);
+        if (waiting) LockSupport.unpark(thread);
+        return true;
+    }
+
+    private void run() {
+        while (!closed || !ring.isEmpty()) {
+            int count = drain();
+            if (count > 0) {
+                deliver(count);
+                continue;
+            }
+            waiting = true;
+            // a publish after this either is seen here, or unparks the thread
+            if (!ring.isEmpty()) Thread.yield();
+            else if (!closed) LockSupport.park(this);
+            waiting = false;
+        }
+    }
+
+    // takes up to a batch of events off the ring, so producers get the slots back right away
+    private int drain() {
+        int count = 0;
+        for (EventRing.Record record; count < BATCH_SIZE && (record = ring.peek()) != null; ring.remove(record)) {
+            targets[count] = record.target;
+            types[count] = record.type;
+            instanceIDs[count] = record.instanceID;
+            framePositions[count] = record.framePosition;
+            count ++;
+        }
+        return count;
+    }
+
+    private void deliver(int count) {
+        boolean coalescing = this.coalescing;
+        if (executor == null) {
+            for (int i = 0; i < count; i ++) {
+                if (!coalescing || !isSuperseded(i, count)) deliver(targets[i], types[i], instanceIDs[i], framePositions[i]);
+            }
+        }
+        else {
+            // copied, the batch arrays are reused
+            Target[] batchTargets = new Target[count];
+            Object[] batchTypes = new Object[count];
+            int[] batchInstanceIDs = new int[count];
+            double[] batchFramePositions = new double[count];
+            int n = 0;
+            for (int i = 0; i < count; i ++) {
+                if (coalescing && isSuperseded(i, count)) continue;
+                batchTargets[n] = targets[i];
+                batchTypes[n] = types[i];
+                batchInstanceIDs[n] = instanceIDs[i];
+                batchFramePositions[n] = framePositions[i];
+                n ++;
+            }
+            int events = n;
+            try {
+                executor.execute(() -> {
+                    for (int i = 0; i < events; i ++) {
+                        deliver(batchTargets[i], batchTypes[i], batchInstanceIDs[i], batchFramePositions[i]);
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                droppedEventCount.addAndGet(events);
+            }
+        }
+        for (int i = 0; i < count; i ++) {
+            targets[i] = null;
+            types[i] = null;
+        }
+    }
+
+    // a LOOP_INSTANCE followed in the batch by another one of the same instance, with nothing of that instance in between
+    private boolean isSuperseded(int i, int count) {
+        if (types[i] != SoundEvent.Type.LOOP_INSTANCE) return false;
+        for (int j = i + 1; j < count; j ++) {
+            if (targets[j] == targets[i] && instanceIDs[j] == instanceIDs[i]) return types[j] == SoundEvent.Type.LOOP_INSTANCE;
+        }
+        return false;
+    }
+
+    private void deliver(Target target, Object type, int instanceID, double framePosition) {
+        try {
+            target.deliver(type, instanceID, framePosition);
+        }
+        // a failing listener must not take the others down with it, nor go unnoticed
+        catch (RuntimeException e) {
+            listenerFailureCount.incrementAndGet();
+            Thread thread = Thread.currentThread();
+            try {
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+            catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.tianscar.jamplayer;
+
+// the events published to an EventDispatcher, delivered in the order they were published
+final class EventRing extends MpscRing<EventRing.Record> {
+
+    static final class Record extends MpscRing.Slot {
+        EventDispatcher.Target target;
+        Object type;
+        int instanceID;
+        double framePosition;
+
+        @Override
+        void clear() {
+            target = null;
+            type = null;
+        }
+    }
+
+    // rounded up to a power of two
+    EventRing(int capacity) {
+        super(capacity, Record::new);
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.tianscar.jamplayer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Lock-free stack of the indices 0 to capacity - 1 (a Treiber stack).
+ * The head carries a stamp next to the index, bumped by every change,
+ * so a pop racing with a pop and push of the same index (ABA) fails
+ * its CAS instead of corrupting the stack.
+ */
+final class IndexStack {
+
+    static final int EMPTY = -1;
+
+    // written before the CAS that publishes them
+    private final int[] next;
+    private final AtomicLong head = new AtomicLong(pack(0, EMPTY));
+
+    IndexStack(int capacity) {
+        next = new int[capacity];
+    }
+
+    private static long pack(int stamp, int index) {
+        return ((long) stamp << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    void push(int index) {
+        for (;;) {
+            long head = this.head.get();
+            next[index] = (int) head;
+            if (this.head.compareAndSet(head, pack((int) (head >>> 32) + 1, index))) return;
+        }
+    }
+
+    // EMPTY if there is nothing to pop
+    int pop() {
+        for (;;) {
+            long head = this.head.get();
+            int index = (int) head;
+            if (index == EMPTY) return EMPTY;
+            if (this.head.compareAndSet(head, pack((int) (head >>> 32) + 1, next[index]))) return index;
+        }
+    }
+
+}
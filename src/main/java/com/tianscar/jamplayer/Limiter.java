@@ -0,0 +1,83 @@
+package com.tianscar.jamplayer;
+
+import java.util.Arrays;
+
+import static com.tianscar.jamplayer.Utils.*;
+
+/*
+ * Look-ahead limiter, SoundMuxer's LIMITER output stage, linked across
+ * all channels.
+ * The output lags the input by LOOKAHEAD_FRAMES. Within that time the
+ * gain ramps down linearly to what the loudest frame ahead needs, so
+ * it arrives there just in time instead of clipping it, and recovers
+ * exponentially afterwards. What a ramp cut short by a louder frame
+ * still lets through is clipped at the ceiling.
+ */
+final class Limiter {
+
+    // about 1.5 ms
+    static final int LOOKAHEAD_FRAMES = 64;
+    private static final double CEILING = 1;
+    // 50 ms time constant
+    private final double release;
+    private final int channels;
+
+    private final double[] delay;
+    // sliding minimum of the gains the frames in the window need: a monotonic deque, oldest first
+    private static final int WINDOW_FRAMES = LOOKAHEAD_FRAMES + 1;
+    private final long[] minimumFrames = new long[WINDOW_FRAMES];
+    private final double[] minimumGains = new double[WINDOW_FRAMES];
+    private int minimumHead, minimumCount;
+    private long frame;
+    private double gain = 1;
+
+    Limiter(float sampleRate, int channels) {
+        release = 1 - Math.exp(-1 / (0.05 * sampleRate));
+        this.channels = channels;
+        delay = new double[LOOKAHEAD_FRAMES * channels];
+    }
+
+    void reset() {
+        Arrays.fill(delay, 0);
+        minimumHead = minimumCount = 0;
+        frame = 0;
+        gain = 1;
+    }
+
+    // length samples of mix in, as many delayed ones to out
+    void process(double[] mix, int length, float[] out, int offset) {
+        int channels = this.channels;
+        for (int i = 0; i + channels <= length; i += channels) {
+            double peak = 0;
+            for (int c = 0; c < channels; c ++) {
+                peak = Math.max(peak, Math.abs(mix[i + c]));
+            }
+            double required = peak > CEILING ? CEILING / peak : 1;
+
+            // gains the new one undercuts can never be the minimum again
+            while (minimumCount > 0 && minimumGains[(minimumHead + minimumCount - 1) % WINDOW_FRAMES] >= required) {
+                minimumCount --;
+            }
+            int tail = (minimumHead + minimumCount ++) % WINDOW_FRAMES;
+            minimumFrames[tail] = frame;
+            minimumGains[tail] = required;
+            if (minimumFrames[minimumHead] < frame - LOOKAHEAD_FRAMES) {
+                minimumHead = (minimumHead + 1) % WINDOW_FRAMES;
+                minimumCount --;
+            }
+
+            double target = minimumGains[minimumHead];
+            // reached when the frame needing it comes out
+            if (target < gain) gain -= (gain - target) / (minimumFrames[minimumHead] + LOOKAHEAD_FRAMES - frame + 1);
+            else gain += (target - gain) * release;
+
+            int index = (int) (frame % LOOKAHEAD_FRAMES) * channels;
+            for (int c = 0; c < channels; c ++) {
+                out[offset + i + c] = (float) clamp(delay[index + c] * gain, -CEILING, CEILING);
+                delay[index + c] = mix[i + c];
+            }
+            frame ++;
+        }
+    }
+
+}
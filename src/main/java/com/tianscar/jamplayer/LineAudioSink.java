@@ -0,0 +1,124 @@
+package com.tianscar.jamplayer;
+
+import javax.sound.sampled.*;
+
+import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
+
+/*
+ * The default sink, a SourceDataLine of the given Mixer (or of AudioSystem
+ * if null). Like AbstractAudioSink, once closed it takes nothing and does
+ * nothing, so a playback thread still running when the sink is closed
+ * under it sees writes of 0 bytes instead of failing.
+ */
+public class LineAudioSink implements AudioSink {
+
+    private final Mixer mixer;
+    public Mixer getMixer() {
+        return mixer;
+    }
+
+    private volatile SourceDataLine sourceDataLine;
+
+    public LineAudioSink(Mixer mixer) {
+        this.mixer = mixer;
+    }
+
+    public LineAudioSink() {
+        this(null);
+    }
+
+    @Override
+    public void open(AudioFormat format, int bufferSize) throws LineUnavailableException {
+        if (sourceDataLine != null) throw new IllegalStateException("Sink is already open");
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        SourceDataLine tmp = (SourceDataLine) (mixer == null ? AudioSystem.getLine(info) : mixer.getLine(info));
+        if (bufferSize == NOT_SPECIFIED) tmp.open(format);
+        else tmp.open(format, bufferSize);
+        sourceDataLine = tmp;
+    }
+
+    @Override
+    public boolean isOpen() {
+        SourceDataLine line = sourceDataLine;
+        return line != null && line.isOpen();
+    }
+
+    @Override
+    public void start() {
+        SourceDataLine line = sourceDataLine;
+        if (line != null) line.start();
+    }
+
+    @Override
+    public void stop() {
+        SourceDataLine line = sourceDataLine;
+        if (line != null) line.stop();
+    }
+
+    @Override
+    public boolean isRunning() {
+        SourceDataLine line = sourceDataLine;
+        return line != null && line.isRunning();
+    }
+
+    @Override
+    public int write(byte[] b, int off, int len) {
+        SourceDataLine line = sourceDataLine;
+        return line == null ? 0 : line.write(b, off, len);
+    }
+
+    @Override
+    public void drain() {
+        SourceDataLine line = sourceDataLine;
+        if (line != null) line.drain();
+    }
+
+    @Override
+    public void flush() {
+        SourceDataLine line = sourceDataLine;
+        if (line != null) line.flush();
+    }
+
+    @Override
+    public int available() {
+        SourceDataLine line = sourceDataLine;
+        return line == null ? 0 : line.available();
+    }
+
+    @Override
+    public int getBufferSize() {
+        SourceDataLine line = sourceDataLine;
+        return line == null ? 0 : line.getBufferSize();
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        SourceDataLine line = sourceDataLine;
+        return line == null ? null : line.getFormat();
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        SourceDataLine line = sourceDataLine;
+        return line == null ? 0 : line.getLongFramePosition();
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        SourceDataLine line = sourceDataLine;
+        return line == null ? 0 : line.getMicrosecondPosition();
+    }
+
+    @Override
+    public void close() {
+        SourceDataLine line = sourceDataLine;
+        sourceDataLine = null;
+        if (line != null) line.close();
+    }
+
+    @Override
+    public SourceDataLine getLine() {
+        return sourceDataLine;
+    }
+
+}
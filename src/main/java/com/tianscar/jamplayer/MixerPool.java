@@ -0,0 +1,111 @@
+package com.tianscar.jamplayer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/*
+ * Fixed pool of mixing threads for SoundMuxer. invoke runs a task for
+ * every index from 0 to count - 1, spread over the workers and the
+ * calling thread, and returns once all are done. Indices are claimed
+ * one at a time, so uneven tasks balance out; which thread runs which
+ * index is left to chance, so tasks must not depend on it.
+ *
+ * Workers spin shortly for the next invoke before they park, buffers
+ * come one after another while playing. Nothing is allocated per invoke.
+ * After close, the calling thread runs every task itself.
+ */
+final class MixerPool {
+
+    private static final int SPINS = 1 << 12;
+
+    private static final AtomicInteger nextSerialNumber = new AtomicInteger();
+
+    private final Thread[] workers;
+    private volatile boolean closed;
+
+    // generation << 32 | next index to claim, so a worker late for an invoke can't claim from the next one
+    private final AtomicLong work = new AtomicLong();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private IntConsumer task;
+    private volatile int count;
+    private volatile Thread caller;
+
+    MixerPool(int workers) {
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i ++) {
+            Thread worker = new Thread(this::work, "SoundMuxerMixing-" + nextSerialNumber.getAndIncrement());
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MAX_PRIORITY);
+            this.workers[i] = worker;
+            worker.start();
+        }
+    }
+
+    // the workers and the calling thread
+    int getParallelism() {
+        return workers.length + 1;
+    }
+
+    void invoke(int count, IntConsumer task) {
+        if (count <= 0) return;
+        this.task = task;
+        this.count = count;
+        caller = Thread.currentThread();
+        remaining.set(count);
+        int generation = (int) (work.get() >>> 32) + 1;
+        // publishes task and count to the workers
+        work.set((long) generation << 32);
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+
+        runTasks(generation);
+        for (int spins = 0; remaining.get() > 0; spins ++) {
+            if (spins < SPINS) Thread.yield();
+            else LockSupport.park(this);
+        }
+        // sealed before the next invoke writes its count, so a worker late for this one can't claim an index under it
+        work.set((long) generation << 32 | Integer.MAX_VALUE);
+        this.task = null;
+    }
+
+    void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void work() {
+        int generation = 0;
+        while (!closed) {
+            int spins = 0;
+            while (!closed && (int) (work.get() >>> 32) == generation) {
+                if (spins ++ < SPINS) Thread.yield();
+                else LockSupport.park(this);
+            }
+            if (closed) return;
+            generation = (int) (work.get() >>> 32);
+            runTasks(generation);
+        }
+    }
+
+    private void runTasks(int generation) {
+        for (;;) {
+            long work = this.work.get();
+            if ((int) (work >>> 32) != generation) return;
+            int index = (int) work;
+            if (index >= count) return;
+            if (!this.work.compareAndSet(work, work + 1)) continue;
+            try {
+                task.accept(index);
+            }
+            finally {
+                if (remaining.decrementAndGet() == 0) LockSupport.unpark(caller);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.tianscar.jamplayer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/*
+ * Bounded multi-producer, single-consumer ring of preallocated slots,
+ * after Dmitry Vyukov's bounded MPMC queue. A producer claims a slot
+ * with one CAS, fills it and publishes it by its sequence number; the
+ * consumer takes published slots in claim order, so what one thread
+ * publishes is taken in the order it was published. Nothing is
+ * allocated once the ring exists.
+ *
+ * The consumer side must only be used by one thread at a time.
+ */
+class MpscRing<T extends MpscRing.Slot> {
+
+    // what a ring holds, the payload in the fields of a subclass
+    static class Slot {
+        private volatile long sequence;
+        private long position;
+
+        // on remove, drops what the slot refers to
+        void clear() {
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // volatile for isEmpty, which other threads than the consumer may call
+    private volatile long head;
+
+    // rounded up to a power of two
+    MpscRing(int capacity, Supplier<T> factory) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Slot[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i ++) {
+            slots[i] = factory.get();
+            slots[i].sequence = i;
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    // claimed and not yet removed, any thread, a snapshot
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    // null if the ring is full, otherwise a slot to fill and then publish
+    @SuppressWarnings("unchecked")
+    T claim() {
+        long position = tail.get();
+        for (;;) {
+            Slot slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot.position = position;
+                    return (T) slot;
+                }
+                position = tail.get();
+            }
+            else if (difference < 0) return null;
+            else position = tail.get();
+        }
+    }
+
+    void publish(T claimed) {
+        Slot slot = claimed;
+        slot.sequence = slot.position + 1;
+    }
+
+    // the next published slot, or null
+    @SuppressWarnings("unchecked")
+    T peek() {
+        Slot slot = slots[(int) head & mask];
+        return slot.sequence == head + 1 ? (T) slot : null;
+    }
+
+    // true once every slot claimed was removed, false while one is claimed but not yet published
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    // hands the slot peek returned back to the producers
+    void remove(T taken) {
+        Slot slot = taken;
+        slot.clear();
+        slot.sequence = head + slots.length;
+        head ++;
+    }
+
+}
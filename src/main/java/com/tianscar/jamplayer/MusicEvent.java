@@ -59,6 +59,8 @@ public class MusicEvent extends EventObject {
         public static final Type PREPARE = new Type("Prepare");
         public static final Type START = new Type("Start");
         public static final Type STOP = new Type("Stop");
+        // a queued track starts, at its first frame
+        public static final Type NEXT_TRACK = new Type("NextTrack");
 
     }
 
@@ -3,10 +3,17 @@ package com.tianscar.jamplayer;
 import com.tianscar.javasound.sampled.AudioResourceLoader;
 
 import javax.sound.sampled.*;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -21,26 +28,55 @@ public class MusicPlayer implements AutoCloseable {
     }
 
     private final Mixer mixer;
+    private final AudioSink audioSink;
     private final AudioFormat playbackFormat;
     private final DataLine.Info playbackInfo;
     private final int streamBufferSize;
 
-    private volatile SourceDataLine sourceDataLine = null;
+    private volatile boolean prepared = false;
     private volatile AudioInputStream audioInputStream = null;
 
     private final List<MusicListener> listeners = new CopyOnWriteArrayList<>();
 
     private final LineListener broadcastEvent = event -> {
-        if (event.getType().equals(LineEvent.Type.START)) broadcastEvent(new MusicEvent(
-                MusicPlayer.this, MusicEvent.Type.START, event.getFramePosition()));
-        else if (event.getType().equals(LineEvent.Type.STOP)) broadcastEvent(new MusicEvent(
-                MusicPlayer.this, MusicEvent.Type.STOP, event.getFramePosition()));
+        if (event.getType().equals(LineEvent.Type.START)) broadcastEvent(MusicEvent.Type.START, event.getFramePosition());
+        else if (event.getType().equals(LineEvent.Type.STOP)) broadcastEvent(MusicEvent.Type.STOP, event.getFramePosition());
     };
-    private void broadcastEvent(MusicEvent event) {
+    private void broadcastEvent(MusicEvent.Type type, long position) {
+        if (listeners.isEmpty()) return;
+        EventDispatcher eventDispatcher = this.eventDispatcher;
+        if (eventDispatcher != null) {
+            boolean published = eventDispatcher.publish(eventTarget, type, NOT_SPECIFIED, position);
+            if (metrics.isEnabled()) metrics.recordEvent(published, eventDispatcher.getQueuedEventCount());
+        }
+        else deliverEvent(type, NOT_SPECIFIED, position);
+    }
+    private void deliverEvent(Object type, int instanceID, double position) {
+        MusicEvent event = new MusicEvent(this, (MusicEvent.Type) type, (long) position);
         for (MusicListener listener : listeners) {
             listener.update(event);
         }
     }
+    private final EventDispatcher.Target eventTarget = this::deliverEvent;
+
+    /*
+     * Disabled until told otherwise, see RenderMetrics. A block is a buffer
+     * decoded and its volume adjusted; the time the sink takes to accept it
+     * is left out, as it is by SoundClip and SoundMuxer.
+     */
+    private final RenderMetrics metrics = new RenderMetrics();
+    public RenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    private volatile EventDispatcher eventDispatcher = EventDispatcher.getDefault();
+    public EventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+    // null calls the listeners right on the thread raising an event
+    public void setEventDispatcher(EventDispatcher eventDispatcher) {
+        this.eventDispatcher = eventDispatcher;
+    }
 
     private volatile boolean paused = false;
 
@@ -75,8 +111,25 @@ public class MusicPlayer implements AutoCloseable {
     }
 
     public MusicPlayer(Mixer mixer, AudioFormat playbackFormat, int bufferFrames, int threadPriority) {
+        this(mixer, new LineAudioSink(mixer), playbackFormat, bufferFrames, threadPriority);
+    }
+
+    public MusicPlayer(AudioSink audioSink, AudioFormat playbackFormat, int bufferFrames, int threadPriority) {
+        this(null, audioSink, playbackFormat, bufferFrames, threadPriority);
+    }
+
+    public MusicPlayer(AudioSink audioSink, AudioFormat playbackFormat) {
+        this(audioSink, playbackFormat, DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY);
+    }
+
+    public MusicPlayer(AudioSink audioSink) {
+        this(audioSink, null);
+    }
+
+    private MusicPlayer(Mixer mixer, AudioSink audioSink, AudioFormat playbackFormat, int bufferFrames, int threadPriority) {
         if (bufferFrames < 0) throw new ArrayIndexOutOfBoundsException(bufferFrames);
         this.mixer = mixer;
+        this.audioSink = Objects.requireNonNull(audioSink);
         if (playbackFormat == null) {
             this.playbackFormat = DEFAULT_AUDIO_FORMAT;
             this.playbackInfo = DEFAULT_AUDIO_LINE_INFO;
@@ -98,15 +151,15 @@ public class MusicPlayer implements AutoCloseable {
     }
 
     public MusicPlayer(AudioFormat playbackFormat) {
-        this(null, playbackFormat);
+        this((Mixer) null, playbackFormat);
     }
 
     public MusicPlayer(Mixer mixer) {
-        this(mixer, null);
+        this(mixer, (AudioFormat) null);
     }
 
     public MusicPlayer() {
-        this(null, null);
+        this((Mixer) null, (AudioFormat) null);
     }
 
     public MusicPlayer(int streamBufferSize) {
@@ -155,10 +208,75 @@ public class MusicPlayer implements AutoCloseable {
         }
     }
 
+    // the tracks following the data source; the first is preloaded
+    private final Deque<Track> queue = new ArrayDeque<>();
+    private static final int PRELOAD_SECONDS = 2;
+
+    /*
+     * Queues a track to follow the data source, or the track queued last,
+     * without a gap: on the same line, its first frame right after the last
+     * frame of the one before. The next track is opened, and its first
+     * PRELOAD_SECONDS decoded, on a thread of its own while the one before
+     * plays. A track which fails to open is skipped.
+     */
+    public void enqueue(SoundClip.StreamSource source) {
+        Objects.requireNonNull(source);
+        synchronized (queue) {
+            Track track = new Track(source);
+            queue.add(track);
+            if (queue.size() == 1) track.preload();
+        }
+    }
+
+    public void enqueue(File file) {
+        Objects.requireNonNull(file);
+        enqueue(() -> AudioSystem.getAudioInputStream(file));
+    }
+
+    public void enqueue(ClassLoader classLoader, String resource) {
+        Objects.requireNonNull(resource);
+        enqueue(() -> AudioResourceLoader.getAudioInputStream(classLoader, resource));
+    }
+
+    public int getQueuedTrackCount() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public void clearQueue() {
+        synchronized (queue) {
+            for (Track track : queue) {
+                track.cancel();
+            }
+            queue.clear();
+        }
+    }
+
+    private volatile int crossfadeFrames = 0;
+    public int getCrossfadeFrames() {
+        return crossfadeFrames;
+    }
+    /*
+     * Fades each queued track in over the last crossfadeFrames of the one
+     * before, at equal power, instead of starting it right after. The
+     * output is held back by as many frames meanwhile. 0, the default,
+     * plays them gapless.
+     */
+    public void setCrossfadeFrames(int crossfadeFrames) {
+        if (crossfadeFrames < 0) throw new IllegalArgumentException("crossfadeFrames < 0");
+        if (isPlaying()) throw new IllegalStateException("You need to call the function before playing");
+        this.crossfadeFrames = crossfadeFrames;
+    }
+
     public Mixer getMixer() {
         return mixer;
     }
 
+    public AudioSink getAudioSink() {
+        return audioSink;
+    }
+
     private static final AtomicInteger nextSerialNumber = new AtomicInteger();
     private static int serialNumber() {
         return nextSerialNumber.getAndIncrement();
@@ -179,31 +297,55 @@ public class MusicPlayer implements AutoCloseable {
     }
 
     private volatile boolean playing = false;
+    private volatile Thread playbackThread;
+    // plays the data source, then the tracks queued; without a data source, the queued tracks right away
     public void start() {
         checkPrepared();
         paused = false;
         if (playing) return;
         playing = true;
         Thread t = new Thread(() -> {
-            sourceDataLine.start();
+            audioSink.start();
+            if (audioSink.getLine() == null) broadcastEvent(MusicEvent.Type.START, audioSink.getLongFramePosition());
             byte[] buffer = new byte[streamBufferSize];
-            int read = 0;
-            while (playing && read != -1) {
+            int frameSize = playbackFormat.getFrameSize();
+            float frameRate = playbackFormat.getFrameRate();
+            Output output = new Output(crossfadeFrames * frameSize);
+            // whether the sink held frames yet, an underrun once it is found empty after
+            boolean queues = false;
+            while (playing) {
                 if (!paused) {
+                    boolean measured = metrics.isEnabled();
+                    long start = measured ? System.nanoTime() : 0;
+                    AudioInputStream stream = audioInputStream;
+                    int read;
                     try {
-                        read = audioInputStream.read(buffer, 0, buffer.length);
+                        read = stream == null ? -1 : stream.read(buffer, 0, buffer.length);
                     } catch (IOException e) {
-                        stop();
+                        stopPlayback();
                         return;
                     }
-                    adjustVolume(buffer, 0, read, leftVolume, rightVolume);
-                    if (read != -1) sourceDataLine.write(buffer, 0, read);
+                    if (read == -1) {
+                        if (nextTrack(output)) continue;
+                        break;
+                    }
+                    long decodeNanos = measured ? System.nanoTime() - start : 0;
+                    if (measured) {
+                        metrics.recordDecode(read / frameSize, decodeNanos, frameRate);
+                        if (audioSink.available() < audioSink.getBufferSize()) queues = true;
+                        else if (queues) metrics.recordUnderrun();
+                    }
+                    output.write(buffer, 0, read);
+                    if (measured) metrics.recordBlock(decodeNanos + output.takeAdjustNanos(), read / frameSize, frameRate);
                 }
             }
-            stop();
+            // not if stopped meanwhile
+            if (playing) output.flush();
+            stopPlayback();
         }, "MusicPlayback-" + serialNumber());
         t.setPriority(threadPriority);
         t.setDaemon(true);
+        playbackThread = t;
         t.start();
     }
 
@@ -212,11 +354,23 @@ public class MusicPlayer implements AutoCloseable {
         paused = true;
     }
 
+    // ends the queue too, dropping the tracks still in it; returns once the playback thread is gone, so start can't meet it
     public void stop() {
         checkPrepared();
+        stopPlayback();
+    }
+
+    /*
+     * Whoever ends playback first tears it down: the playback thread at
+     * the end of the queue, or stop, which waits for the thread to stop
+     * writing before it drains and closes the sink under it.
+     */
+    private void stopPlayback() {
         if (!isPrepared()) return;
         synchronized (lock) {
             if (!isPlaying()) return;
+            playing = false;
+            clearQueue();
             if (audioInputStream != null) {
                 try {
                     audioInputStream.close();
@@ -225,17 +379,23 @@ public class MusicPlayer implements AutoCloseable {
                     e.printStackTrace();
                 }
             }
-            SourceDataLine tmp = sourceDataLine;
-            sourceDataLine = null;
-            tmp.drain();
-            tmp.stop();
-            tmp.removeLineListener(broadcastEvent);
-            tmp.close();
+        }
+        // at once on the playback thread itself
+        awaitPlayback(playbackThread, audioSink);
+        synchronized (lock) {
+            prepared = false;
+            audioSink.drain();
+            audioSink.stop();
+            Line line = audioSink.getLine();
+            if (line != null) line.removeLineListener(broadcastEvent);
+            else broadcastEvent(MusicEvent.Type.STOP, audioSink.getLongFramePosition());
+            audioSink.close();
         }
     }
 
     public SourceDataLine getSourceDataLine() {
-        return sourceDataLine;
+        Line line = isPrepared() ? audioSink.getLine() : null;
+        return line instanceof SourceDataLine ? (SourceDataLine) line : null;
     }
 
     public AudioFormat getPlaybackFormat() {
@@ -247,7 +407,7 @@ public class MusicPlayer implements AutoCloseable {
     }
 
     public int getDataLineBufferSize() {
-        return isPrepared() ? sourceDataLine.getBufferSize() : 0;
+        return isPrepared() ? audioSink.getBufferSize() : 0;
     }
 
     public long getMicrosecondLength() {
@@ -255,15 +415,15 @@ public class MusicPlayer implements AutoCloseable {
     }
 
     public int getFramePosition() {
-        return isPrepared() ? sourceDataLine.getFramePosition() : 0;
+        return isPrepared() ? (int) audioSink.getLongFramePosition() : 0;
     }
 
     public long getLongFramePosition() {
-        return isPrepared() ? sourceDataLine.getLongFramePosition() : 0;
+        return isPrepared() ? audioSink.getLongFramePosition() : 0;
     }
 
     public long getMicrosecondPosition() {
-        return isPrepared() ? sourceDataLine.getMicrosecondPosition() : 0;
+        return isPrepared() ? audioSink.getMicrosecondPosition() : 0;
     }
 
     public DataLine.Info getPlaybackLineInfo() {
@@ -274,16 +434,16 @@ public class MusicPlayer implements AutoCloseable {
     public void prepare() throws LineUnavailableException, UnsupportedAudioFileException {
         if (isPrepared()) return;
         synchronized (lock) {
-            SourceDataLine tmp = (SourceDataLine) (mixer == null ? AudioSystem.getLine(playbackInfo) : mixer.getLine(playbackInfo));
-            tmp.addLineListener(broadcastEvent);
-            tmp.open();
-            sourceDataLine = tmp;
-            broadcastEvent(new MusicEvent(this, MusicEvent.Type.PREPARE, NOT_SPECIFIED));
+            audioSink.open(playbackFormat, NOT_SPECIFIED);
+            Line line = audioSink.getLine();
+            if (line != null) line.addLineListener(broadcastEvent);
+            prepared = true;
+            broadcastEvent(MusicEvent.Type.PREPARE, NOT_SPECIFIED);
         }
     }
 
     public boolean isPrepared() {
-        return sourceDataLine != null && sourceDataLine.isOpen();
+        return prepared && audioSink.isOpen();
     }
 
     private void checkPrepared() {
@@ -300,7 +460,212 @@ public class MusicPlayer implements AutoCloseable {
 
     @Override
     public void close() {
+        metrics.unregisterMBean();
         stop();
     }
 
+    // playback thread: switches to the next queued track which opens, false at the end of the queue
+    private boolean nextTrack(Output output) {
+        for (;;) {
+            Track track;
+            synchronized (queue) {
+                track = queue.poll();
+                if (track == null) return false;
+                Track following = queue.peek();
+                if (following != null) following.preload();
+            }
+            AudioInputStream stream = track.await();
+            if (stream == null) continue;
+            synchronized (lock) {
+                if (!isPlaying()) {
+                    closeQuietly(stream);
+                    return false;
+                }
+                if (audioInputStream != null) closeQuietly(audioInputStream);
+                audioInputStream = stream;
+                microsecondsLength.set(track.microsecondLength);
+            }
+            long framePosition = output.getFramePosition();
+            output.crossfade(stream);
+            broadcastEvent(MusicEvent.Type.NEXT_TRACK, framePosition);
+            return true;
+        }
+    }
+
+    /*
+     * What the playback thread writes to the sink through. With a
+     * crossfade, a delay line holds back as many bytes, the end of a
+     * track to fade the next one in over once it ends. The volume is
+     * applied on the way out.
+     */
+    private final class Output {
+        // a ring, its bytes [start, start + size), empty without a crossfade
+        private final byte[] delay;
+        private int start, size;
+        private final byte[] fade;
+        private final int frameSize = playbackFormat.getFrameSize();
+        private long framesWritten;
+        // spent adjusting the volume since takeAdjustNanos, with the metrics enabled
+        private long adjustNanos;
+
+        private Output(int delayBytes) {
+            delay = new byte[delayBytes];
+            fade = new byte[delayBytes];
+        }
+
+        // the frame the bytes held back start at
+        long getFramePosition() {
+            return framesWritten;
+        }
+
+        long takeAdjustNanos() {
+            long nanos = adjustNanos;
+            adjustNanos = 0;
+            return nanos;
+        }
+
+        void write(byte[] b, int off, int len) {
+            if (len >= delay.length) {
+                drain(size);
+                emit(b, off, len - delay.length);
+                System.arraycopy(b, off + len - delay.length, delay, 0, delay.length);
+                start = 0;
+                size = delay.length;
+                return;
+            }
+            drain(size + len - delay.length);
+            int end = (start + size) % delay.length;
+            int n = Math.min(len, delay.length - end);
+            System.arraycopy(b, off, delay, end, n);
+            System.arraycopy(b, off + n, delay, 0, len - n);
+            size += len;
+        }
+
+        // writes out what is held back
+        void flush() {
+            drain(size);
+        }
+
+        // mixes the beginning of next into what is held back, fading that out
+        void crossfade(AudioInputStream next) {
+            if (size == 0) return;
+            int length = 0;
+            try {
+                for (int n; length < size && (n = next.read(fade, length, size - length)) > 0; ) {
+                    length += n;
+                }
+            }
+            catch (IOException ignored) {
+                // the rest of the fade in is silence, the next read ends the track
+            }
+            Arrays.fill(fade, length, size, (byte) 0);
+            int frames = size / frameSize;
+            for (int i = 0; i < size; i += 2) {
+                double t = (i / frameSize + 0.5) / frames;
+                int j = (start + i) % delay.length;
+                short out = (short) ((delay[j + 1] << 8) | (delay[j] & 0xFF));
+                short in = (short) ((fade[i + 1] << 8) | (fade[i] & 0xFF));
+                int sample = (int) Math.round(out * Math.cos(t * Math.PI / 2) + in * Math.sin(t * Math.PI / 2));
+                sample = clamp(sample, Short.MIN_VALUE, Short.MAX_VALUE);
+                delay[j] = (byte) sample;
+                delay[j + 1] = (byte) (sample >> 8);
+            }
+        }
+
+        // writes out the first length bytes held back
+        private void drain(int length) {
+            if (length <= 0) return;
+            int n = Math.min(length, delay.length - start);
+            emit(delay, start, n);
+            emit(delay, 0, length - n);
+            start = (start + length) % delay.length;
+            size -= length;
+        }
+
+        private void emit(byte[] b, int off, int len) {
+            if (len <= 0) return;
+            boolean measured = metrics.isEnabled();
+            long start = measured ? System.nanoTime() : 0;
+            adjustVolume(b, off, len, leftVolume, rightVolume);
+            if (measured) adjustNanos += System.nanoTime() - start;
+            audioSink.write(b, off, len);
+            framesWritten += len / frameSize;
+        }
+    }
+
+    // a queued track, opened and its first PRELOAD_SECONDS decoded on a thread of its own
+    private final class Track implements Runnable {
+        private final SoundClip.StreamSource source;
+        private final CountDownLatch loaded = new CountDownLatch(1);
+        private volatile boolean cancelled;
+        // guarded by queue
+        private Thread thread;
+        // the decoded head followed by the rest, null if the track failed to open or was cancelled
+        private AudioInputStream stream;
+        private long microsecondLength = NOT_SPECIFIED;
+
+        private Track(SoundClip.StreamSource source) {
+            this.source = source;
+        }
+
+        // under the queue's lock
+        void preload() {
+            if (thread != null) return;
+            thread = new Thread(this, "MusicPreload-" + serialNumber());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                AudioInputStream sourceStream = getSupportedAudioInputStream(playbackFormat, source.open());
+                long frames = Math.max((long) (PRELOAD_SECONDS * playbackFormat.getFrameRate()), crossfadeFrames);
+                byte[] head = readNBytes(sourceStream, (int) Math.min(frames * playbackFormat.getFrameSize(), MAX_BUFFER_SIZE));
+                long frameLength = sourceStream.getFrameLength();
+                if (frameLength != NOT_SPECIFIED) microsecondLength = (long) (frameLength * 1_000_000.0 / playbackFormat.getFrameRate());
+                synchronized (this) {
+                    stream = new AudioInputStream(new SequenceInputStream(new ByteArrayInputStream(head), sourceStream),
+                            sourceStream.getFormat(), frameLength);
+                }
+            }
+            catch (IOException | UnsupportedAudioFileException | RuntimeException ignored) {
+                // skipped when its turn comes
+            }
+            finally {
+                loaded.countDown();
+                if (cancelled) closeStream();
+            }
+        }
+
+        // playback thread: the stream, once preloaded
+        AudioInputStream await() {
+            synchronized (queue) {
+                preload();
+            }
+            try {
+                loaded.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            synchronized (this) {
+                return stream;
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (loaded.getCount() == 0) closeStream();
+        }
+
+        private synchronized void closeStream() {
+            if (stream != null) {
+                closeQuietly(stream);
+                stream = null;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,11 @@
+package com.tianscar.jamplayer;
+
+// discards everything as fast as it comes, only the frame position advances
+public class NullAudioSink extends AbstractAudioSink {
+
+    @Override
+    protected int implWrite(byte[] b, int off, int len) {
+        return len;
+    }
+
+}
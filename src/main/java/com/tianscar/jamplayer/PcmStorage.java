@@ -0,0 +1,210 @@
+package com.tianscar.jamplayer;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static com.tianscar.jamplayer.Utils.*;
+import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
+
+/*
+ * The decoded PCM of a SoundClip, interleaved stereo or mono. Immutable,
+ * so one storage can be shared by any number of clips and render
+ * threads. Loaded PCM is at the sample rate it was loaded for, raw PCM
+ * handed in by the user at none in particular. Mono sources are loaded
+ * as mono, at half the memory, and spread to both channels while mixing.
+ *
+ * Float storage is rendered in place; 16-bit storage (on the heap, or
+ * in a direct or memory-mapped buffer outside of it) is converted to
+ * floats a window at a time while mixing.
+ */
+abstract class PcmStorage {
+
+    // NOT_SPECIFIED for raw PCM
+    final float sampleRate;
+    // 1 or 2
+    final int channels;
+
+    private PcmStorage(float sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    // entries, channels per frame
+    abstract int length();
+
+    // bytes held by the storage
+    abstract long byteSize();
+
+    abstract SoundClip.Storage type();
+
+    // converts the entries [index, index + length) to normalized floats
+    abstract void get(int index, float[] destination, int offset, int length);
+
+    // the backing array of float storage, null otherwise
+    float[] array() {
+        return null;
+    }
+
+    static PcmStorage of(float[] pcm, int channels) {
+        return new FloatStorage(pcm, NOT_SPECIFIED, checkChannels(channels));
+    }
+
+    static PcmStorage of(short[] pcm, int channels) {
+        return new ShortStorage(pcm, NOT_SPECIFIED, checkChannels(channels));
+    }
+
+    // 16-bit samples in the buffer's byte order, from its position to its limit
+    static PcmStorage of(ByteBuffer pcm, int channels) {
+        return of(pcm, NOT_SPECIFIED, channels);
+    }
+
+    private static PcmStorage of(ByteBuffer pcm, float sampleRate, int channels) {
+        checkChannels(channels);
+        if (pcm.remaining() % (channels * 2) != 0) throw new IllegalArgumentException("pcm must hold whole 16-bit frames");
+        return new BufferStorage(pcm.slice().order(pcm.order()).asShortBuffer(), pcm.isDirect(), sampleRate, channels);
+    }
+
+    static int checkChannels(int channels) {
+        if (channels != 1 && channels != 2) throw new IllegalArgumentException("channels must be 1 or 2");
+        return channels;
+    }
+
+    // decodes and converts the whole stream to sampleRate, once; mono stays mono, anything else is mixed to stereo
+    static PcmStorage load(AudioInputStream stream, SoundClip.Storage storage, float sampleRate) throws IOException {
+        int channels = stream.getFormat().getChannels() == 1 ? 1 : 2;
+        stream = getSupportedAudioInputStream(audioFormat(sampleRate, channels), stream);
+        byte[] buffer;
+        try {
+            buffer = readNBytes(stream, MAX_BUFFER_SIZE / 2);
+        }
+        finally {
+            closeQuietly(stream);
+        }
+        int frameSize = channels * 2;
+        buffer = buffer.length % frameSize == 0 ? buffer : Arrays.copyOf(buffer, buffer.length - buffer.length % frameSize);
+
+        // audioFormat is 16-bit little-endian
+        ShortBuffer samples = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        if (storage == SoundClip.Storage.SHORT) {
+            short[] pcm = new short[samples.remaining()];
+            samples.get(pcm);
+            return new ShortStorage(pcm, sampleRate, channels);
+        }
+        else if (storage == SoundClip.Storage.DIRECT) {
+            ByteBuffer pcm = ByteBuffer.allocateDirect(buffer.length).order(ByteOrder.nativeOrder());
+            pcm.asShortBuffer().put(samples);
+            return of(pcm, sampleRate, channels);
+        }
+        else {
+            float[] pcm = new float[samples.remaining()];
+            for (int i = 0; i < pcm.length; i ++) {
+                pcm[i] = samples.get(i) / 32767f;
+            }
+            return new FloatStorage(pcm, sampleRate, channels);
+        }
+    }
+
+    private static final class FloatStorage extends PcmStorage {
+        private final float[] pcm;
+
+        private FloatStorage(float[] pcm, float sampleRate, int channels) {
+            super(sampleRate, channels);
+            this.pcm = pcm;
+        }
+
+        @Override
+        int length() {
+            return pcm.length;
+        }
+
+        @Override
+        long byteSize() {
+            return pcm.length * 4L;
+        }
+
+        @Override
+        SoundClip.Storage type() {
+            return SoundClip.Storage.FLOAT;
+        }
+
+        @Override
+        void get(int index, float[] destination, int offset, int length) {
+            System.arraycopy(pcm, index, destination, offset, length);
+        }
+
+        @Override
+        float[] array() {
+            return pcm;
+        }
+    }
+
+    private static final class ShortStorage extends PcmStorage {
+        private final short[] pcm;
+
+        private ShortStorage(short[] pcm, float sampleRate, int channels) {
+            super(sampleRate, channels);
+            this.pcm = pcm;
+        }
+
+        @Override
+        int length() {
+            return pcm.length;
+        }
+
+        @Override
+        long byteSize() {
+            return pcm.length * 2L;
+        }
+
+        @Override
+        SoundClip.Storage type() {
+            return SoundClip.Storage.SHORT;
+        }
+
+        @Override
+        void get(int index, float[] destination, int offset, int length) {
+            for (int i = 0; i < length; i ++) {
+                destination[offset + i] = pcm[index + i] / 32767f;
+            }
+        }
+    }
+
+    private static final class BufferStorage extends PcmStorage {
+        private final ShortBuffer pcm;
+        private final boolean direct;
+
+        private BufferStorage(ShortBuffer pcm, boolean direct, float sampleRate, int channels) {
+            super(sampleRate, channels);
+            this.pcm = pcm;
+            this.direct = direct;
+        }
+
+        @Override
+        int length() {
+            return pcm.limit();
+        }
+
+        @Override
+        long byteSize() {
+            return pcm.limit() * 2L;
+        }
+
+        @Override
+        SoundClip.Storage type() {
+            return direct ? SoundClip.Storage.DIRECT : SoundClip.Storage.SHORT;
+        }
+
+        // absolute gets only, the buffer position is shared by every reader
+        @Override
+        void get(int index, float[] destination, int offset, int length) {
+            for (int i = 0; i < length; i ++) {
+                destination[offset + i] = pcm.get(index + i) / 32767f;
+            }
+        }
+    }
+
+}
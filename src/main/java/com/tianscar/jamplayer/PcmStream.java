@@ -0,0 +1,340 @@
+package com.tianscar.jamplayer;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.tianscar.jamplayer.Utils.*;
+import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
+
+/*
+ * The PCM of a streaming SoundClip. The first HEAD_FRAMES are decoded
+ * up front and shared by every instance, so instances start and loop
+ * back to the beginning without waiting. Everything after the head is
+ * decoded by a background thread into one ring buffer per instance,
+ * just ahead of its cursor; jumping elsewhere reopens the source.
+ *
+ * Reader fields written by the render thread: consumed, requestFrame,
+ * requestGeneration. Written by the decoder thread: everything else.
+ * A ring is only read while its requestGeneration is served.
+ */
+final class PcmStream {
+
+    static final int HEAD_FRAMES = 16384;
+    // per instance, about 0.75 seconds
+    static final int RING_FRAMES = 32768;
+    private static final int CHUNK_FRAMES = 4096;
+
+    private static final AtomicInteger nextSerialNumber = new AtomicInteger();
+
+    private final SoundClip.StreamSource source;
+    // what the source is converted to
+    private final float sampleRate;
+    private final float[] head;
+    private final int headFrames;
+    private final List<Reader> readers = new CopyOnWriteArrayList<>();
+    private final byte[] chunk = new byte[CHUNK_FRAMES * 4];
+    private final Thread decoder;
+    private volatile boolean closed;
+    // set while the decoder parks, or is about to
+    private volatile boolean waiting;
+
+    // upper bound until the end of the stream was decoded, if the source does not tell
+    private volatile int frameLength;
+    private volatile boolean frameLengthKnown;
+
+    // the stream the head was decoded from, positioned right after it
+    private AudioInputStream spare;
+
+    // those of the clip, or of the SoundMuxer it is opened on
+    private volatile RenderMetrics metrics;
+    void setMetrics(RenderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    PcmStream(SoundClip.StreamSource source, float sampleRate) throws IOException, UnsupportedAudioFileException {
+        this.source = source;
+        this.sampleRate = sampleRate;
+        AudioInputStream stream = open();
+        try {
+            long streamFrames = stream.getFrameLength();
+            frameLengthKnown = streamFrames != NOT_SPECIFIED;
+            frameLength = (int) Math.min(frameLengthKnown ? streamFrames : Long.MAX_VALUE, MAX_BUFFER_SIZE / 4);
+
+            byte[] bytes = readNBytes(stream, Math.min(HEAD_FRAMES, frameLength) * 4);
+            headFrames = bytes.length / 4;
+            head = new float[headFrames * 2];
+            toFloat(bytes, 0, head, 0, head.length);
+            if (headFrames < Math.min(HEAD_FRAMES, frameLength) || headFrames == frameLength) {
+                // the whole clip fits in the head
+                frameLength = headFrames;
+                frameLengthKnown = true;
+                closeQuietly(stream);
+            }
+            else spare = stream;
+        }
+        catch (IOException | RuntimeException e) {
+            closeQuietly(stream);
+            throw e;
+        }
+
+        decoder = new Thread(this::decode, "SoundClipStreaming-" + nextSerialNumber.getAndIncrement());
+        decoder.setDaemon(true);
+        decoder.start();
+    }
+
+    private AudioInputStream open() throws IOException, UnsupportedAudioFileException {
+        return getSupportedAudioInputStream(audioFormat(sampleRate), source.open());
+    }
+
+    float getSampleRate() {
+        return sampleRate;
+    }
+
+    float[] getHead() {
+        return head;
+    }
+
+    int getHeadFrames() {
+        return headFrames;
+    }
+
+    int getFrameLength() {
+        return frameLength;
+    }
+
+    boolean isFrameLengthKnown() {
+        return frameLengthKnown;
+    }
+
+    long byteSize() {
+        return head.length * 4L + readers.size() * RING_FRAMES * 8L;
+    }
+
+    Reader newReader() {
+        Reader reader = new Reader();
+        readers.add(reader);
+        return reader;
+    }
+
+    void close() {
+        closed = true;
+        LockSupport.unpark(decoder);
+    }
+
+    /*
+     * Render thread: lets the reader's ring follow a cursor at frame,
+     * decoding ahead from there on (or from the end of the head).
+     */
+    void position(Reader reader, int frame) {
+        frame = Math.max(frame, headFrames);
+        if (frame >= frameLength) return;
+        if (reader.requestGeneration != reader.servedGeneration) {
+            if (reader.requestFrame <= frame && frame <= reader.requestFrame + RING_FRAMES) return;
+        }
+        else if (reader.start() <= frame && frame <= reader.end + RING_FRAMES) {
+            reader.consumed = frame;
+            // the decoder sleeps until a ring has room for another chunk
+            if (waiting && !reader.eof && reader.end < frameLength && reader.end - frame <= RING_FRAMES - CHUNK_FRAMES) {
+                LockSupport.unpark(decoder);
+            }
+            return;
+        }
+        request(reader, frame);
+    }
+
+    // render thread: a new play gives a reader which broke another try, from frame on
+    void retry(Reader reader, int frame) {
+        if (hasFailed(reader)) request(reader, Math.max(frame, headFrames));
+    }
+
+    private void request(Reader reader, int frame) {
+        reader.consumed = frame;
+        reader.requestFrame = frame;
+        reader.requestGeneration ++;
+        LockSupport.unpark(decoder);
+    }
+
+    /*
+     * Render thread: copies the frames [first, first + count) to destination.
+     * Returns how many frames from first on were available, fewer
+     * than count while the decoder is behind.
+     */
+    int read(Reader reader, int first, int count, float[] destination) {
+        int frames = 0;
+        if (first < headFrames) {
+            frames = Math.min(count, headFrames - first);
+            System.arraycopy(head, first * 2, destination, 0, frames * 2);
+        }
+        position(reader, first + frames);
+        if (frames == count || reader.requestGeneration != reader.servedGeneration) return frames;
+
+        int frame = first + frames;
+        int available = Math.min(count - frames, reader.end - frame);
+        if (frame < reader.start() || available <= 0) return frames;
+        int index = frame % RING_FRAMES;
+        int n = Math.min(available, RING_FRAMES - index);
+        System.arraycopy(reader.ring, index * 2, destination, frames * 2, n * 2);
+        System.arraycopy(reader.ring, 0, destination, (frames + n) * 2, (available - n) * 2);
+        return frames + available;
+    }
+
+    // render thread: whether the reader broke at its end, where it was last positioned
+    boolean hasFailed(Reader reader) {
+        return reader.failed && reader.requestGeneration == reader.servedGeneration;
+    }
+
+    private void decode() {
+        while (!closed) {
+            if (serviceAll()) continue;
+            waiting = true;
+            // a position after this either is seen here, or unparks the decoder
+            if (!serviceAll() && !closed) LockSupport.park(this);
+            waiting = false;
+        }
+        for (Reader reader : readers) {
+            if (reader.stream != null) closeQuietly(reader.stream);
+        }
+        if (spare != null) closeQuietly(spare);
+    }
+
+    private boolean serviceAll() {
+        boolean busy = false;
+        for (Reader reader : readers) {
+            busy |= service(reader);
+        }
+        return busy;
+    }
+
+    // decoder thread, returns whether there was anything to do
+    private boolean service(Reader reader) {
+        int generation = reader.requestGeneration;
+        if (generation != reader.servedGeneration) {
+            restart(reader, reader.requestFrame);
+            reader.servedGeneration = generation;
+            return true;
+        }
+        if (reader.stream == null || reader.eof) return false;
+
+        int frames = Math.min(Math.min(CHUNK_FRAMES, RING_FRAMES - (reader.end - reader.consumed)), frameLength - reader.end);
+        if (frames <= 0) {
+            if (reader.end >= frameLength) endOfStream(reader);
+            return false;
+        }
+        RenderMetrics metrics = this.metrics;
+        boolean measured = metrics != null && metrics.isEnabled();
+        long start = measured ? System.nanoTime() : 0;
+        try {
+            int bytes = 0;
+            for (int n; bytes < frames * 4 && (n = reader.stream.read(chunk, bytes, frames * 4 - bytes)) > 0; ) {
+                bytes += n;
+            }
+            int decoded = bytes / 4;
+            if (measured) metrics.recordDecode(decoded, System.nanoTime() - start, sampleRate);
+            int index = reader.end % RING_FRAMES;
+            int n = Math.min(decoded, RING_FRAMES - index);
+            toFloat(chunk, 0, reader.ring, index * 2, n * 2);
+            toFloat(chunk, n * 4, reader.ring, 0, (decoded - n) * 2);
+            reader.end += decoded;
+            if (decoded < frames) endOfStream(reader);
+        }
+        catch (IOException e) {
+            fail(reader);
+        }
+        return true;
+    }
+
+    private void restart(Reader reader, int frame) {
+        if (reader.stream != null) closeQuietly(reader.stream);
+        reader.stream = null;
+        reader.origin = reader.end = frame;
+        reader.eof = false;
+        reader.failed = false;
+        try {
+            if (spare != null && frame == headFrames) {
+                reader.stream = spare;
+                spare = null;
+            }
+            else {
+                reader.stream = open();
+                long remaining = frame * 4L;
+                for (long n; remaining > 0 && (n = reader.stream.skip(remaining)) > 0; ) {
+                    remaining -= n;
+                }
+                // skip may give up early, read the rest
+                for (int n; remaining > 0 && (n = reader.stream.read(chunk, 0, (int) Math.min(chunk.length, remaining))) > 0; ) {
+                    remaining -= n;
+                }
+                if (remaining > 0) endOfStream(reader);
+            }
+        }
+        catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+            fail(reader);
+        }
+    }
+
+    /*
+     * An error, unlike the end of the stream, only stops this reader, and
+     * leaves the length of the clip alone: the play of its instance ends
+     * where it broke, and the next one reopens the source.
+     */
+    private void fail(Reader reader) {
+        reader.failed = true;
+        reader.eof = true;
+        if (reader.stream != null) {
+            closeQuietly(reader.stream);
+            reader.stream = null;
+        }
+    }
+
+    private void endOfStream(Reader reader) {
+        reader.eof = true;
+        if (reader.end < frameLength) {
+            frameLength = Math.max(reader.end, headFrames);
+        }
+        frameLengthKnown = true;
+        if (reader.stream != null) {
+            closeQuietly(reader.stream);
+            reader.stream = null;
+        }
+    }
+
+    // 16-bit little-endian to normalized floats, as SoundClip.load does
+    private static void toFloat(byte[] bytes, int offset, float[] destination, int destinationOffset, int length) {
+        for (int i = 0; i < length; i ++) {
+            int index = offset + i * 2;
+            destination[destinationOffset + i] = (short) ((bytes[index] & 0xFF) | (bytes[index + 1] << 8)) / 32767f;
+        }
+    }
+
+    static final class Reader {
+        private final float[] ring = new float[RING_FRAMES * 2];
+        private AudioInputStream stream;
+        private volatile int origin;
+        private volatile int end;
+        // nothing more to decode: the end of the stream, or an error
+        private volatile boolean eof;
+        private volatile boolean failed;
+        private volatile int servedGeneration;
+
+        private volatile int consumed;
+        private volatile int requestFrame;
+        private volatile int requestGeneration;
+
+        private Reader() {
+            // nothing positioned yet
+            requestGeneration = servedGeneration = 0;
+            origin = end = Integer.MAX_VALUE;
+        }
+
+        // first frame still held by the ring
+        private int start() {
+            return Math.max(origin, end - RING_FRAMES);
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.tianscar.jamplayer;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static com.tianscar.jamplayer.Utils.*;
+import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
+
+/*
+ * Sample rate conversion of 16-bit signed little-endian PCM, so
+ * SoundClips are loaded (or streamed) at the rate of the SoundMuxer
+ * which plays them, and no voice converts the rate while mixing.
+ * Uses the windowed sinc of Resampler, band-limited to the ratio when
+ * converting down. The source is read a chunk at a time; the output
+ * starts at the first source frame and ends with the last. Mono stays
+ * mono.
+ */
+final class RateConverter extends InputStream {
+
+    private static final int CHUNK_FRAMES = 4096;
+
+    private final AudioInputStream source;
+    private final int channels;
+    private final Resampler resampler;
+    private final long increment;
+
+    private final byte[] sourceBytes;
+    // a partial frame read from the source
+    private int sourceByteCount;
+    // the source frames still read by the kernel, as floats, from the silence before the first one on
+    private final float[] input;
+    private int inputFrames;
+    // of the next output frame, relative to input
+    private long phase;
+    // the source's end in input once it was reached, NOT_SPECIFIED before
+    private int inputEnd = NOT_SPECIFIED;
+
+    // stereo whatever the channels, mono is rendered to the left one
+    private final float[] output = new float[CHUNK_FRAMES * 2];
+    private final byte[] outputBytes;
+    private int position, limit;
+
+    private RateConverter(AudioInputStream source, int channels, double ratio) {
+        this.source = source;
+        this.channels = channels;
+        resampler = Resampler.of(SoundClip.Interpolation.SINC, ratio);
+        increment = Resampler.toPhase(ratio);
+        sourceBytes = new byte[CHUNK_FRAMES * channels * 2];
+        outputBytes = new byte[CHUNK_FRAMES * channels * 2];
+        input = new float[(CHUNK_FRAMES * 2 + resampler.before + resampler.after) * channels];
+        inputFrames = resampler.before;
+        phase = Resampler.toPhase(resampler.before);
+    }
+
+    // source must be 16-bit signed little-endian, mono or stereo
+    static AudioInputStream convert(AudioInputStream source, float sampleRate) {
+        double ratio = source.getFormat().getSampleRate() / (double) sampleRate;
+        int channels = source.getFormat().getChannels();
+        RateConverter converter = new RateConverter(source, channels, ratio);
+        long frameLength = source.getFrameLength();
+        // as many frames as fit before the end of the source, at the increment actually used
+        if (frameLength != NOT_SPECIFIED && frameLength <= Integer.MAX_VALUE) {
+            frameLength = ((frameLength << 32) + converter.increment - 1) / converter.increment;
+        }
+        else frameLength = NOT_SPECIFIED;
+        return new AudioInputStream(converter, audioFormat(sampleRate, channels), frameLength);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !convertChunk()) return -1;
+        return outputBytes[position ++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (position == limit && !convertChunk()) return -1;
+        int n = Math.min(len, limit - position);
+        System.arraycopy(outputBytes, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    // false at the end
+    private boolean convertChunk() throws IOException {
+        int frames;
+        while ((frames = convertibleFrames()) == 0) {
+            if (inputEnd != NOT_SPECIFIED) return false;
+            fill();
+        }
+        Arrays.fill(output, 0, frames * 2, 0);
+        if (channels == 1) phase = resampler.renderMono(input, 0, phase, increment, 1, 0, output, 0, frames);
+        else phase = resampler.render(input, 0, phase, increment, 1, 1, output, 0, frames);
+        for (int i = 0; i < frames * channels; i ++) {
+            int sample = Math.round((float) clamp(output[channels == 1 ? i * 2 : i], -1, 1) * 32767);
+            outputBytes[i * 2] = (byte) sample;
+            outputBytes[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        position = 0;
+        limit = frames * channels * 2;
+        return true;
+    }
+
+    // the output frames whose kernels are within input, and before the end of the source
+    private int convertibleFrames() {
+        long end = (long) (inputFrames - resampler.after) << 32;
+        if (inputEnd != NOT_SPECIFIED) end = Math.min(end, (long) inputEnd << 32);
+        if (phase >= end) return 0;
+        return (int) Math.min(CHUNK_FRAMES, (end - phase + increment - 1) / increment);
+    }
+
+    // drops what the kernel is done with, then reads another chunk
+    private void fill() throws IOException {
+        int drop = (int) (phase >>> 32) - resampler.before;
+        System.arraycopy(input, drop * channels, input, 0, (inputFrames - drop) * channels);
+        inputFrames -= drop;
+        phase -= (long) drop << 32;
+
+        int frameSize = channels * 2;
+        int n = source.read(sourceBytes, sourceByteCount, Math.min(sourceBytes.length, (input.length / channels - resampler.after - inputFrames) * frameSize) - sourceByteCount);
+        if (n < 0) {
+            // the silence after the last frame
+            inputEnd = inputFrames;
+            Arrays.fill(input, inputFrames * channels, (inputFrames + resampler.after) * channels, 0);
+            inputFrames += resampler.after;
+            return;
+        }
+        sourceByteCount += n;
+        int frames = sourceByteCount / frameSize;
+        for (int i = 0; i < frames * channels; i ++) {
+            input[inputFrames * channels + i] = (short) ((sourceBytes[i * 2] & 0xFF) | (sourceBytes[i * 2 + 1] << 8)) / 32767f;
+        }
+        inputFrames += frames;
+        System.arraycopy(sourceBytes, frames * frameSize, sourceBytes, 0, sourceByteCount - frames * frameSize);
+        sourceByteCount -= frames * frameSize;
+    }
+
+}
@@ -0,0 +1,259 @@
+package com.tianscar.jamplayer;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * What a player's threads are up to, to tell whether it keeps up: how
+ * long each block takes to render against its deadline, the time the
+ * block plays for; how many clips and voices are mixed; underruns,
+ * plays dropped for want of an instance, the event queue, and how fast
+ * streams are decoded. Every SoundMuxer, SoundClip and MusicPlayer has
+ * one; a SoundClip opened on a SoundMuxer counts its dropped plays,
+ * events and decoding in the muxer's.
+ *
+ * Disabled by default, which costs a player one volatile read per block
+ * and records nothing. The block figures are written by one thread at a
+ * time, the rest by any; a reader may see them a block apart.
+ */
+public final class RenderMetrics implements RenderMetricsMXBean {
+
+    // bucket i counts the blocks rendered in [2^(i-1), 2^i) microseconds, bucket 0 those under one, the last also the longer ones
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    private volatile boolean enabled;
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    private final AtomicLongArray renderTimeHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    @Override
+    public long[] getRenderTimeHistogram() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i ++) {
+            histogram[i] = renderTimeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    private volatile long blockCount;
+    @Override
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    private volatile long renderNanos, deadlineNanos;
+    @Override
+    public long getMeanRenderNanos() {
+        long blockCount = this.blockCount;
+        return blockCount == 0 ? 0 : renderNanos / blockCount;
+    }
+
+    private volatile long maxRenderNanos;
+    @Override
+    public long getMaxRenderNanos() {
+        return maxRenderNanos;
+    }
+
+    /*
+     * The share of the deadlines left after rendering: 0.9 for blocks
+     * taking a tenth of the time they play for, below 0 for blocks late.
+     * NaN before the first block.
+     */
+    @Override
+    public double getMeanHeadroom() {
+        long deadlineNanos = this.deadlineNanos;
+        return deadlineNanos == 0 ? Double.NaN : 1 - (double) renderNanos / deadlineNanos;
+    }
+
+    private volatile double minHeadroom = Double.POSITIVE_INFINITY;
+    // that of the tightest block
+    @Override
+    public double getMinHeadroom() {
+        return blockCount == 0 ? Double.NaN : minHeadroom;
+    }
+
+    private volatile long lateBlockCount;
+    // blocks which took longer to render than they play for
+    @Override
+    public long getLateBlockCount() {
+        return lateBlockCount;
+    }
+
+    // as of the last block
+    private volatile int activeClipCount, activeVoiceCount;
+    @Override
+    public int getActiveClipCount() {
+        return activeClipCount;
+    }
+    @Override
+    public int getActiveVoiceCount() {
+        return activeVoiceCount;
+    }
+
+    private final AtomicLong underrunCount = new AtomicLong();
+    // times the sink was found to have run dry while playing
+    @Override
+    public long getUnderrunCount() {
+        return underrunCount.get();
+    }
+
+    private final AtomicLong droppedPlayCount = new AtomicLong();
+    // plays which found every instance taken, and none to steal
+    @Override
+    public long getDroppedPlayCount() {
+        return droppedPlayCount.get();
+    }
+
+    private volatile int eventQueueDepth;
+    // the events waiting in the EventDispatcher, as of the last one published
+    @Override
+    public int getEventQueueDepth() {
+        return eventQueueDepth;
+    }
+
+    private final AtomicInteger maxEventQueueDepth = new AtomicInteger();
+    @Override
+    public int getMaxEventQueueDepth() {
+        return maxEventQueueDepth.get();
+    }
+
+    private final AtomicLong droppedEventCount = new AtomicLong();
+    // of the events published, those the EventDispatcher dropped
+    @Override
+    public long getDroppedEventCount() {
+        return droppedEventCount.get();
+    }
+
+    private final AtomicLong decodedFrameCount = new AtomicLong();
+    @Override
+    public long getDecodedFrameCount() {
+        return decodedFrameCount.get();
+    }
+
+    private final AtomicLong decodedAudioNanos = new AtomicLong(), decodeNanos = new AtomicLong();
+    // seconds of audio decoded per second spent decoding, NaN before anything was; below 1 can't keep up
+    @Override
+    public double getDecodeSpeed() {
+        long decodeNanos = this.decodeNanos.get();
+        return decodeNanos == 0 ? Double.NaN : (double) decodedAudioNanos.get() / decodeNanos;
+    }
+
+    // starts over; a block recorded meanwhile may be partly lost
+    @Override
+    public void reset() {
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i ++) {
+            renderTimeHistogram.set(i, 0);
+        }
+        blockCount = 0;
+        renderNanos = 0;
+        deadlineNanos = 0;
+        maxRenderNanos = 0;
+        minHeadroom = Double.POSITIVE_INFINITY;
+        lateBlockCount = 0;
+        activeClipCount = 0;
+        activeVoiceCount = 0;
+        underrunCount.set(0);
+        droppedPlayCount.set(0);
+        eventQueueDepth = 0;
+        maxEventQueueDepth.set(0);
+        droppedEventCount.set(0);
+        decodedFrameCount.set(0);
+        decodedAudioNanos.set(0);
+        decodeNanos.set(0);
+    }
+
+    // the render thread, if enabled: a block of frames rendered in nanos
+    void recordBlock(long nanos, int frames, float sampleRate) {
+        if (frames <= 0) return;
+        long deadline = (long) (frames * 1_000_000_000.0 / sampleRate);
+        renderTimeHistogram.incrementAndGet(Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000)));
+        blockCount ++;
+        renderNanos += nanos;
+        deadlineNanos += deadline;
+        if (nanos > maxRenderNanos) maxRenderNanos = nanos;
+        if (nanos > deadline) lateBlockCount ++;
+        double headroom = 1 - (double) nanos / deadline;
+        if (headroom < minHeadroom) minHeadroom = headroom;
+    }
+
+    // the render thread, if enabled
+    void recordActivity(int clips, int voices) {
+        activeClipCount = clips;
+        activeVoiceCount = voices;
+    }
+
+    void recordUnderrun() {
+        if (enabled) underrunCount.incrementAndGet();
+    }
+
+    void recordDroppedPlay() {
+        if (enabled) droppedPlayCount.incrementAndGet();
+    }
+
+    // if enabled: an event published, or dropped, leaving queued events waiting
+    void recordEvent(boolean published, int queued) {
+        if (!published) droppedEventCount.incrementAndGet();
+        eventQueueDepth = queued;
+        maxEventQueueDepth.accumulateAndGet(queued, Math::max);
+    }
+
+    // if enabled: frames at sampleRate decoded in nanos
+    void recordDecode(int frames, long nanos, float sampleRate) {
+        decodedFrameCount.addAndGet(frames);
+        decodedAudioNanos.addAndGet((long) (frames * 1_000_000_000.0 / sampleRate));
+        decodeNanos.addAndGet(nanos);
+    }
+
+    private ObjectName objectName;
+    // null unless registered
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /*
+     * Registers these metrics with the platform MBeanServer, as
+     * com.tianscar.jamplayer:type=RenderMetrics,name="name", for JConsole,
+     * VisualVM or a JMX exporter to read. Closing the player unregisters them.
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        Objects.requireNonNull(name);
+        if (objectName != null) throw new IllegalStateException("Already registered as " + objectName);
+        try {
+            ObjectName objectName = new ObjectName("com.tianscar.jamplayer:type=RenderMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return this.objectName = objectName;
+        }
+        catch (InstanceAlreadyExistsException e) {
+            throw new IllegalArgumentException("RenderMetrics named " + name + " are already registered");
+        }
+        catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        }
+        catch (JMException ignored) {
+            // unregistered by someone else meanwhile
+        }
+        objectName = null;
+    }
+
+}
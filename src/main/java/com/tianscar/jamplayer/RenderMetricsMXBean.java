@@ -0,0 +1,30 @@
+package com.tianscar.jamplayer;
+
+// what RenderMetrics shows through JMX, see RenderMetrics.registerMBean
+public interface RenderMetricsMXBean {
+
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+    void reset();
+
+    long getBlockCount();
+    long[] getRenderTimeHistogram();
+    long getMeanRenderNanos();
+    long getMaxRenderNanos();
+    double getMeanHeadroom();
+    double getMinHeadroom();
+    long getLateBlockCount();
+
+    int getActiveClipCount();
+    int getActiveVoiceCount();
+    long getUnderrunCount();
+    long getDroppedPlayCount();
+
+    int getEventQueueDepth();
+    int getMaxEventQueueDepth();
+    long getDroppedEventCount();
+
+    long getDecodedFrameCount();
+    double getDecodeSpeed();
+
+}
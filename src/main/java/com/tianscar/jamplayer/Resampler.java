@@ -0,0 +1,321 @@
+package com.tianscar.jamplayer;
+
+/*
+ * Interpolation kernels for the fractional cursors of SoundClip, see
+ * SoundClip.Interpolation. A span is rendered with the cursor as a
+ * 32.32 fixed-point phase, so the per-sample work is integer and float
+ * math only; the cost per frame is fixed by the kernel, whatever the
+ * speed.
+ *
+ * The kernels are stateless and shared by every clip. The tables of
+ * the windowed sinc are computed once, on first use.
+ */
+abstract class Resampler {
+
+    private static final double PHASE_ONE = 0x1p32;
+    private static final float FRACTION_ONE = 0x1p-24f;
+
+    // frames read before and after the one the cursor is on
+    final int before, after;
+    // whether a whole phase reads just the frame it is on, unlike the sinc, which filters that one too
+    final boolean exactOnFrames;
+
+    private Resampler(int before, int after, boolean exactOnFrames) {
+        this.before = before;
+        this.after = after;
+        this.exactOnFrames = exactOnFrames;
+    }
+
+    static final Resampler LINEAR = new Linear();
+    static final Resampler CUBIC = new Cubic();
+
+    // the kernel for playing at speeds up to speed
+    static Resampler of(SoundClip.Interpolation interpolation, double speed) {
+        if (interpolation == SoundClip.Interpolation.SINC) return Sinc.of(speed);
+        else if (interpolation == SoundClip.Interpolation.CUBIC) return CUBIC;
+        else return LINEAR;
+    }
+
+    // rounds down, so a span never gets ahead of the double cursor it was planned with
+    static long toPhase(double frames) {
+        return (long) (frames * PHASE_ONE);
+    }
+
+    // exact, a phase converted back and forth stays the same
+    static double toFrames(long phase) {
+        return phase / PHASE_ONE;
+    }
+
+    /*
+     * Adds frames frames, interpolated at phase, phase + increment, and
+     * so on, times the volumes to buffer from offset on. Every frame they
+     * read must be in source, which holds the frames from sourceBase on.
+     * Returns the phase after the last one.
+     */
+    abstract long render(float[] source, int sourceBase, long phase, long increment,
+                         float leftVolume, float rightVolume, float[] buffer, int offset, int frames);
+
+    // render for a mono source, each frame added to both channels of buffer
+    abstract long renderMono(float[] source, int sourceBase, long phase, long increment,
+                             float leftVolume, float rightVolume, float[] buffer, int offset, int frames);
+
+    // one channel at phase, where the frames outside [0, frameLength) read as silence
+    abstract float sample(float[] source, int sourceBase, int frameLength, long phase, int channel, int channels);
+
+    private static float frame(float[] source, int sourceBase, int frameLength, int frame, int channel, int channels) {
+        return frame < 0 || frame >= frameLength ? 0 : source[(frame - sourceBase) * channels + channel];
+    }
+
+    // 24 bits of the fraction are plenty for a float
+    private static float fraction(long phase) {
+        return ((int) phase >>> 8) * FRACTION_ONE;
+    }
+
+    private static final class Linear extends Resampler {
+
+        private Linear() {
+            super(0, 1, true);
+        }
+
+        @Override
+        long render(float[] source, int sourceBase, long phase, long increment,
+                    float leftVolume, float rightVolume, float[] buffer, int offset, int frames) {
+            int end = offset + frames * 2;
+            for (int i = offset; i < end; i += 2) {
+                int index = ((int) (phase >>> 32) - sourceBase) * 2;
+                float fraction = fraction(phase);
+
+                float leftVal = source[index] + (source[index + 2] - source[index]) * fraction;
+                float rightVal = source[index + 1] + (source[index + 3] - source[index + 1]) * fraction;
+                buffer[i] += leftVal * leftVolume;
+                buffer[i + 1] += rightVal * rightVolume;
+
+                phase += increment;
+            }
+            return phase;
+        }
+
+        @Override
+        long renderMono(float[] source, int sourceBase, long phase, long increment,
+                        float leftVolume, float rightVolume, float[] buffer, int offset, int frames) {
+            int end = offset + frames * 2;
+            for (int i = offset; i < end; i += 2) {
+                int index = (int) (phase >>> 32) - sourceBase;
+
+                float val = source[index] + (source[index + 1] - source[index]) * fraction(phase);
+                buffer[i] += val * leftVolume;
+                buffer[i + 1] += val * rightVolume;
+
+                phase += increment;
+            }
+            return phase;
+        }
+
+        @Override
+        float sample(float[] source, int sourceBase, int frameLength, long phase, int channel, int channels) {
+            int frame = (int) (phase >>> 32);
+            float x0 = frame(source, sourceBase, frameLength, frame, channel, channels);
+            float x1 = frame(source, sourceBase, frameLength, frame + 1, channel, channels);
+            return x0 + (x1 - x0) * fraction(phase);
+        }
+
+    }
+
+    // cubic Hermite through the 4 frames around the cursor, with Catmull-Rom tangents
+    private static final class Cubic extends Resampler {
+
+        private Cubic() {
+            super(1, 2, true);
+        }
+
+        private static float hermite(float x0, float x1, float x2, float x3, float t) {
+            float c1 = 0.5f * (x2 - x0);
+            float c2 = x0 - 2.5f * x1 + 2 * x2 - 0.5f * x3;
+            float c3 = 0.5f * (x3 - x0) + 1.5f * (x1 - x2);
+            return ((c3 * t + c2) * t + c1) * t + x1;
+        }
+
+        @Override
+        long render(float[] source, int sourceBase, long phase, long increment,
+                    float leftVolume, float rightVolume, float[] buffer, int offset, int frames) {
+            int end = offset + frames * 2;
+            for (int i = offset; i < end; i += 2) {
+                int index = ((int) (phase >>> 32) - 1 - sourceBase) * 2;
+                float fraction = fraction(phase);
+
+                float leftVal = hermite(source[index], source[index + 2], source[index + 4], source[index + 6], fraction);
+                float rightVal = hermite(source[index + 1], source[index + 3], source[index + 5], source[index + 7], fraction);
+                buffer[i] += leftVal * leftVolume;
+                buffer[i + 1] += rightVal * rightVolume;
+
+                phase += increment;
+            }
+            return phase;
+        }
+
+        @Override
+        long renderMono(float[] source, int sourceBase, long phase, long increment,
+                        float leftVolume, float rightVolume, float[] buffer, int offset, int frames) {
+            int end = offset + frames * 2;
+            for (int i = offset; i < end; i += 2) {
+                int index = (int) (phase >>> 32) - 1 - sourceBase;
+
+                float val = hermite(source[index], source[index + 1], source[index + 2], source[index + 3], fraction(phase));
+                buffer[i] += val * leftVolume;
+                buffer[i + 1] += val * rightVolume;
+
+                phase += increment;
+            }
+            return phase;
+        }
+
+        @Override
+        float sample(float[] source, int sourceBase, int frameLength, long phase, int channel, int channels) {
+            int frame = (int) (phase >>> 32);
+            return hermite(frame(source, sourceBase, frameLength, frame - 1, channel, channels),
+                    frame(source, sourceBase, frameLength, frame, channel, channels),
+                    frame(source, sourceBase, frameLength, frame + 1, channel, channels),
+                    frame(source, sourceBase, frameLength, frame + 2, channel, channels),
+                    fraction(phase));
+        }
+
+    }
+
+    /*
+     * Kaiser-windowed sinc over 32 frames, as a polyphase table: a row
+     * of coefficients for each of 256 phases, interpolated linearly in
+     * between. Played faster than 1, the cutoff is lowered to the speed,
+     * so what would fold back over the output's Nyquist frequency is
+     * filtered out instead; one table per band of speeds, the tap count
+     * stays the same.
+     */
+    private static final class Sinc extends Resampler {
+
+        private static final int TAPS = 32;
+        private static final int PHASES = 256;
+        // of the Nyquist frequency, leaves room for the transition band
+        private static final double CUTOFF = 0.9;
+        private static final double BETA = 8;
+        // each band is for speeds up to it, the last one for all above
+        private static final double[] BANDS = { 1, 1.25, 1.5, 2, 3, 4, 6, 8 };
+        private static final Sinc[] RESAMPLERS = new Sinc[BANDS.length];
+        static {
+            for (int n = 0; n < BANDS.length; n ++) {
+                RESAMPLERS[n] = new Sinc(CUTOFF / BANDS[n]);
+            }
+        }
+
+        static Resampler of(double speed) {
+            for (int n = 0; n < BANDS.length - 1; n ++) {
+                if (speed <= BANDS[n]) return RESAMPLERS[n];
+            }
+            return RESAMPLERS[BANDS.length - 1];
+        }
+
+        // PHASES + 1 rows, the last one a whole frame on; with the differences to the next row
+        private final float[] coefficients = new float[(PHASES + 1) * TAPS];
+        private final float[] deltas = new float[PHASES * TAPS];
+
+        private Sinc(double cutoff) {
+            super(TAPS / 2 - 1, TAPS / 2, false);
+            for (int row = 0; row <= PHASES; row ++) {
+                double t = (double) row / PHASES;
+                double sum = 0;
+                for (int k = 0; k < TAPS; k ++) {
+                    double x = k - before - t;
+                    double coefficient = cutoff * sinc(cutoff * x) * kaiser(x / (TAPS / 2));
+                    coefficients[row * TAPS + k] = (float) coefficient;
+                    sum += coefficient;
+                }
+                // unity gain at DC
+                for (int k = 0; k < TAPS; k ++) {
+                    coefficients[row * TAPS + k] /= sum;
+                }
+            }
+            for (int i = 0; i < deltas.length; i ++) {
+                deltas[i] = coefficients[i + TAPS] - coefficients[i];
+            }
+        }
+
+        private static double sinc(double x) {
+            return x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+        }
+
+        private static double kaiser(double x) {
+            return x <= -1 || x >= 1 ? 0 : bessel(BETA * Math.sqrt(1 - x * x)) / bessel(BETA);
+        }
+
+        // modified Bessel function of the first kind, order 0
+        private static double bessel(double x) {
+            double sum = 1, term = 1;
+            for (int k = 1; term > sum * 1e-12; k ++) {
+                term *= (x / (2 * k)) * (x / (2 * k));
+                sum += term;
+            }
+            return sum;
+        }
+
+        @Override
+        long render(float[] source, int sourceBase, long phase, long increment,
+                    float leftVolume, float rightVolume, float[] buffer, int offset, int frames) {
+            float[] coefficients = this.coefficients;
+            float[] deltas = this.deltas;
+            int end = offset + frames * 2;
+            for (int i = offset; i < end; i += 2) {
+                int index = ((int) (phase >>> 32) - before - sourceBase) * 2;
+                int row = ((int) phase >>> 24) * TAPS;
+                float eta = (((int) phase >>> 8) & 0xFFFF) * 0x1p-16f;
+
+                float leftVal = 0, rightVal = 0;
+                for (int k = 0; k < TAPS; k ++) {
+                    float coefficient = coefficients[row + k] + deltas[row + k] * eta;
+                    leftVal += source[index + k * 2] * coefficient;
+                    rightVal += source[index + k * 2 + 1] * coefficient;
+                }
+                buffer[i] += leftVal * leftVolume;
+                buffer[i + 1] += rightVal * rightVolume;
+
+                phase += increment;
+            }
+            return phase;
+        }
+
+        @Override
+        long renderMono(float[] source, int sourceBase, long phase, long increment,
+                        float leftVolume, float rightVolume, float[] buffer, int offset, int frames) {
+            float[] coefficients = this.coefficients;
+            float[] deltas = this.deltas;
+            int end = offset + frames * 2;
+            for (int i = offset; i < end; i += 2) {
+                int index = (int) (phase >>> 32) - before - sourceBase;
+                int row = ((int) phase >>> 24) * TAPS;
+                float eta = (((int) phase >>> 8) & 0xFFFF) * 0x1p-16f;
+
+                float val = 0;
+                for (int k = 0; k < TAPS; k ++) {
+                    val += source[index + k] * (coefficients[row + k] + deltas[row + k] * eta);
+                }
+                buffer[i] += val * leftVolume;
+                buffer[i + 1] += val * rightVolume;
+
+                phase += increment;
+            }
+            return phase;
+        }
+
+        @Override
+        float sample(float[] source, int sourceBase, int frameLength, long phase, int channel, int channels) {
+            int first = (int) (phase >>> 32) - before;
+            int row = ((int) phase >>> 24) * TAPS;
+            float eta = (((int) phase >>> 8) & 0xFFFF) * 0x1p-16f;
+
+            float value = 0;
+            for (int k = 0; k < TAPS; k ++) {
+                value += frame(source, sourceBase, frameLength, first + k, channel, channels) * (coefficients[row + k] + deltas[row + k] * eta);
+            }
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.tianscar.jamplayer;
+
+import javax.sound.sampled.AudioFormat;
+
+/*
+ * Keeps the written bytes in memory for someone else to read(), like a
+ * SourceDataLine whose "device" is the reader: write() blocks while
+ * the ring is full, drain() until it is empty.
+ */
+public class RingBufferAudioSink extends AbstractAudioSink {
+
+    private final int capacity;
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private byte[] ring;
+    private int readIndex, readable;
+
+    public RingBufferAudioSink(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+        this.capacity = capacity;
+    }
+
+    @Override
+    protected void implOpen(AudioFormat format, int bufferSize) {
+        ring = new byte[capacity - capacity % format.getFrameSize()];
+        readIndex = readable = 0;
+    }
+
+    @Override
+    protected int implWrite(byte[] b, int off, int len) {
+        int written = 0;
+        synchronized (lock) {
+            while (written < len && isOpen()) {
+                if (readable == ring.length) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    continue;
+                }
+                int writeIndex = (readIndex + readable) % ring.length;
+                int n = Math.min(len - written, Math.min(ring.length - readable, ring.length - writeIndex));
+                System.arraycopy(b, off + written, ring, writeIndex, n);
+                readable += n;
+                written += n;
+                lock.notifyAll();
+            }
+        }
+        return written;
+    }
+
+    // never blocks, returns the number of bytes read
+    public int read(byte[] b, int off, int len) {
+        synchronized (lock) {
+            if (ring == null) return 0;
+            int read = 0;
+            while (read < len && readable > 0) {
+                int n = Math.min(len - read, Math.min(readable, ring.length - readIndex));
+                System.arraycopy(ring, readIndex, b, off + read, n);
+                readIndex = (readIndex + n) % ring.length;
+                readable -= n;
+                read += n;
+            }
+            if (read > 0) lock.notifyAll();
+            return read;
+        }
+    }
+
+    public int getReadableBytes() {
+        synchronized (lock) {
+            return readable;
+        }
+    }
+
+    @Override
+    public int available() {
+        synchronized (lock) {
+            return ring == null ? 0 : ring.length - readable;
+        }
+    }
+
+    @Override
+    public void drain() {
+        synchronized (lock) {
+            while (readable > 0 && isOpen()) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (lock) {
+            readIndex = readable = 0;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    protected void implClose() {
+        lock.notifyAll();
+    }
+
+}
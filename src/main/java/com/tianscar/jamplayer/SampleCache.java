@@ -0,0 +1,305 @@
+package com.tianscar.jamplayer;
+
+import com.tianscar.javasound.sampled.AudioResourceLoader;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import static com.tianscar.jamplayer.Utils.*;
+
+/*
+ * Decodes every resource once and lets all SoundClips created from it
+ * share the same PCM data. Entries are reference counted by their open
+ * clips (SoundClip.close() gives the reference back); unreferenced
+ * entries stay cached and are evicted least recently used first once
+ * the memory budget is exceeded. Referenced entries are never evicted,
+ * so the usage may exceed the budget while they are in use.
+ *
+ * Resources are identified by file (canonical path, size and last
+ * modification), by class loader and resource name, or by the SHA-256
+ * of their encoded content.
+ *
+ * PCM is held in the storage given at construction, SHORT or DIRECT
+ * halve the memory of the FLOAT default, at the sample rate given
+ * there (that of the SoundMuxer playing the clips).
+ */
+public class SampleCache {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final SoundClip.Storage storage;
+    public SoundClip.Storage getStorage() {
+        return storage;
+    }
+
+    // what the resources are decoded and converted to
+    private final float sampleRate;
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    private long memoryBudget;
+    private long memoryUsage;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public SampleCache() {
+        this(DEFAULT_MEMORY_BUDGET);
+    }
+
+    public SampleCache(long memoryBudget) {
+        this(memoryBudget, SoundClip.Storage.FLOAT);
+    }
+
+    public SampleCache(long memoryBudget, SoundClip.Storage storage) {
+        this(memoryBudget, storage, DEFAULT_AUDIO_FORMAT.getSampleRate());
+    }
+
+    public SampleCache(long memoryBudget, SoundClip.Storage storage, float sampleRate) {
+        this.storage = Objects.requireNonNull(storage);
+        this.sampleRate = checkSampleRate(sampleRate);
+        setMemoryBudget(memoryBudget);
+    }
+
+    public SoundClip newSoundClip(File file, int polyphony) throws IOException, UnsupportedAudioFileException {
+        File canonicalFile = file.getCanonicalFile();
+        return newSoundClip(new Key("file", canonicalFile.getPath(), canonicalFile.length(), canonicalFile.lastModified()),
+                () -> AudioSystem.getAudioInputStream(canonicalFile), polyphony);
+    }
+
+    public SoundClip newSoundClip(ClassLoader classLoader, String resource, int polyphony) throws IOException, UnsupportedAudioFileException {
+        Objects.requireNonNull(resource);
+        return newSoundClip(new Key("resource", new Identity(classLoader), resource),
+                () -> AudioResourceLoader.getAudioInputStream(classLoader, resource), polyphony);
+    }
+
+    // encoded audio file content, keyed by its hash
+    public SoundClip newSoundClip(byte[] content, int polyphony) throws IOException, UnsupportedAudioFileException {
+        return newSoundClip(new Key("content", sha256(content)),
+                () -> AudioSystem.getAudioInputStream(new ByteArrayInputStream(content)), polyphony);
+    }
+
+    private SoundClip newSoundClip(Key key, Source source, int polyphony) throws IOException, UnsupportedAudioFileException {
+        Entry entry;
+        boolean loader = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+                missCount ++;
+                loader = true;
+            }
+            else hitCount ++;
+            // pins the entry, while it is loading as well
+            entry.references ++;
+        }
+
+        PcmStorage pcm;
+        try {
+            pcm = loader ? entry.load(source, storage, sampleRate) : entry.await();
+        }
+        catch (IOException | UnsupportedAudioFileException | RuntimeException | Error e) {
+            synchronized (this) {
+                entry.references --;
+                // only the loader knows the entry failed, a waiter may just have been interrupted meanwhile
+                if (loader && entries.get(key) == entry) entries.remove(key);
+            }
+            throw e;
+        }
+        if (loader) {
+            synchronized (this) {
+                // counted while it is in the map only, trim subtracts it when it evicts it
+                if (entries.get(key) == entry) {
+                    memoryUsage += entry.size;
+                    trim();
+                }
+            }
+        }
+
+        Entry loaded = entry;
+        return new SoundClip(pcm, polyphony, () -> release(loaded));
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.references --;
+        if (entry.references == 0) trim();
+    }
+
+    // LinkedHashMap in access order, so iteration goes least recently used first
+    private void trim() {
+        for (Iterator<Entry> iterator = entries.values().iterator(); memoryUsage > memoryBudget && iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (entry.references == 0 && entry.isLoaded()) {
+                iterator.remove();
+                memoryUsage -= entry.size;
+                evictionCount ++;
+            }
+        }
+    }
+
+    // evicts every entry that is not in use
+    public synchronized void clear() {
+        long budget = memoryBudget;
+        memoryBudget = 0;
+        trim();
+        memoryBudget = budget;
+    }
+
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) throw new IllegalArgumentException("memoryBudget < 0");
+        this.memoryBudget = memoryBudget;
+        trim();
+    }
+
+    // bytes of PCM data held, including entries still in use
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SampleCache[entries=%d, usage=%d/%d bytes, hits=%d, misses=%d, evictions=%d]",
+                entries.size(), memoryUsage, memoryBudget, hitCount, missCount, evictionCount);
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every Java platform implementation supports SHA-256
+            throw new AssertionError(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Source {
+        AudioInputStream open() throws IOException, UnsupportedAudioFileException;
+    }
+
+    private static final class Key {
+        private final Object[] parts;
+
+        private Key(Object... parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(parts, ((Key) obj).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(parts);
+        }
+    }
+
+    // class loaders are compared by identity
+    private static final class Identity {
+        private final Object object;
+
+        private Identity(Object object) {
+            this.object = object;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Identity && ((Identity) obj).object == object;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(object);
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private int references;
+        private long size;
+        private PcmStorage pcm;
+        private Throwable failure;
+
+        private Entry(Key key) {
+            this.key = key;
+        }
+
+        private PcmStorage load(Source source, SoundClip.Storage storage, float sampleRate) throws IOException, UnsupportedAudioFileException {
+            try {
+                PcmStorage pcm = PcmStorage.load(source.open(), storage, sampleRate);
+                synchronized (this) {
+                    this.pcm = pcm;
+                    this.size = pcm.byteSize();
+                    notifyAll();
+                }
+                return pcm;
+            }
+            catch (IOException | UnsupportedAudioFileException | RuntimeException | Error e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                throw e;
+            }
+        }
+
+        private synchronized PcmStorage await() throws IOException {
+            while (pcm == null && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + key.parts[1]);
+                }
+            }
+            if (failure != null) throw new IOException("Loading " + key.parts[1] + " failed", failure);
+            return pcm;
+        }
+
+        private synchronized boolean isLoaded() {
+            return pcm != null;
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.tianscar.jamplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/*
+ * Normalized float samples to signed 16-bit, rounded to nearest and
+ * clipped, optionally with TPDF dither. The source is never modified.
+ *
+ * The plain loop is branch-free (ternaries compile to min/max) so C2
+ * can auto-vectorize it; samples are biased into the positive range
+ * so that the truncating cast rounds. Buffers are filled in bulk
+ * through a short[] scratch, which on a matching byte order is a
+ * straight memory copy.
+ *
+ * Not thread-safe, every player owns one.
+ */
+public class SampleConverter {
+
+    private static final float SCALE = 32767f;
+    private static final float BIAS = 32768.5f;
+    private static final float MAX_BIASED = 65535f;
+    private static final int SCRATCH_LENGTH = 4096;
+
+    private final short[] scratch = new short[SCRATCH_LENGTH];
+    private int seed;
+
+    public SampleConverter() {
+        this(System.nanoTime());
+    }
+
+    // a fixed seed makes the dither reproducible
+    public SampleConverter(long seed) {
+        this.seed = (int) (seed ^ (seed >>> 32)) | 1;
+    }
+
+    public void toPcm16(float[] source, int offset, int length, short[] destination, int destinationOffset, boolean dither) {
+        if (offset < 0 || offset + length > source.length) throw new ArrayIndexOutOfBoundsException(offset + length);
+        if (destinationOffset < 0 || destinationOffset + length > destination.length) {
+            throw new ArrayIndexOutOfBoundsException(destinationOffset + length);
+        }
+        if (dither) convertDithered(source, offset, length, destination, destinationOffset);
+        else convert(source, offset, length, destination, destinationOffset);
+    }
+
+    public void toPcm16(float[] source, int offset, int length, ShortBuffer destination, boolean dither) {
+        if (destination.remaining() < length) throw new IndexOutOfBoundsException("destination has " + destination.remaining() + " remaining, need " + length);
+        if (!destination.isDirect() && destination.hasArray()) {
+            toPcm16(source, offset, length, destination.array(), destination.arrayOffset() + destination.position(), dither);
+            destination.position(destination.position() + length);
+            return;
+        }
+        for (int done = 0; done < length; done += SCRATCH_LENGTH) {
+            int n = Math.min(SCRATCH_LENGTH, length - done);
+            toPcm16(source, offset + done, n, scratch, 0, dither);
+            destination.put(scratch, 0, n);
+        }
+    }
+
+    // in the buffer's byte order, advances its position by length * 2
+    public void toPcm16(float[] source, int offset, int length, ByteBuffer destination, boolean dither) {
+        if (destination.remaining() < length * 2) throw new IndexOutOfBoundsException("destination has " + destination.remaining() + " remaining, need " + length * 2);
+        toPcm16(source, offset, length, destination.asShortBuffer(), dither);
+        destination.position(destination.position() + length * 2);
+    }
+
+    private static void convert(float[] source, int offset, int length, short[] destination, int destinationOffset) {
+        for (int i = 0; i < length; i ++) {
+            float sample = source[offset + i] * SCALE + BIAS;
+            sample = sample > MAX_BIASED ? MAX_BIASED : sample;
+            sample = sample < 0f ? 0f : sample;
+            destination[destinationOffset + i] = (short) ((int) sample - 32768);
+        }
+    }
+
+    // triangular PDF dither of +-1 LSB, the difference of two uniform randoms
+    private void convertDithered(float[] source, int offset, int length, short[] destination, int destinationOffset) {
+        int seed = this.seed;
+        for (int i = 0; i < length; i ++) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            float random0 = (seed >>> 8) * (1f / 16777216f);
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            float random1 = (seed >>> 8) * (1f / 16777216f);
+
+            float sample = source[offset + i] * SCALE + BIAS + (random0 - random1);
+            sample = sample > MAX_BIASED ? MAX_BIASED : sample;
+            sample = sample < 0f ? 0f : sample;
+            destination[destinationOffset + i] = (short) ((int) sample - 32768);
+        }
+        this.seed = seed;
+    }
+
+}
@@ -0,0 +1,230 @@
+package com.tianscar.jamplayer;
+
+import com.tianscar.javasound.sampled.AudioResourceLoader;
+
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EventListener;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.tianscar.jamplayer.Utils.*;
+
+/*
+ * Decodes a manifest of named sound resources concurrently on an
+ * executor, one task per entry. Every entry gets its own future;
+ * futures and progress listeners complete on the executor thread
+ * that decoded the entry, in completion order.
+ *
+ * With a SampleCache, clips are created through the cache, so
+ * resources already decoded are shared instead of decoded again.
+ */
+public class SoundBankLoader {
+
+    private final Executor executor;
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    private final SoundClip.Storage storage;
+    public SoundClip.Storage getStorage() {
+        return storage;
+    }
+
+    private final float sampleRate;
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    private final SampleCache sampleCache;
+    public SampleCache getSampleCache() {
+        return sampleCache;
+    }
+
+    private final LinkedHashMap<String, Resource> manifest = new LinkedHashMap<>();
+    private final List<ProgressListener> listeners = new CopyOnWriteArrayList<>();
+
+    public SoundBankLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public SoundBankLoader(Executor executor) {
+        this(executor, SoundClip.Storage.FLOAT);
+    }
+
+    public SoundBankLoader(Executor executor, SoundClip.Storage storage) {
+        this(executor, storage, DEFAULT_AUDIO_FORMAT.getSampleRate());
+    }
+
+    // clips converted to sampleRate while loading, that of the SoundMuxer playing them
+    public SoundBankLoader(Executor executor, SoundClip.Storage storage, float sampleRate) {
+        this(executor, storage, checkSampleRate(sampleRate), null);
+    }
+
+    // clips share their PCM through the cache, in the cache's storage and sample rate
+    public SoundBankLoader(Executor executor, SampleCache sampleCache) {
+        this(executor, sampleCache.getStorage(), sampleCache.getSampleRate(), sampleCache);
+    }
+
+    private SoundBankLoader(Executor executor, SoundClip.Storage storage, float sampleRate, SampleCache sampleCache) {
+        this.executor = Objects.requireNonNull(executor);
+        this.storage = Objects.requireNonNull(storage);
+        this.sampleRate = sampleRate;
+        this.sampleCache = sampleCache;
+    }
+
+    public void addProgressListener(ProgressListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeProgressListener(ProgressListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized SoundBankLoader add(String name, File file, int polyphony) {
+        Objects.requireNonNull(file);
+        return add(name, polyphony, () -> sampleCache != null ? sampleCache.newSoundClip(file, polyphony) :
+                new SoundClip(AudioSystem.getAudioInputStream(file), polyphony, storage, sampleRate));
+    }
+
+    public synchronized SoundBankLoader add(String name, ClassLoader classLoader, String resource, int polyphony) {
+        Objects.requireNonNull(resource);
+        return add(name, polyphony, () -> sampleCache != null ? sampleCache.newSoundClip(classLoader, resource, polyphony) :
+                new SoundClip(AudioResourceLoader.getAudioInputStream(classLoader, resource), polyphony, storage, sampleRate));
+    }
+
+    // encoded audio file content
+    public synchronized SoundBankLoader add(String name, byte[] content, int polyphony) {
+        Objects.requireNonNull(content);
+        return add(name, polyphony, () -> sampleCache != null ? sampleCache.newSoundClip(content, polyphony) :
+                new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(content)), polyphony, storage, sampleRate));
+    }
+
+    private SoundBankLoader add(String name, int polyphony, Resource resource) {
+        Objects.requireNonNull(name);
+        if (polyphony < 1) throw new IllegalArgumentException("polyphony < 1");
+        if (manifest.containsKey(name)) throw new IllegalArgumentException("Duplicate entry: " + name);
+        manifest.put(name, resource);
+        return this;
+    }
+
+    public synchronized void remove(String name) {
+        manifest.remove(name);
+    }
+
+    public synchronized int size() {
+        return manifest.size();
+    }
+
+    /*
+     * Submits every entry of the manifest and returns immediately.
+     * The map iterates in manifest order. Every call decodes the
+     * whole manifest again (unless cached) and creates new clips.
+     */
+    public Map<String, CompletableFuture<SoundClip>> load() {
+        Map<String, Resource> manifest;
+        synchronized (this) {
+            manifest = new LinkedHashMap<>(this.manifest);
+        }
+        int total = manifest.size();
+        AtomicInteger completed = new AtomicInteger();
+
+        Map<String, CompletableFuture<SoundClip>> futures = new LinkedHashMap<>(total * 2);
+        for (Map.Entry<String, Resource> entry : manifest.entrySet()) {
+            String name = entry.getKey();
+            Resource resource = entry.getValue();
+            CompletableFuture<SoundClip> future = new CompletableFuture<>();
+            futures.put(name, future);
+            try {
+                executor.execute(() -> {
+                    if (future.isDone()) return;
+                    SoundClip clip = null;
+                    Throwable failure = null;
+                    try {
+                        clip = resource.load();
+                    }
+                    catch (IOException | UnsupportedAudioFileException | RuntimeException | Error e) {
+                        failure = e;
+                    }
+                    try {
+                        // before the future, so whoever waits for it has seen the progress
+                        broadcastProgress(name, completed.incrementAndGet(), total, failure);
+                    }
+                    finally {
+                        if (failure == null) {
+                            // cancelled meanwhile, nobody will ever close the clip
+                            if (!future.complete(clip)) clip.close();
+                        }
+                        else future.completeExceptionally(failure);
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                // rejected, e.g. the executor was shut down
+                try {
+                    broadcastProgress(name, completed.incrementAndGet(), total, e);
+                }
+                finally {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(futures);
+    }
+
+    /*
+     * Completes once every entry is done. If any entry failed,
+     * completes exceptionally with its failure, after closing the
+     * clips which did load.
+     */
+    public CompletableFuture<Map<String, SoundClip>> loadAll() {
+        Map<String, CompletableFuture<SoundClip>> futures = load();
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, failure) -> {
+                    Map<String, SoundClip> clips = new LinkedHashMap<>(futures.size() * 2);
+                    for (Map.Entry<String, CompletableFuture<SoundClip>> entry : futures.entrySet()) {
+                        if (!entry.getValue().isCompletedExceptionally()) clips.put(entry.getKey(), entry.getValue().join());
+                    }
+                    if (failure != null) {
+                        for (SoundClip clip : clips.values()) {
+                            clip.close();
+                        }
+                        throw failure instanceof CompletionException ?
+                                (CompletionException) failure : new CompletionException(failure);
+                    }
+                    return Collections.unmodifiableMap(clips);
+                });
+    }
+
+    private void broadcastProgress(String name, int completed, int total, Throwable failure) {
+        for (ProgressListener listener : listeners) {
+            listener.update(name, completed, total, failure);
+        }
+    }
+
+    @FunctionalInterface
+    public interface ProgressListener extends EventListener {
+
+        // failure is null if the entry loaded
+        void update(String name, int completed, int total, Throwable failure);
+
+    }
+
+    @FunctionalInterface
+    private interface Resource {
+        SoundClip load() throws IOException, UnsupportedAudioFileException;
+    }
+
+}
@@ -1,34 +1,151 @@
 package com.tianscar.jamplayer;
 
 import javax.sound.sampled.*;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.tianscar.jamplayer.Utils.*;
 import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
 
 public class SoundClip implements AutoCloseable {
 
-	private final LinkedBlockingDeque<SoundClipCursor> available;
-	private final float[] pcm;
+	/*
+	 * Control path: API threads take instances from a lock-free free-list
+	 * and send commands through a lock-free ring. Whichever thread holds
+	 * the render role (the one calling read, normally) applies them at
+	 * the start of a block and is the only one touching the render state
+	 * of the cursors. A producer finding the ring full applies the
+	 * commands itself if nobody is rendering, so a clip which is not
+	 * open never blocks its callers.
+	 * Commands sent for a frame time still ahead wait in the schedule;
+	 * the block they fall into is rendered up to their frame, then they
+	 * are applied and the rest of the block is rendered.
+	 */
+	private final IndexStack available;
+	private final CommandRing commands = new CommandRing(COMMAND_RING_SIZE);
+	private final AtomicReference<Thread> renderer = new AtomicReference<>();
+	// whether mixVoices gives up the render role collectVoices took
+	private boolean releaseAfterMix;
+	// render role only: the commands waiting for their frame time, the frame time of the block being rendered
+	private final CommandSchedule schedule = new CommandSchedule(SCHEDULE_SIZE);
+	private final CommandRing.Command scheduledCommand = new CommandRing.Command();
+	private long renderFrameTime;
+	// schedule.size(), for isIdle
+	private volatile int scheduledCount;
+	// rendering cursors and tails, only written by the render role
+	private volatile int activeVoices;
+	int getActiveVoiceCount() {
+		return activeVoices;
+	}
+
+	// whether the muxer mixes this clip, or it is on its way there, see SoundMuxer.wake
+	final AtomicBoolean muxerActive = new AtomicBoolean();
+	SoundClip nextWoken;
+	// muxer thread only: index among the muxer's active clips, whether among its clips at all
+	int muxerIndex = NOT_SPECIFIED;
+	boolean muxerMember;
+	private static final int COMMAND_RING_SIZE = 1024;
+	private static final int SCHEDULE_SIZE = 64;
+	// END: a scheduled stop, which ends the play like the end of the clip does
+	private static final int START = 0, STOP = 1, RELEASE = 2, SEEK = 3, VOLUME = 4, SPEED = 5, STEAL = 6, PAN = 7, END = 8;
+	// the frame time of commands applied with the next block
+	static final long NOW = Long.MIN_VALUE;
+	private final PcmStorage storage;
+	private final PcmStream stream;
+	// what the render paths read from: the float storage itself, the head of the stream,
+	// or the window, which 16-bit storage and the stream's rings are converted/copied to
+	private float[] source;
+	private int sourceBase;
+	private final float[] window;
+	private static final int WINDOW_FRAMES = 1024;
+	// render role only: the stereo of a voice on its way to other channel layouts
+	private float[] routeBuffer = new float[0];
 
-	private final int frameLength;
+	// for a stream, an upper bound until its end was decoded
+	private int frameLength;
+	// mono storage is spread to both channels while mixing, streams are always stereo
+	private final int channels;
+	public int getChannels() {
+		return channels;
+	}
 	private final SoundClipCursor[] cursors;
 	private final int polyphony;
 	public int getPolyphony() {
 		return polyphony;
 	}
 
+	// plays which may be stolen, guarded by itself but for offer
+	private final VoiceHeap victims;
+	private volatile VoiceStealing voiceStealing = VoiceStealing.NONE;
+	public VoiceStealing getVoiceStealing() {
+		return voiceStealing;
+	}
+	/*
+	 * A play which finds a free instance stays lock-free whatever the
+	 * policy, one which has to steal locks out the other thieves of this
+	 * clip for O(log polyphony).
+	 */
+	public void setVoiceStealing(VoiceStealing voiceStealing) {
+		Objects.requireNonNull(voiceStealing);
+		synchronized (victims) {
+			this.voiceStealing = voiceStealing;
+			victims.setPolicy(voiceStealing);
+		}
+	}
+
+	private volatile Interpolation interpolation = Interpolation.LINEAR;
+	public Interpolation getInterpolation() {
+		return interpolation;
+	}
+	// for every speed but 1, picked up with the next block
+	public void setInterpolation(Interpolation interpolation) {
+		this.interpolation = Objects.requireNonNull(interpolation);
+	}
+
+	private volatile PanLaw panLaw = PanLaw.CONSTANT_POWER;
+	public PanLaw getPanLaw() {
+		return panLaw;
+	}
+	// for the pans set, and the instances started, afterwards
+	public void setPanLaw(PanLaw panLaw) {
+		this.panLaw = Objects.requireNonNull(panLaw);
+	}
+
+	// stolen voices fading out, render state only; the first tailCount are rendering
+	private final SoundClipCursor[] tails;
+	private int tailCount;
+
 	private SoundClipPlayer player;
-	private SoundMuxer soundMuxer;
+	private volatile Thread playbackThread;
+	private volatile SoundMuxer soundMuxer;
 	public SoundMuxer getSoundMuxer() {
 		return soundMuxer;
 	}
 
+	// frames read so far
+	private volatile long frameTime;
+	/*
+	 * The clock of the scheduled commands (startAt, stopAt, setVolumeAt
+	 * and so on): the frame the next block starts at. The SoundMuxer's
+	 * if opened on one, otherwise the frames read so far.
+	 */
+	public long getFrameTime() {
+		SoundMuxer soundMuxer = this.soundMuxer;
+		return soundMuxer != null ? soundMuxer.getFrameTime() : frameTime;
+	}
+
 	private volatile boolean open;
 	public boolean isOpen() {
 		return open;
@@ -38,7 +155,39 @@ public class SoundClip implements AutoCloseable {
 		return playing;
 	}
 
+	private volatile boolean dither;
+	public boolean isDither() {
+		return dither;
+	}
+	// TPDF dither when converting to 16-bit output
+	public void setDither(boolean dither) {
+		this.dither = dither;
+	}
+
 	private final List<SoundListener> listeners;
+	private final AtomicReference<Runnable> releaser = new AtomicReference<>();
+	private volatile boolean released;
+	private final EventDispatcher.Target eventTarget = this::deliverEvent;
+
+	private volatile EventDispatcher eventDispatcher = EventDispatcher.getDefault();
+	public EventDispatcher getEventDispatcher() {
+		return eventDispatcher;
+	}
+	// null calls the listeners right on the thread raising an event, the render thread included
+	public void setEventDispatcher(EventDispatcher eventDispatcher) {
+		this.eventDispatcher = eventDispatcher;
+	}
+
+	// disabled until told otherwise, see RenderMetrics
+	private final RenderMetrics metrics = new RenderMetrics();
+	public RenderMetrics getMetrics() {
+		return metrics;
+	}
+	// where dropped plays, events and decoding are counted: the SoundMuxer's if opened on one
+	private RenderMetrics metrics() {
+		SoundMuxer soundMuxer = this.soundMuxer;
+		return soundMuxer != null ? soundMuxer.getMetrics() : metrics;
+	}
 
 	public void addSoundListener(SoundListener listener) {
 		listeners.add(listener);
@@ -49,50 +198,191 @@ public class SoundClip implements AutoCloseable {
 	}
 
 	public SoundClip(float[] pcm, int polyphony) {
-		this.pcm = pcm;
-		this.frameLength = pcm.length / 2;
+		this(pcm, 2, polyphony);
+	}
+
+	// interleaved stereo if channels is 2, mono if 1
+	public SoundClip(float[] pcm, int channels, int polyphony) {
+		this(PcmStorage.of(pcm, channels), polyphony);
+	}
+
+	public SoundClip(short[] pcm, int polyphony) {
+		this(pcm, 2, polyphony);
+	}
+
+	public SoundClip(short[] pcm, int channels, int polyphony) {
+		this(PcmStorage.of(pcm, channels), polyphony);
+	}
+
+	/*
+	 * 16-bit samples in the buffer's byte order, from its position to its limit.
+	 * A direct or memory-mapped buffer keeps the PCM off the heap.
+	 */
+	public SoundClip(ByteBuffer pcm, int polyphony) {
+		this(pcm, 2, polyphony);
+	}
+
+	// as above, mono if channels is 1
+	public SoundClip(ByteBuffer pcm, int channels, int polyphony) {
+		this(PcmStorage.of(pcm, channels), polyphony);
+	}
+
+	/*
+	 * Streaming: only the beginning is decoded up front, the rest while
+	 * playing. source is opened again whenever an instance jumps back
+	 * past the beginning or far ahead, so it must be reopenable.
+	 */
+	public SoundClip(StreamSource source, int polyphony) throws IOException, UnsupportedAudioFileException {
+		this(source, polyphony, DEFAULT_AUDIO_FORMAT.getSampleRate());
+	}
+
+	// converted to sampleRate while decoding
+	public SoundClip(StreamSource source, int polyphony, float sampleRate) throws IOException, UnsupportedAudioFileException {
+		this(null, new PcmStream(source, checkSampleRate(sampleRate)), polyphony);
+	}
+
+	private SoundClip(PcmStorage storage, int polyphony) {
+		this(storage, null, polyphony);
+	}
+
+	private SoundClip(PcmStorage storage, PcmStream stream, int polyphony) {
+		this.storage = storage;
+		this.stream = stream;
+		this.channels = storage != null ? storage.channels : 2;
+		this.frameLength = storage != null ? storage.length() / channels : stream.getFrameLength();
 		this.polyphony = polyphony;
+		this.source = storage != null ? storage.array() : null;
+		this.window = source != null ? null : new float[WINDOW_FRAMES * 2];
 		
-		available = new LinkedBlockingDeque<>(polyphony);
+		available = new IndexStack(polyphony);
+		victims = new VoiceHeap(polyphony, voiceStealing);
 		cursors = new SoundClipCursor[polyphony];
+		// the decoder of a stream serves one reader per instance, so stolen voices of a stream are cut instead
+		tails = new SoundClipCursor[stream != null ? 0 : polyphony];
+		if (stream != null) stream.setMetrics(metrics);
+		for (int i = 0; i < tails.length; i ++) {
+			tails[i] = new SoundClipCursor(NOT_SPECIFIED);
+		}
 		
-		for (int i = 0; i < polyphony; i ++) {
+		// pushed backwards, so instances are obtained in order
+		for (int i = polyphony - 1; i >= 0; i --) {
 			cursors[i] = new SoundClipCursor(i);
+			if (stream != null) cursors[i].reader = stream.newReader();
 			cursors[i].resetInstance();
-			available.add(cursors[i]);
+			available.push(i);
 		}
 
 		listeners = new CopyOnWriteArrayList<>();
+		// stops the decoder thread, which can't be restarted: see close
+		if (stream != null) releaser.set(stream::close);
 	}
 
 	public SoundClip(AudioInputStream stream, int polyphony) throws IOException {
-		this(load(getSupportedAudioInputStream(DEFAULT_AUDIO_FORMAT, stream)), polyphony);
+		this(stream, polyphony, Storage.FLOAT);
 	}
 
-	private static float[] load(AudioInputStream stream) throws IOException {
-		byte[] buffer = readNBytes(stream, MAX_BUFFER_SIZE / 2);
-		closeQuietly(stream);
+	public SoundClip(AudioInputStream stream, int polyphony, Storage storage) throws IOException {
+		this(stream, polyphony, storage, DEFAULT_AUDIO_FORMAT.getSampleRate());
+	}
 
-		// stereo output, so two entries per frame
-		float[] tmp = new float[buffer.length * 2];
-		int bufferIndex = 0;
-		for (int i = 0; i < tmp.length; i ++) {
-			tmp[i] = ((buffer[bufferIndex ++] & 0xFF) | (buffer[bufferIndex ++] << 8)) / 32767f;
-		}
+	/*
+	 * Converted to sampleRate once, while loading, so a SoundMuxer at
+	 * that rate plays the clip without converting anything per voice.
+	 */
+	public SoundClip(AudioInputStream stream, int polyphony, Storage storage, float sampleRate) throws IOException {
+		this(PcmStorage.load(stream, storage, checkSampleRate(sampleRate)), polyphony);
+	}
+
+	// shares the storage with other clips, releaser is run once when this clip is closed
+	SoundClip(PcmStorage storage, int polyphony, Runnable releaser) {
+		this(storage, polyphony);
+		this.releaser.set(releaser);
+	}
+
+	public Storage getStorage() {
+		return stream != null ? Storage.STREAM : storage.type();
+	}
+
+	// NOT_SPECIFIED for raw PCM, which plays at the rate of whatever plays it
+	public float getSampleRate() {
+		return stream != null ? stream.getSampleRate() : storage.sampleRate;
+	}
+
+	// what frames are timed at: the PCM's own rate, for raw PCM the output's
+	private float getFrameRate() {
+		float sampleRate = getSampleRate();
+		if (sampleRate != NOT_SPECIFIED) return sampleRate;
+		SoundMuxer soundMuxer = this.soundMuxer;
+		return soundMuxer != null ? soundMuxer.getAudioFormat().getSampleRate() : DEFAULT_AUDIO_FORMAT.getSampleRate();
+	}
+
+	public long getStorageByteSize() {
+		return stream != null ? stream.byteSize() : storage.byteSize();
+	}
 
-		return tmp;
+	private void checkNotStreaming() {
+		if (stream != null) throw new UnsupportedOperationException("Not available for streaming clips");
 	}
 
+	// interleaved as stored, see getChannels
 	public float[] copyPCM() {
-		return Arrays.copyOf(pcm, pcm.length);
+		checkNotStreaming();
+		float[] pcm = new float[storage.length()];
+		storage.get(0, pcm, 0, pcm.length);
+		return pcm;
+	}
+
+	/*
+	 * Pre-decoded cache file: raw 16-bit little-endian, in the clip's
+	 * channels, which mapPCM maps back in without decoding again.
+	 */
+	public void savePCM(File file) throws IOException {
+		checkNotStreaming();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			float[] window = new float[WINDOW_FRAMES * 2];
+			ByteBuffer bytes = ByteBuffer.allocate(window.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+			SampleConverter sampleConverter = new SampleConverter();
+			for (int index = 0, length = storage.length(); index < length; index += window.length) {
+				int n = Math.min(window.length, length - index);
+				storage.get(index, window, 0, n);
+				bytes.clear();
+				sampleConverter.toPcm16(window, 0, n, bytes, false);
+				bytes.flip();
+				while (bytes.hasRemaining()) channel.write(bytes);
+			}
+		}
+	}
+
+	public static SoundClip mapPCM(File file, int polyphony) throws IOException {
+		return mapPCM(file, 2, polyphony);
+	}
+
+	public static SoundClip mapPCM(File file, int channels, int polyphony) throws IOException {
+		PcmStorage.checkChannels(channels);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > MAX_BUFFER_SIZE) throw new IOException(file + " is too large");
+			// the mapping stays valid after the channel is closed
+			return new SoundClip(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size() - channel.size() % (channels * 2))
+					.order(ByteOrder.LITTLE_ENDIAN), channels, polyphony);
+		}
 	}
 
 	public void open() throws LineUnavailableException {
-		open(null, DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY);
+		open((Mixer) null, DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY);
 	}
 
 	public void open(int bufferFrames) throws LineUnavailableException {
-		open(null, bufferFrames, Thread.MAX_PRIORITY);
+		open((Mixer) null, bufferFrames, Thread.MAX_PRIORITY);
+	}
+
+	// before the render thread starts, or the muxer gets the clip: routing a block of up to frames then allocates nothing
+	private void reserveRouteBuffer(int frames) {
+		if (routeBuffer.length < frames * 2) routeBuffer = new float[frames * 2];
+	}
+
+	private void checkNotReleased() {
+		if (released) throw new IllegalStateException("The SoundClip let go of its PCM when closed, it can't be opened again");
 	}
 
 	private static final AtomicInteger nextSerialNumber = new AtomicInteger();
@@ -100,70 +390,115 @@ public class SoundClip implements AutoCloseable {
 		return nextSerialNumber.getAndIncrement();
 	}
 	public void open(Mixer mixer, int bufferFrames, int threadPriority) throws LineUnavailableException {
+		open(new LineAudioSink(mixer), bufferFrames, threadPriority);
+	}
+
+	public void open(AudioSink audioSink, int bufferFrames, int threadPriority) throws LineUnavailableException {
 		if (open) return;
+		checkNotReleased();
 
 		threadPriority = clamp(threadPriority, Thread.MIN_PRIORITY, Thread.MAX_PRIORITY);
 		
-		player = new SoundClipPlayer(mixer, bufferFrames);
+		player = new SoundClipPlayer(audioSink, bufferFrames);
+		reserveRouteBuffer(bufferFrames);
 		Thread t = new Thread(player, "SoundClipPlayback-" + serialNumber());
+		playbackThread = t;
 
 		t.setPriority(threadPriority);
 		open = true;
 		t.start();
 
-		broadcastEvent(new SoundEvent(this, SoundEvent.Type.OPEN, NOT_SPECIFIED, 0));
+		broadcastEvent(SoundEvent.Type.OPEN, NOT_SPECIFIED, 0);
 	}
 
 	public void open(SoundMuxer soundMuxer) {
 		if (open) return;
+		checkNotReleased();
+		float sampleRate = getSampleRate();
+		if (sampleRate != NOT_SPECIFIED && sampleRate != soundMuxer.getAudioFormat().getSampleRate()) {
+			throw new IllegalArgumentException("The SoundClip was loaded at " + sampleRate + " Hz, the SoundMuxer plays at " +
+					soundMuxer.getAudioFormat().getSampleRate() + " Hz");
+		}
 		open = true;
 		// default: SoundClip is open
 		playing = true;
 		this.soundMuxer = soundMuxer;
+		if (stream != null) stream.setMetrics(soundMuxer.getMetrics());
+		// the muxer mixes blocks of up to its bufferFrames
+		reserveRouteBuffer(soundMuxer.getBufferFrames());
 
 		soundMuxer.addClip(this);
 		soundMuxer.updateClips();
+		// played before it was opened: no command since could have woken it up
+		if (!isIdle() && muxerActive.compareAndSet(false, true)) soundMuxer.wake(this);
 
-		broadcastEvent(new SoundEvent(this, SoundEvent.Type.OPEN, NOT_SPECIFIED, NOT_SPECIFIED));
+		broadcastEvent(SoundEvent.Type.OPEN, NOT_SPECIFIED, NOT_SPECIFIED);
 	}
 
+	/*
+	 * Stops playback. A clip sharing its PCM with others, such as one of a
+	 * SampleCache, or streaming it, also lets go of it here, after its
+	 * playback stopped: closed, it can't be opened again.
+	 */
 	public void close() {
-		if (!open) return;
+		if (open) closeOutput();
+		Runnable releaser = this.releaser.getAndSet(null);
+		if (releaser != null) {
+			released = true;
+			releaser.run();
+		}
+		metrics.unregisterMBean();
+	}
 
+	private void closeOutput() {
 		if (soundMuxer != null) {
 			soundMuxer.removeClip(this);
 			soundMuxer.updateClips();
 			soundMuxer = null;
+			if (stream != null) stream.setMetrics(metrics);
+		}
+		else {
+			player.stopRunning();
+			// the sink is drained and closed once close returns, so open may open it again
+			Thread playbackThread = this.playbackThread;
+			this.playbackThread = null;
+			awaitPlayback(playbackThread, player.audioSink);
 		}
-		else player.stopRunning();
 		
 		open = false;
-		broadcastEvent(new SoundEvent(this, SoundEvent.Type.CLOSE, NOT_SPECIFIED, NOT_SPECIFIED));
+		broadcastEvent(SoundEvent.Type.CLOSE, NOT_SPECIFIED, NOT_SPECIFIED);
 	}
 
+	// NOT_SPECIFIED for a stream of unknown length, until its end was decoded
 	public int getFrameLength() {
-		return frameLength;
+		if (stream == null) return frameLength;
+		else return stream.isFrameLengthKnown() ? stream.getFrameLength() : NOT_SPECIFIED;
 	}
 
 	public long getMicrosecondLength() {
-		return (long)((frameLength * 1_000_000.0) / DEFAULT_AUDIO_FORMAT.getFrameRate());
+		int frameLength = getFrameLength();
+		if (frameLength == NOT_SPECIFIED) return NOT_SPECIFIED;
+		return (long)((frameLength * 1_000_000.0) / getFrameRate());
 	}
 
 	public int obtainInstance() {
-		SoundClipCursor acc = available.pollLast();
+		int instanceID = available.pop();
 		
-		if (acc == null) return NOT_SPECIFIED;
+		if (instanceID == IndexStack.EMPTY) return NOT_SPECIFIED;
 		else {
+			SoundClipCursor acc = cursors[instanceID];
 			acc.isActive = true;
-			broadcastEvent(new SoundEvent(this, SoundEvent.Type.OBTAIN_INSTANCE, acc.id, acc.cursor));
+			broadcastEvent(SoundEvent.Type.OBTAIN_INSTANCE, acc.id, acc.position);
 			return acc.id;
 		}
 	}
 
 	public void releaseInstance(int instanceID) {
 		cursors[instanceID].resetInstance();
-		available.offerFirst(cursors[instanceID]);
-		broadcastEvent(new SoundEvent(this, SoundEvent.Type.RELEASE_INSTANCE, instanceID, cursors[instanceID].cursor));
+		// sent before the instance can be obtained again, so it is applied before any command of its next owner
+		send(RELEASE, instanceID, 0, 0);
+		available.push(instanceID);
+		broadcastEvent(SoundEvent.Type.RELEASE_INSTANCE, instanceID, 0);
 	}
 
 	public int play() {
@@ -179,39 +514,255 @@ public class SoundClip implements AutoCloseable {
 	}
 	
 	public int play(double leftVolume, double rightVolume, double speed, int loop) {
+		return play(leftVolume, rightVolume, speed, loop, 0);
+	}
+
+	/*
+	 * With every instance taken, a play steals one started by play() under
+	 * the VoiceStealing policy, which fades out shortly. Under
+	 * LOWEST_PRIORITY, a play never steals from a higher priority; against
+	 * a SoundMuxer's voice limit, the volume counts 2^priority times.
+	 */
+	public int play(double leftVolume, double rightVolume, double speed, int loop, int priority) {
+		return playAt(NOW, leftVolume, rightVolume, speed, loop, priority);
+	}
+
+	public int playAt(long frameTime, double leftVolume, double rightVolume, double speed, int loop) {
+		return playAt(frameTime, leftVolume, rightVolume, speed, loop, 0);
+	}
+
+	/*
+	 * play, starting on the very frame frameTime of getFrameTime, or with
+	 * the next block if that has passed. A play stolen for it fades out
+	 * right away.
+	 */
+	public int playAt(long frameTime, double leftVolume, double rightVolume, double speed, int loop, int priority) {
+		VoiceStealing voiceStealing = this.voiceStealing;
+		double volume = Math.max(clamp(leftVolume, 0, 1), clamp(rightVolume, 0, 1));
 		int instanceID = obtainInstance();
-		if (instanceID < 0) return instanceID;
+		if (instanceID < 0 && voiceStealing != VoiceStealing.NONE) instanceID = stealInstance(voiceStealing, priority, volume);
+		if (instanceID < 0) {
+			metrics().recordDroppedPlay();
+			return instanceID;
+		}
 		
 		setVolume(instanceID, leftVolume, rightVolume);
 		setSpeed(instanceID, speed);
 		setLooping(instanceID, loop);
 		setRecycleWhenDone(instanceID, true);
 		
-		start(instanceID);
+		int starts = startInstance(instanceID, priority, frameTime);
+		// lock-free, only a play which has to steal locks victims
+		if (voiceStealing != VoiceStealing.NONE) victims.offer(instanceID, starts, priority, volume);
 
 		return instanceID;
 	}
 
+	// NOT_SPECIFIED if no play may be stolen for this one
+	private int stealInstance(VoiceStealing voiceStealing, int priority, double volume) {
+		synchronized (victims) {
+			for (int instanceID; (instanceID = victims.peek()) != VoiceHeap.EMPTY; ) {
+				SoundClipCursor acc = cursors[instanceID];
+				int playing = victims.getStarts(instanceID) << 1 | 1;
+				if (acc.playState.get() != playing || !acc.recycleWhenDone) {
+					// not the play we know any more, it ended, or its owner kept it
+					victims.remove(instanceID);
+					instanceID = obtainInstance();
+					if (instanceID >= 0) return instanceID;
+					continue;
+				}
+				if (voiceStealing == VoiceStealing.LOWEST_PRIORITY && victims.getPriority(instanceID) > priority) break;
+				if (voiceStealing == VoiceStealing.QUIETEST && victims.getVolume(instanceID) > volume) break;
+				// the same CAS the render thread ends the play with, the winner owns the instance
+				if (!acc.playState.compareAndSet(playing, playing & ~1)) continue;
+
+				victims.remove(instanceID);
+				broadcastEvent(SoundEvent.Type.STOP_INSTANCE, instanceID, acc.position);
+				acc.resetInstance();
+				send(STEAL, instanceID, 0, 0);
+				broadcastEvent(SoundEvent.Type.RELEASE_INSTANCE, instanceID, 0);
+				acc.isActive = true;
+				broadcastEvent(SoundEvent.Type.OBTAIN_INSTANCE, instanceID, acc.position);
+				return instanceID;
+			}
+			return NOT_SPECIFIED;
+		}
+	}
+
 	public void start(int instanceID) {
+		startInstance(instanceID, 0, NOW);
+	}
+
+	/*
+	 * start, on the very frame frameTime of getFrameTime, or with the next
+	 * block if that has passed. The instance counts as playing right away.
+	 */
+	public void startAt(int instanceID, long frameTime) {
+		startInstance(instanceID, 0, frameTime);
+	}
+
+	// returns the number of this start
+	private int startInstance(int instanceID, int priority, long frameTime) {
 		checkActive(instanceID);
 		checkNotPlaying(instanceID);
 
-		cursors[instanceID].instantaneousUpdate();
-		cursors[instanceID].isPlaying = true;
-		broadcastEvent(new SoundEvent(this, SoundEvent.Type.START_INSTANCE, instanceID, cursors[instanceID].cursor));
+		SoundClipCursor acc = cursors[instanceID];
+		// instantaneous, no ramps from the previous play
+		acc.leftVolumeView = acc.newTargetLeftVolume;
+		acc.rightVolumeView = acc.newTargetRightVolume;
+		acc.speedView = acc.newTargetSpeed;
+		int starts = acc.markPlaying();
+		send(VOLUME, instanceID, acc.newTargetLeftVolume, acc.newTargetRightVolume);
+		send(PAN, instanceID, panGain(panLaw, -acc.newPan), panGain(panLaw, acc.newPan));
+		send(SPEED, instanceID, acc.newTargetSpeed, 0);
+		// the START snaps to whatever the targets are by then
+		send(START, instanceID, starts, priority, frameTime);
+		broadcastEvent(SoundEvent.Type.START_INSTANCE, instanceID, acc.position);
+		return starts;
 	}
 
 	public void stop(int instanceID) {
 		checkActive(instanceID);
 		
-		cursors[instanceID].isPlaying = false;
-		broadcastEvent(new SoundEvent(this, SoundEvent.Type.STOP_INSTANCE, instanceID, cursors[instanceID].cursor));
+		cursors[instanceID].markStopped();
+		send(STOP, instanceID, 0, 0);
+		broadcastEvent(SoundEvent.Type.STOP_INSTANCE, instanceID, cursors[instanceID].position);
+	}
+
+	/*
+	 * Stops the play on the very frame frameTime of getFrameTime, or with
+	 * the next block if that has passed, as if the clip ended there: the
+	 * instance counts as playing until then, and is recycled if it was
+	 * started by play. Does nothing if it is stopped or started again by then.
+	 */
+	public void stopAt(int instanceID, long frameTime) {
+		checkActive(instanceID);
+
+		int state = cursors[instanceID].playState.get();
+		if ((state & 1) != 0) send(END, instanceID, state >>> 1, 0, frameTime);
 	}
 
+	// as of the last rendered block while playing
 	public double getFramePosition(int instanceID) {
 		checkActive(instanceID);
 
-		return cursors[instanceID].cursor;
+		return cursors[instanceID].position;
+	}
+
+	private void send(int type, int instanceID, double value0, double value1) {
+		send(type, instanceID, value0, value1, NOW);
+	}
+
+	private void send(int type, int instanceID, double value0, double value1, long frameTime) {
+		CommandRing.Command command;
+		while ((command = commands.claim()) == null) {
+			// full: apply the commands here if nobody is rendering (or this thread is), wait otherwise
+			Thread thread = Thread.currentThread();
+			if (renderer.get() == thread) applyCommands(renderFrameTime);
+			else if (renderer.compareAndSet(null, thread)) {
+				try {
+					applyCommands(renderFrameTime);
+				}
+				finally {
+					renderer.set(null);
+				}
+			}
+			else Thread.yield();
+		}
+		command.type = type;
+		command.instanceID = instanceID;
+		command.value0 = value0;
+		command.value1 = value1;
+		command.frame = frameTime;
+		commands.publish(command);
+
+		// after publishing: a muxer dropping this clip as idle checks the ring after clearing the flag
+		SoundMuxer soundMuxer = this.soundMuxer;
+		if (soundMuxer != null && muxerActive.compareAndSet(false, true)) soundMuxer.wake(this);
+	}
+
+	// nothing to render, nor commands which could change that
+	boolean isIdle() {
+		return activeVoices == 0 && scheduledCount == 0 && commands.isEmpty();
+	}
+
+	// render role only: applies the commands due by the block starting at frameTime, schedules the others
+	private void applyCommands(long frameTime) {
+		renderFrameTime = frameTime;
+		applyScheduled(frameTime);
+		for (CommandRing.Command command; (command = commands.peek()) != null; commands.remove(command)) {
+			if (command.frame > frameTime) schedule.add(command);
+			else applyCommand(command);
+		}
+		scheduledCount = schedule.size();
+	}
+
+	private void applyScheduled(long frameTime) {
+		while (schedule.nextFrame() <= frameTime) {
+			schedule.poll(scheduledCommand);
+			applyCommand(scheduledCommand);
+		}
+	}
+
+	private void applyCommand(CommandRing.Command command) {
+		SoundClipCursor acc = cursors[command.instanceID];
+		switch (command.type) {
+			case START:
+				// stopped, or started again, before its frame time came
+				if (acc.playState.get() != ((int) command.value0 << 1 | 1)) break;
+				acc.starts = (int) command.value0;
+				acc.priorityWeight = Math.scalb(1.0, clamp((int) command.value1, -64, 64));
+				if (!acc.isRendering) activeVoices ++;
+				acc.isRendering = true;
+				// skip the ramps set up by the VOLUME, PAN and SPEED sent along
+				acc.leftVolume = acc.targetLeftVolume;
+				acc.rightVolume = acc.targetRightVolume;
+				acc.leftPan = acc.targetLeftPan;
+				acc.rightPan = acc.targetRightPan;
+				acc.speed = acc.targetSpeed;
+				acc.targetLeftVolumeSteps = acc.targetRightVolumeSteps = acc.targetPanSteps = acc.targetSpeedSteps = 0;
+				acc.channelGains = acc.newChannelGains;
+				// under a voice limit, a voice started within a block is real until the next one
+				acc.real = true;
+				if (stream != null) stream.retry(acc.reader, (int) acc.cursor);
+				break;
+			case STOP:
+				if (acc.isRendering) activeVoices --;
+				acc.isRendering = false;
+				break;
+			case RELEASE:
+				if (acc.isRendering) activeVoices --;
+				acc.isRendering = false;
+				acc.cursor = 0;
+				// nothing scheduled by the previous owner reaches the next one
+				schedule.remove(command.instanceID);
+				break;
+			case STEAL:
+				// the stolen play fades out on a tail while the instance plays the next one
+				if (acc.isRendering) {
+					if (tailCount < tails.length) tails[tailCount ++].fadeOut(acc);
+					else activeVoices --;
+				}
+				acc.isRendering = false;
+				acc.cursor = 0;
+				schedule.remove(command.instanceID);
+				break;
+			case SEEK:
+				acc.cursor = command.value0;
+				break;
+			case VOLUME:
+				acc.rampVolume(command.value0, command.value1);
+				break;
+			case PAN:
+				acc.rampPan(command.value0, command.value1);
+				break;
+			case SPEED:
+				acc.rampSpeed(command.value0);
+				break;
+			case END:
+				endPlay(acc, (int) command.value0);
+				break;
+		}
 	}
 
 	private void checkActive(int instanceID) {
@@ -221,7 +772,7 @@ public class SoundClip implements AutoCloseable {
 	}
 
 	private void checkNotPlaying(int instanceID) {
-		if (cursors[instanceID].isPlaying) {
+		if (cursors[instanceID].isPlaying()) {
 			throw new IllegalStateException("You need to call the function before instance: " + instanceID + " playing");
 		}
 	}
@@ -230,41 +781,48 @@ public class SoundClip implements AutoCloseable {
 		checkActive(instanceID);
 		checkNotPlaying(instanceID);
 		
-		cursors[instanceID].cursor = clamp(framePosition, 0, getFrameLength() - 1);
+		seek(instanceID, clamp(framePosition, 0, frameLength - 1));
+	}
+
+	private void seek(int instanceID, double framePosition) {
+		cursors[instanceID].position = framePosition;
+		send(SEEK, instanceID, framePosition, 0);
 	}
 	
 	public void seekToMicroseconds(int instanceID, long microsecondPosition) {
 		checkActive(instanceID);
 		checkNotPlaying(instanceID);
 
-		double frames = Math.min(((double) DEFAULT_AUDIO_FORMAT.getFrameRate() * microsecondPosition) / 1000_000.0, MAX_BUFFER_SIZE / 2.0);
-		cursors[instanceID].cursor = clamp(frameLength, 0, frames);
+		double frames = Math.min(((double) getFrameRate() * microsecondPosition) / 1000_000.0, MAX_BUFFER_SIZE / 2.0);
+		seek(instanceID, clamp(frameLength, 0, frames));
 	}
 	
 	public double getLeftVolume(int instanceID) {
 		checkActive(instanceID);
 		
-		return cursors[instanceID].isPlaying ? 
-				cursors[instanceID].leftVolume : cursors[instanceID].newTargetLeftVolume; 				
+		return cursors[instanceID].isPlaying() ? 
+				cursors[instanceID].leftVolumeView : cursors[instanceID].newTargetLeftVolume; 				
 	}
 	
 	public double getRightVolume(int instanceID) {
 		checkActive(instanceID);
 		
-		return cursors[instanceID].isPlaying ? 
-				cursors[instanceID].rightVolume : cursors[instanceID].newTargetRightVolume; 				
+		return cursors[instanceID].isPlaying() ? 
+				cursors[instanceID].rightVolumeView : cursors[instanceID].newTargetRightVolume; 				
 	}
 	
 	public void setLeftVolume(int instanceID, double leftVolume) {
 		checkActive(instanceID);
 
 		cursors[instanceID].newTargetLeftVolume = clamp(leftVolume, 0, 1);
+		sendVolume(instanceID);
 	}
 	
 	public void setRightVolume(int instanceID, double rightVolume) {
 		checkActive(instanceID);
 		
 		cursors[instanceID].newTargetRightVolume = clamp(rightVolume, 0, 1);
+		sendVolume(instanceID);
 	}
 	
 	public void setVolume(int instanceID, double volume) {
@@ -276,18 +834,103 @@ public class SoundClip implements AutoCloseable {
 
 		cursors[instanceID].newTargetLeftVolume = clamp(leftVolume, 0, 1);
 		cursors[instanceID].newTargetRightVolume = clamp(rightVolume, 0, 1);
+		sendVolume(instanceID);
+	}
+
+	/*
+	 * setVolume on the very frame frameTime of getFrameTime, ramped from
+	 * there on, or with the next block if that has passed. Scheduled
+	 * changes happen to the play at that time only: the getters report
+	 * them from then on, and a start or setVolume sent meanwhile goes by
+	 * the volumes set before.
+	 */
+	public void setVolumeAt(int instanceID, long frameTime, double leftVolume, double rightVolume) {
+		checkActive(instanceID);
+
+		send(VOLUME, instanceID, clamp(leftVolume, 0, 1), clamp(rightVolume, 0, 1), frameTime);
+	}
+
+	// start() sends the targets along, so only needed while playing
+	private void sendVolume(int instanceID) {
+		if (cursors[instanceID].isPlaying()) {
+			send(VOLUME, instanceID, cursors[instanceID].newTargetLeftVolume, cursors[instanceID].newTargetRightVolume);
+		}
+	}
+
+	public double getPan(int instanceID) {
+		checkActive(instanceID);
+
+		return cursors[instanceID].newPan;
+	}
+
+	/*
+	 * -1 is hard left, 1 hard right. Scales the volumes by the gains of
+	 * the PanLaw, ramped like they are; for stereo sources it balances
+	 * the channels. 0, the default, leaves the volumes as they are.
+	 */
+	public void setPan(int instanceID, double pan) {
+		checkActive(instanceID);
+
+		SoundClipCursor acc = cursors[instanceID];
+		acc.newPan = clamp(pan, -1, 1);
+		if (acc.isPlaying()) send(PAN, instanceID, panGain(panLaw, -acc.newPan), panGain(panLaw, acc.newPan));
+	}
+
+	// setPan on the very frame frameTime, like setVolumeAt; getPan keeps reporting the pan set before
+	public void setPanAt(int instanceID, long frameTime, double pan) {
+		checkActive(instanceID);
+
+		pan = clamp(pan, -1, 1);
+		send(PAN, instanceID, panGain(panLaw, -pan), panGain(panLaw, pan), frameTime);
+	}
+
+	public float[] getChannelGains(int instanceID) {
+		checkActive(instanceID);
+
+		float[] gains = cursors[instanceID].newChannelGains;
+		return gains == null ? null : gains.clone();
+	}
+
+	/*
+	 * Routes the instance to the channels of a SoundMuxer's output,
+	 * after volume and pan: gains[c * 2] of the left channel and
+	 * gains[c * 2 + 1] of the right one go to channel c. Channels past
+	 * the end of gains get nothing. null, the default, plays the left
+	 * and the right on the first two channels, or halved on a single one.
+	 * Changes are ramped over a block.
+	 */
+	public void setChannelGains(int instanceID, float[] gains) {
+		checkActive(instanceID);
+		if (gains != null && gains.length % 2 != 0) throw new IllegalArgumentException("gains.length must be even");
+
+		cursors[instanceID].newChannelGains = gains == null ? null : gains.clone();
+	}
+
+	// the gain of the right channel, or of the left one for -pan; 1 at the center
+	private static double panGain(PanLaw panLaw, double pan) {
+		if (pan == 0) return 1;
+		if (panLaw == PanLaw.LINEAR) return 1 + pan;
+		return Math.sqrt(2) * Math.sin((pan + 1) * Math.PI / 4);
 	}
 	
 	public double getSpeed(int instanceID) {
 		checkActive(instanceID);
 
-		return cursors[instanceID].isPlaying ? cursors[instanceID].speed : cursors[instanceID].newTargetSpeed; 
+		return cursors[instanceID].isPlaying() ? cursors[instanceID].speedView : cursors[instanceID].newTargetSpeed; 
 	}
 	
 	public void setSpeed(int instanceID, double speed) {
 		checkActive(instanceID);
 
 		cursors[instanceID].newTargetSpeed = clamp(speed, 0.125, 8);
+		if (cursors[instanceID].isPlaying()) send(SPEED, instanceID, cursors[instanceID].newTargetSpeed, 0);
+	}
+
+	// setSpeed on the very frame frameTime, like setVolumeAt
+	public void setSpeedAt(int instanceID, long frameTime, double speed) {
+		checkActive(instanceID);
+
+		send(SPEED, instanceID, clamp(speed, 0.125, 8), 0, frameTime);
 	}
 
 	public int getLooping(int instanceID) {
@@ -312,34 +955,163 @@ public class SoundClip implements AutoCloseable {
 	}
 	
 	public boolean isPlaying(int instanceID) {
-		return cursors[instanceID].isPlaying;
+		return cursors[instanceID].isPlaying();
+	}
+
+	boolean hasPlayingInstances() {
+		for (int ci = 0; ci < polyphony; ci ++) {
+			if (cursors[ci].isPlaying()) return true;
+		}
+		return false;
+	}
+	
+	public static final class Storage {
+
+		private final String name;
+
+		private Storage(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		// 32-bit floats on the heap, rendered in place
+		public static final Storage FLOAT = new Storage("Float");
+		// 16-bit samples on the heap, half the memory of FLOAT
+		public static final Storage SHORT = new Storage("Short");
+		// 16-bit samples in a direct buffer, outside of the heap
+		public static final Storage DIRECT = new Storage("Direct");
+		// decoded while playing, see SoundClip(StreamSource, int)
+		public static final Storage STREAM = new Storage("Stream");
+
+	}
+
+	public static final class VoiceStealing {
+
+		private final String name;
+
+		private VoiceStealing(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		// play() gives up once every instance is taken
+		public static final VoiceStealing NONE = new VoiceStealing("None");
+		// steals the play started first
+		public static final VoiceStealing OLDEST = new VoiceStealing("Oldest");
+		// steals the play with the lowest volume given to play(), if not louder than the new one
+		public static final VoiceStealing QUIETEST = new VoiceStealing("Quietest");
+		// steals the oldest play of the lowest priority, if not higher than the new one
+		public static final VoiceStealing LOWEST_PRIORITY = new VoiceStealing("LowestPriority");
+
+	}
+
+	public static final class Interpolation {
+
+		private final String name;
+
+		private Interpolation(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		// straight lines between two frames, the cheapest
+		public static final Interpolation LINEAR = new Interpolation("Linear");
+		// cubic Hermite curves through four frames
+		public static final Interpolation CUBIC = new Interpolation("Cubic");
+		// 32-frame windowed sinc, band-limited to the speed; the cleanest at any pitch, and the most expensive
+		public static final Interpolation SINC = new Interpolation("Sinc");
+
+	}
+
+	public static final class PanLaw {
+
+		private final String name;
+
+		private PanLaw(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		// sin/cos gains, the power of both channels together stays the same, +3 dB on one side at hard pan
+		public static final PanLaw CONSTANT_POWER = new PanLaw("ConstantPower");
+		// gains in proportion to the pan, the amplitudes add up to the same, +6 dB on one side at hard pan
+		public static final PanLaw LINEAR = new PanLaw("Linear");
+
+	}
+
+	@FunctionalInterface
+	public interface StreamSource {
+
+		// a new stream from the beginning on every call
+		AudioInputStream open() throws IOException, UnsupportedAudioFileException;
+
 	}
 	
 	private static class SoundClipCursor {
-		volatile boolean isPlaying;
-		volatile boolean isActive;
 		final int id;
-		
+		PcmStream.Reader reader;
+
+		// control state, written by API threads
+		volatile boolean isActive;
+		// starts << 1 | playing, so a stale end of a play cannot clear a newer one
+		final AtomicInteger playState = new AtomicInteger();
+		volatile int loop;
+		volatile boolean recycleWhenDone;
+		volatile double newTargetLeftVolume, newTargetRightVolume;
+		volatile double newTargetSpeed;
+		volatile double newPan;
+		// read by the render thread once per block, never modified
+		volatile float[] newChannelGains;
+		// published by the render thread after every block
+		volatile double position;
+		volatile double leftVolumeView, rightVolumeView, speedView;
+
+		// render state, only touched by the thread holding the render role
+		boolean isRendering;
+		int starts;
+		// 2^priority, what the volume counts for against a SoundMuxer's voice limit
+		double priorityWeight;
 		double cursor;
 		double speed;
 		double leftVolume, rightVolume;
-		int loop;
-		boolean recycleWhenDone;
+		// gains of the pan, applied on top of the volumes
+		double leftPan = 1, rightPan = 1;
+		// the newChannelGains routed with last
+		float[] channelGains;
+		// under a voice limit, whether the voice is rendered this block or only advanced
+		boolean real;
 
-		double newTargetSpeed;
 		double targetSpeed;
 		double targetSpeedIncr;
 		int targetSpeedSteps;
 		
-		double newTargetLeftVolume;
 		double targetLeftVolume;
 		double targetLeftVolumeIncr;
 		
-		double newTargetRightVolume;
 		double targetRightVolume;
 		double targetRightVolumeIncr;
 
 		int targetLeftVolumeSteps, targetRightVolumeSteps;
+
+		double targetLeftPan = 1, targetRightPan = 1;
+		double targetLeftPanIncr, targetRightPanIncr;
+		int targetPanSteps;
 		
 		SoundClipCursor(int instanceID) {
 			this.id = instanceID;
@@ -351,73 +1123,175 @@ public class SoundClip implements AutoCloseable {
 		 */
 		private void resetInstance() {
 			isActive = false;
-			isPlaying = false;
-			cursor = 0;
+			markStopped();
+			position = 0;
 			
-			leftVolume = rightVolume = 0;
 			newTargetLeftVolume = newTargetRightVolume = 0;
-			targetLeftVolume = targetRightVolume = 0;
-			targetLeftVolumeSteps = targetRightVolumeSteps = 0;
+			leftVolumeView = rightVolumeView = 0;
 			
-			speed = 1;
 			newTargetSpeed = 1;
-			targetSpeed = 1;
-			targetSpeedSteps = 0;
+			speedView = 1;
+
+			newPan = 0;
+			newChannelGains = null;
 			
 			loop = 0;
 			recycleWhenDone = false;
 		}
+
+		private boolean isPlaying() {
+			return (playState.get() & 1) != 0;
+		}
+
+		// returns the number of this start
+		private int markPlaying() {
+			for (;;) {
+				int state = playState.get();
+				int starts = (state >>> 1) + 1;
+				if (playState.compareAndSet(state, starts << 1 | 1)) return starts;
+			}
+		}
+
+		private void markStopped() {
+			for (;;) {
+				int state = playState.get();
+				if ((state & 1) == 0 || playState.compareAndSet(state, state & ~1)) return;
+			}
+		}
+
+		// render thread: play number starts came to its end, false if it was stopped or started again meanwhile
+		private boolean markDone(int starts) {
+			return playState.compareAndSet(starts << 1 | 1, starts << 1);
+		}
+
+		private void publish() {
+			position = cursor;
+			leftVolumeView = leftVolume;
+			rightVolumeView = rightVolume;
+			speedView = speed;
+		}
 		
-		private void instantaneousUpdate() {
-			if (!isActive) throw new IllegalStateException("instance: " + id + " is inactive");
-			if (isPlaying) throw new IllegalStateException("You need to call the function before instance: " + id + " playing");
-			
-			// OK to execute instantaneous changes
-			leftVolume = newTargetLeftVolume;
-			targetLeftVolume = newTargetLeftVolume;
-			rightVolume = newTargetRightVolume;
-			targetRightVolume = newTargetRightVolume;
-			targetLeftVolumeSteps = targetRightVolumeSteps = 0;
-			
-			speed = newTargetSpeed;
-			targetSpeed = newTargetSpeed;
-			targetSpeedSteps = 0;
+		// sets up the ramps towards new targets
+		private void rampVolume(double leftVolume, double rightVolume) {
+			if (leftVolume != targetLeftVolume) {
+				targetLeftVolume = leftVolume;
+				targetLeftVolumeIncr = (targetLeftVolume - this.leftVolume) / SOUND_VOLUME_STEPS;
+				targetLeftVolumeSteps = SOUND_VOLUME_STEPS;
+			}
+			if (rightVolume != targetRightVolume) {
+				targetRightVolume = rightVolume;
+				targetRightVolumeIncr = (targetRightVolume - this.rightVolume) / SOUND_VOLUME_STEPS;
+				targetRightVolumeSteps = SOUND_VOLUME_STEPS;
+			}
+		}
+
+		private void rampPan(double leftPan, double rightPan) {
+			if (leftPan != targetLeftPan || rightPan != targetRightPan) {
+				targetLeftPan = leftPan;
+				targetRightPan = rightPan;
+				targetLeftPanIncr = (targetLeftPan - this.leftPan) / SOUND_VOLUME_STEPS;
+				targetRightPanIncr = (targetRightPan - this.rightPan) / SOUND_VOLUME_STEPS;
+				targetPanSteps = SOUND_VOLUME_STEPS;
+			}
+		}
+
+		// one frame of the pan's ramp
+		private void stepPan() {
+			if (-- targetPanSteps == 0) {
+				leftPan = targetLeftPan;
+				rightPan = targetRightPan;
+			}
+			else {
+				leftPan += targetLeftPanIncr;
+				rightPan += targetRightPanIncr;
+			}
+		}
+
+		private void rampSpeed(double speed) {
+			if (speed != targetSpeed) {
+				targetSpeed = speed;
+				targetSpeedIncr = (targetSpeed - this.speed) / SOUND_SPEED_STEPS;
+				targetSpeedSteps = SOUND_SPEED_STEPS;
+			}
+		}
+
+		// takes over the render state of a stolen play, ramping its volume down to 0
+		private void fadeOut(SoundClipCursor acc) {
+			isRendering = true;
+			cursor = acc.cursor;
+			speed = acc.speed;
+			targetSpeed = acc.targetSpeed;
+			targetSpeedIncr = acc.targetSpeedIncr;
+			targetSpeedSteps = acc.targetSpeedSteps;
+			leftVolume = acc.leftVolume;
+			rightVolume = acc.rightVolume;
+			// the pan and the channel gains stay where they are
+			leftPan = acc.leftPan;
+			rightPan = acc.rightPan;
+			targetPanSteps = 0;
+			channelGains = newChannelGains = acc.channelGains;
+			targetLeftVolume = targetRightVolume = 0;
+			targetLeftVolumeIncr = -leftVolume / SOUND_VOLUME_STEPS;
+			targetRightVolumeIncr = -rightVolume / SOUND_VOLUME_STEPS;
+			targetLeftVolumeSteps = targetRightVolumeSteps = SOUND_VOLUME_STEPS;
+		}
+
+		private boolean isRamping() {
+			return targetLeftVolumeSteps > 0 || targetRightVolumeSteps > 0 || targetPanSteps > 0 || targetSpeedSteps > 0;
+		}
+
+		private int rampFrames() {
+			return Math.max(Math.max(Math.max(targetLeftVolumeSteps, targetRightVolumeSteps), targetPanSteps), targetSpeedSteps);
 		}
 		
 	}
 	
 	private class SoundClipPlayer implements Runnable {
 
-		private final SourceDataLine sourceDataLine;
+		private final AudioSink audioSink;
 		private final int sdlBufferSize;
 		private final float[] audioData;
 		private final byte[] audioBytes;
+		private final ShortBuffer audioBytesView;
+		private final SampleConverter sampleConverter = new SampleConverter();
 		
 		public void stopRunning() {
 			open = false;
 		}
 		
-		SoundClipPlayer(Mixer mixer, int bufferFrames) throws LineUnavailableException {
+		SoundClipPlayer(AudioSink audioSink, int bufferFrames) throws LineUnavailableException {
 			// twice the frames length, because stereo
 			audioData = new float[bufferFrames * 2];
 			// SourceDataLine must be 4 * number of frames, to 
 			// account for 16-bit encoding and stereo.
 			sdlBufferSize = bufferFrames * 4;
 			audioBytes = new byte[sdlBufferSize];
+			audioBytesView = audioBytesView(audioBytes);
 
-			sourceDataLine = (SourceDataLine) (mixer == null ? AudioSystem.getLine(DEFAULT_AUDIO_LINE_INFO) : mixer.getLine(DEFAULT_AUDIO_LINE_INFO));
-			sourceDataLine.open(DEFAULT_AUDIO_FORMAT, sdlBufferSize);
-			sourceDataLine.start();
+			this.audioSink = audioSink;
+			audioSink.open(audioFormat(getFrameRate()), sdlBufferSize);
+			audioSink.start();
 		}
 		
+		// underruns are looked for the way SoundMuxer's playback does, but only with the metrics enabled
 		public void run() {
+			boolean queues = false;
 			while(open) {
-				read(audioData);
-				fromPcmToAudioBytes(audioBytes, audioData);
-				sourceDataLine.write(audioBytes, 0, sdlBufferSize);
+				if (metrics.isEnabled()) {
+					if (audioSink.available() < audioSink.getBufferSize()) queues = true;
+					else if (queues) metrics.recordUnderrun();
+					long start = System.nanoTime();
+					read(audioData);
+					metrics.recordBlock(System.nanoTime() - start, audioData.length / 2, getFrameRate());
+					metrics.recordActivity(isIdle() ? 0 : 1, activeVoices);
+				}
+				else read(audioData);
+				audioBytesView.clear();
+				sampleConverter.toPcm16(audioData, 0, audioData.length, audioBytesView, dither);
+				audioSink.write(audioBytes, 0, sdlBufferSize);
 			}
-			sourceDataLine.drain();
-			sourceDataLine.close();
+			audioSink.drain();
+			audioSink.close();
 		}
 	}
 	
@@ -431,108 +1305,461 @@ public class SoundClip implements AutoCloseable {
 		// Start with 0-filled buffer, send out silence
 		// if nothing playing.
 		Arrays.fill(buffer, offset, offset + length, 0);
-		
+		mix(buffer, offset, length, 2, frameTime);
+		frameTime += length / 2;
+	}
+
+	// read without the zero-fill, adds to what buffer holds, in frames of channels entries, the first at frameTime
+	void mix(float[] buffer, int offset, int length, int channels, long frameTime) {
+		if (isIdle()) return;
+
+		boolean acquired = acquireRenderRole();
+		try {
+			applyCommands(frameTime);
+			renderBlock(buffer, offset, length, channels, null, 0);
+		}
+		finally {
+			if (acquired) renderer.set(null);
+		}
+	}
+
+	/*
+	 * Renders the voices a span at a time, each up to the frame of the
+	 * next scheduled command within the block, which is applied before
+	 * the next span. With real, only the voices whose real is set are
+	 * rendered, see mixVoices.
+	 */
+	private void renderBlock(float[] buffer, int offset, int length, int channels, boolean[] real, int from) {
+		long blockFrameTime = renderFrameTime;
+		long endFrameTime = blockFrameTime + length / channels;
+		renderFrameTime = endFrameTime;
+		if (activeVoices == 0 && schedule.nextFrame() >= endFrameTime) return;
+		if (real != null) {
+			for (int ci = 0; ci < polyphony; ci ++) {
+				if (cursors[ci].isRendering) cursors[ci].real = real[from ++];
+			}
+		}
+		int end = offset + length;
+		for (int i = offset; ; ) {
+			long next = schedule.nextFrame();
+			int spanEnd = next < endFrameTime ? offset + (int) (next - blockFrameTime) * channels : end;
+			if (activeVoices > 0) {
+				for (int ci = 0; ci < polyphony; ci ++) {
+					SoundClipCursor acc = cursors[ci];
+					if (!acc.isRendering) continue;
+					if (real == null || acc.real) renderVoice(acc, buffer, i, spanEnd - i, channels);
+					else skipInstance(acc, (spanEnd - i) / channels);
+				}
+			}
+			if (spanEnd == end) break;
+			applyScheduled(next);
+			i = spanEnd;
+		}
+		scheduledCount = schedule.size();
+		renderTails(buffer, offset, length, channels);
+	}
+
+	// false if this thread holds it already
+	private boolean acquireRenderRole() {
+		Thread thread = Thread.currentThread();
+		if (renderer.get() == thread) return false;
+		// only waits while a producer applies the commands of a full ring
+		while (!renderer.compareAndSet(null, thread)) Thread.yield();
+		return true;
+	}
+
+	/*
+	 * SoundMuxer with a voice limit: takes the render role until
+	 * mixVoices, applies the commands and lists the audibility of
+	 * every rendering voice from audibility[from] on.
+	 * Returns the number of voices listed.
+	 */
+	int collectVoices(double[] audibility, int from, long frameTime) {
+		releaseAfterMix = acquireRenderRole();
+		applyCommands(frameTime);
+		int count = 0;
 		for (int ci = 0; ci < polyphony; ci ++) {
-			if (cursors[ci].isPlaying) {
-				SoundClipCursor acc = cursors[ci];
-				
-				for (int i = offset; i < length; i += 2) {
-					// has volume setting changed? if so recalc
-					if (acc.newTargetLeftVolume != acc.targetLeftVolume) {
-						acc.targetLeftVolume = acc.newTargetLeftVolume;
-						acc.targetLeftVolumeIncr = (acc.targetLeftVolume - acc.leftVolume) / SOUND_VOLUME_STEPS;
-						acc.targetLeftVolumeSteps = SOUND_VOLUME_STEPS;
-					}
-					if (acc.newTargetRightVolume != acc.targetRightVolume) {
-						acc.targetRightVolume = acc.newTargetRightVolume;
-						acc.targetRightVolumeIncr = (acc.targetRightVolume - acc.rightVolume) / SOUND_VOLUME_STEPS;
-						acc.targetRightVolumeSteps = SOUND_VOLUME_STEPS;
-					}
-					// adjust volume if needed
-					if (acc.targetLeftVolumeSteps -- > 0) {
-						acc.leftVolume += acc.targetLeftVolumeIncr;
-						if (acc.targetLeftVolumeSteps == 0) {
-							acc.leftVolume = acc.targetLeftVolume;
-						}
-					}
-					if (acc.targetRightVolumeSteps -- > 0) {
-						acc.rightVolume += acc.targetRightVolumeIncr;
-						if (acc.targetRightVolumeSteps == 0) {
-							acc.rightVolume = acc.targetRightVolume;
-						}
-					}
-					
-					// get audioVals, with LERP for fractional cursor position
-					float[] audioVals = new float[2];
-					if (acc.cursor == (int) acc.cursor) {
-						audioVals[0] = pcm[(int) acc.cursor * 2];
-						audioVals[1] = pcm[(int) acc.cursor * 2 + 1];
-					} 
-					else readFractionalFrame(audioVals, acc.cursor);
-					
-					buffer[i] += audioVals[0] * acc.leftVolume;
-					buffer[i + 1] += audioVals[1] * acc.rightVolume;
-					
-					// SET UP FOR NEXT ITERATION
-					// has speed setting changed? if so, recalc
-					if (acc.newTargetSpeed != acc.targetSpeed) {
-						acc.targetSpeed = acc.newTargetSpeed;
-						acc.targetSpeedIncr = (acc.targetSpeed - acc.speed) / SOUND_SPEED_STEPS;
-						acc.targetSpeedSteps = SOUND_SPEED_STEPS;
-					}
-					// adjust speed if needed
-					if (acc.targetSpeedSteps -- > 0) {
-						acc.speed += acc.targetSpeedIncr;
-					}
-	
-					// set NEXT read position
-					acc.cursor += acc.speed;
-					
-					// test for "eof" and "looping"
-					if (acc.cursor > (frameLength - 1)) {
-						// keep looping indefinitely
-						if (acc.loop == -1) {
-							acc.cursor = 0;
-							broadcastEvent(new SoundEvent(this, SoundEvent.Type.LOOP_INSTANCE, acc.id, acc.cursor));
-						}
-						// loop specific number of times
-						else if (acc.loop > 0) {
-							acc.loop --;
-							acc.cursor = 0;
-							broadcastEvent(new SoundEvent(this, SoundEvent.Type.LOOP_INSTANCE, acc.id, acc.cursor));
-						}
-						// no more loops to do
-						else {
-							acc.isPlaying = false;
-							broadcastEvent(new SoundEvent(this, SoundEvent.Type.STOP_INSTANCE, acc.id, acc.cursor));
-							if (acc.recycleWhenDone) {
-								acc.resetInstance();
-								available.offerFirst(acc);
-								broadcastEvent(new SoundEvent(this, SoundEvent.Type.RELEASE_INSTANCE, acc.id, acc.cursor));
-							}
-							// cursor is at end of clip before
-							// buffer filled, no need to
-							// process further (default 0's)
-							break;
-						}
-					}
+			SoundClipCursor acc = cursors[ci];
+			if (acc.isRendering) audibility[from + count ++] = Math.max(acc.leftVolume * acc.leftPan, acc.rightVolume * acc.rightPan) * acc.priorityWeight;
+		}
+		return count;
+	}
+
+	/*
+	 * Like mix, for the voices collectVoices listed: those whose real
+	 * is set are rendered, the virtual ones only advance their cursors.
+	 * Voices started within the block are rendered.
+	 */
+	void mixVoices(float[] buffer, int offset, int length, int channels, boolean[] real, int from) {
+		try {
+			renderBlock(buffer, offset, length, channels, real, from);
+		}
+		finally {
+			if (releaseAfterMix) renderer.set(null);
+		}
+	}
+
+	/*
+	 * Renders a voice into frames of channels entries. Stereo without
+	 * channel gains is rendered in place; anything else is rendered as
+	 * stereo first, then routed.
+	 */
+	private void renderVoice(SoundClipCursor acc, float[] buffer, int offset, int length, int channels) {
+		float[] gains = acc.newChannelGains;
+		if (channels == 2 && gains == null && acc.channelGains == null) {
+			renderInstance(acc, buffer, offset, offset + length);
+			return;
+		}
+		int frames = length / channels;
+		// only read directly, in blocks larger than any before
+		reserveRouteBuffer(frames);
+		Arrays.fill(routeBuffer, 0, frames * 2, 0);
+		renderInstance(acc, routeBuffer, 0, frames * 2);
+		route(acc, gains, buffer, offset, frames, channels);
+	}
+
+	/*
+	 * Adds the stereo in routeBuffer to channels: the left times
+	 * gains[c * 2], the right times gains[c * 2 + 1] to channel c, see
+	 * setChannelGains. New gains are ramped to over the block.
+	 */
+	private void route(SoundClipCursor acc, float[] gains, float[] buffer, int offset, int frames, int channels) {
+		float[] routeBuffer = this.routeBuffer;
+		float[] previous = acc.channelGains;
+		acc.channelGains = gains;
+		if (gains == null && previous == null && channels == 1) {
+			// mixed down to mono
+			for (int n = 0; n < frames; n ++) {
+				buffer[offset + n] += (routeBuffer[n * 2] + routeBuffer[n * 2 + 1]) * 0.5f;
+			}
+			return;
+		}
+		for (int c = 0; c < channels; c ++) {
+			float left = channelGain(gains, channels, c, 0);
+			float right = channelGain(gains, channels, c, 1);
+			float leftIncr = 0, rightIncr = 0;
+			if (gains != previous) {
+				float previousLeft = channelGain(previous, channels, c, 0);
+				float previousRight = channelGain(previous, channels, c, 1);
+				leftIncr = (left - previousLeft) / frames;
+				rightIncr = (right - previousRight) / frames;
+				left = previousLeft;
+				right = previousRight;
+			}
+			else if (left == 0 && right == 0) continue;
+			for (int n = 0, i = offset + c; n < frames; n ++, i += channels) {
+				left += leftIncr;
+				right += rightIncr;
+				buffer[i] += routeBuffer[n * 2] * left + routeBuffer[n * 2 + 1] * right;
+			}
+		}
+	}
+
+	// null gains: left to channel 0, right to channel 1, both halved to a single channel
+	private static float channelGain(float[] gains, int channels, int channel, int side) {
+		if (gains == null) return channels == 1 ? 0.5f : channel == side ? 1 : 0;
+		int index = channel * 2 + side;
+		return index < gains.length ? gains[index] : 0;
+	}
+
+	/*
+	 * Block rendering: control changes are picked up once per block,
+	 * then the block is cut into spans that each run one tight loop.
+	 * Ramps and the last frames before the end of the clip go through
+	 * the per-frame path, everything else through the fast paths.
+	 */
+	private void renderInstance(SoundClipCursor acc, float[] buffer, int offset, int end) {
+		if (stream != null) frameLength = stream.getFrameLength();
+		Interpolation interpolation = this.interpolation;
+
+		int i = offset;
+		while (i + 1 < end) {
+			int frames = (end - i) / 2;
+			int rendered;
+			if (acc.isRamping()) {
+				// the speed ramps monotonically towards the target
+				double maxSpeed = acc.targetSpeedSteps > 0 ? Math.max(acc.speed, acc.targetSpeed) : acc.speed;
+				Resampler resampler = Resampler.of(interpolation, maxSpeed);
+				rendered = renderFrames(acc, resampler, buffer, i, fetch(acc, resampler, Math.min(frames, acc.rampFrames()), maxSpeed));
+			}
+			else if (acc.speed == 1 && acc.cursor == (int) acc.cursor) {
+				// reads no more than linear interpolation would
+				rendered = renderUnitSpeed(acc, buffer, i, fetch(acc, Resampler.LINEAR, frames, 1));
+			}
+			else {
+				Resampler resampler = Resampler.of(interpolation, acc.speed);
+				// frames whose kernels are guaranteed to stay within the clip
+				int safeFrames = acc.cursor < resampler.before ? 0 : (int) ((frameLength - resampler.after - acc.cursor) / acc.speed);
+				if (safeFrames > 0) rendered = renderConstantSpeed(acc, resampler, buffer, i, fetch(acc, resampler, Math.min(frames, safeFrames), acc.speed));
+				else {
+					// the first frames of the clip, or the last
+					if (acc.cursor < resampler.before) frames = (int) Math.min(frames, (resampler.before - acc.cursor) / acc.speed + 1);
+					rendered = renderFrames(acc, resampler, buffer, i, fetch(acc, resampler, frames, acc.speed));
 				}
 			}
+			i += rendered * 2;
+
+			// test for "eof" and "looping"
+			if (acc.cursor > (frameLength - 1)) {
+				// cursor is at end of clip before
+				// buffer filled, no need to
+				// process further (default 0's)
+				if (!loopOrStop(acc)) return;
+			}
+			// the decoder of a stream is behind, silence for the rest of the block
+			else if (rendered == 0) {
+				// or broke, which ends the play there
+				if (stream == null || !stream.hasFailed(acc.reader)) break;
+				if (!loopOrStop(acc)) return;
+			}
+		}
+		acc.publish();
+	}
+
+	/*
+	 * Makes the source frames read by the next frames output frames,
+	 * at speeds up to maxSpeed, available in source from sourceBase on,
+	 * with the frames around them resampler reads as well.
+	 * Float storage is read in place, 16-bit storage is converted into
+	 * the window, which may cut the span short, as may a stream whose
+	 * decoder is behind.
+	 * Returns the frames that may be rendered, 0 while a stream is not ready.
+	 */
+	private int fetch(SoundClipCursor acc, Resampler resampler, int frames, double maxSpeed) {
+		if (window == null) return frames;
+
+		int first = Math.max(0, (int) acc.cursor - resampler.before);
+		// the frames read beyond the ones the cursor passes
+		int margin = (int) acc.cursor - first + resampler.after + 2;
+		frames = Math.min(frames, Math.max(1, (int) ((WINDOW_FRAMES - margin - 1) / maxSpeed)));
+		int count = (int) Math.min(frameLength - first, (long) (maxSpeed * frames) + margin + 1);
+		if (stream == null) storage.get(first * channels, window, 0, count * channels);
+		else if (first + count <= stream.getHeadFrames()) {
+			// straight from the head, while the ring gets ready for what follows it
+			stream.position(acc.reader, first + count);
+			source = stream.getHead();
+			sourceBase = 0;
+			return frames;
+		}
+		else {
+			int available = stream.read(acc.reader, first, count, window);
+			if (available < count) {
+				// frames whose reads stay within the available ones
+				if (available < margin) return 0;
+				frames = Math.min(frames, (int) ((available - margin) / maxSpeed) + 1);
+			}
+		}
+		source = window;
+		sourceBase = first;
+		return frames;
+	}
+
+	// speed == 1 on an integer frame, no ramp: a plain scaled copy
+	private int renderUnitSpeed(SoundClipCursor acc, float[] buffer, int offset, int frames) {
+		float[] source = this.source;
+		int frameIndex = (int) acc.cursor;
+		int n = Math.min(frames, frameLength - frameIndex);
+		float leftVolume = (float) (acc.leftVolume * acc.leftPan);
+		float rightVolume = (float) (acc.rightVolume * acc.rightPan);
+
+		int end = offset + n * 2;
+		if (channels == 1) {
+			for (int i = offset, src = frameIndex - sourceBase; i < end; i += 2, src ++) {
+				buffer[i] += source[src] * leftVolume;
+				buffer[i + 1] += source[src] * rightVolume;
+			}
+		}
+		else {
+			for (int i = offset, src = (frameIndex - sourceBase) * 2; i < end; i += 2, src += 2) {
+				buffer[i] += source[src] * leftVolume;
+				buffer[i + 1] += source[src + 1] * rightVolume;
+			}
+		}
+
+		acc.cursor = frameIndex + n;
+		return n;
+	}
+
+	// constant speed, no ramp, caller guarantees the kernel stays within the clip
+	private int renderConstantSpeed(SoundClipCursor acc, Resampler resampler, float[] buffer, int offset, int frames) {
+		long phase = Resampler.toPhase(acc.cursor);
+		long increment = Resampler.toPhase(acc.speed);
+		float leftVolume = (float) (acc.leftVolume * acc.leftPan);
+		float rightVolume = (float) (acc.rightVolume * acc.rightPan);
+		if (channels == 1) phase = resampler.renderMono(source, sourceBase, phase, increment, leftVolume, rightVolume, buffer, offset, frames);
+		else phase = resampler.render(source, sourceBase, phase, increment, leftVolume, rightVolume, buffer, offset, frames);
+		acc.cursor = Resampler.toFrames(phase);
+		return frames;
+	}
+
+	// per-frame path for ramps and the ends of the clip, stops early once the cursor passes the last frame
+	private int renderFrames(SoundClipCursor acc, Resampler resampler, float[] buffer, int offset, int frames) {
+		for (int n = 0; n < frames; n ++) {
+			int i = offset + n * 2;
+			// adjust volume if needed
+			if (acc.targetLeftVolumeSteps > 0) {
+				acc.leftVolume = -- acc.targetLeftVolumeSteps == 0 ?
+						acc.targetLeftVolume : acc.leftVolume + acc.targetLeftVolumeIncr;
+			}
+			if (acc.targetRightVolumeSteps > 0) {
+				acc.rightVolume = -- acc.targetRightVolumeSteps == 0 ?
+						acc.targetRightVolume : acc.rightVolume + acc.targetRightVolumeIncr;
+			}
+			if (acc.targetPanSteps > 0) acc.stepPan();
+
+			// get audio values, interpolated for fractional cursor position, or filtered by the sinc
+			float leftVal, rightVal;
+			if (resampler.exactOnFrames && acc.cursor == (int) acc.cursor) {
+				int index = ((int) acc.cursor - sourceBase) * channels;
+				leftVal = source[index];
+				rightVal = source[index + channels - 1];
+			}
+			else {
+				long phase = Resampler.toPhase(acc.cursor);
+				leftVal = resampler.sample(source, sourceBase, frameLength, phase, 0, channels);
+				rightVal = channels == 1 ? leftVal : resampler.sample(source, sourceBase, frameLength, phase, 1, channels);
+			}
+
+			buffer[i] += leftVal * acc.leftVolume * acc.leftPan;
+			buffer[i + 1] += rightVal * acc.rightVolume * acc.rightPan;
+
+			// SET UP FOR NEXT ITERATION
+			// adjust speed if needed
+			if (acc.targetSpeedSteps > 0) {
+				acc.speed = -- acc.targetSpeedSteps == 0 ?
+						acc.targetSpeed : acc.speed + acc.targetSpeedIncr;
+			}
+
+			// set NEXT read position
+			acc.cursor += acc.speed;
+			if (acc.cursor > (frameLength - 1)) return n + 1;
+		}
+		return frames;
+	}
+
+	/*
+	 * A virtual voice: moves the cursor as rendering frames would, ramps,
+	 * loops and end included, without reading a sample. A stream's
+	 * decoder catches up once the voice is rendered again.
+	 */
+	private void skipInstance(SoundClipCursor acc, int frames) {
+		if (stream != null) frameLength = stream.getFrameLength();
+
+		while (frames > 0) {
+			int skipped;
+			if (acc.isRamping()) skipped = skipFrames(acc, Math.min(frames, acc.rampFrames()));
+			else {
+				// the last of these frames moves the cursor past the last frame of the clip
+				int framesToEnd = (int) Math.min((frameLength - 1 - acc.cursor) / acc.speed + 1, Integer.MAX_VALUE);
+				skipped = Math.max(1, Math.min(frames, framesToEnd));
+				acc.cursor += acc.speed * skipped;
+			}
+			frames -= skipped;
+
+			if (acc.cursor > (frameLength - 1) && !loopOrStop(acc)) return;
+		}
+		acc.publish();
+	}
+
+	// renderFrames without the samples
+	private int skipFrames(SoundClipCursor acc, int frames) {
+		for (int n = 0; n < frames; n ++) {
+			if (acc.targetLeftVolumeSteps > 0) {
+				acc.leftVolume = -- acc.targetLeftVolumeSteps == 0 ?
+						acc.targetLeftVolume : acc.leftVolume + acc.targetLeftVolumeIncr;
+			}
+			if (acc.targetRightVolumeSteps > 0) {
+				acc.rightVolume = -- acc.targetRightVolumeSteps == 0 ?
+						acc.targetRightVolume : acc.rightVolume + acc.targetRightVolumeIncr;
+			}
+			if (acc.targetPanSteps > 0) acc.stepPan();
+			if (acc.targetSpeedSteps > 0) {
+				acc.speed = -- acc.targetSpeedSteps == 0 ?
+						acc.targetSpeed : acc.speed + acc.targetSpeedIncr;
+			}
+			acc.cursor += acc.speed;
+			if (acc.cursor > (frameLength - 1)) return n + 1;
+		}
+		return frames;
+	}
+
+	private void renderTails(float[] buffer, int offset, int length, int channels) {
+		for (int ti = 0; ti < tailCount; ) {
+			SoundClipCursor tail = tails[ti];
+			int fadeFrames = Math.max(tail.targetLeftVolumeSteps, tail.targetRightVolumeSteps);
+			renderVoice(tail, buffer, offset, Math.min(length, fadeFrames * channels), channels);
+			if (tail.isRendering && (tail.targetLeftVolumeSteps > 0 || tail.targetRightVolumeSteps > 0)) ti ++;
+			else {
+				// faded out, swapped behind the rendering ones
+				if (tail.isRendering) activeVoices --;
+				tail.isRendering = false;
+				tails[ti] = tails[-- tailCount];
+				tails[tailCount] = tail;
+			}
+		}
+	}
+
+	private boolean loopOrStop(SoundClipCursor acc) {
+		// a tail, it fades out before the clip could loop
+		if (acc.id == NOT_SPECIFIED) {
+			acc.isRendering = false;
+			activeVoices --;
+			return false;
+		}
+		// keep looping indefinitely
+		if (acc.loop == -1) {
+			acc.cursor = 0;
+			broadcastEvent(SoundEvent.Type.LOOP_INSTANCE, acc.id, acc.cursor);
+			return true;
+		}
+		// loop specific number of times
+		else if (acc.loop > 0) {
+			acc.loop --;
+			acc.cursor = 0;
+			broadcastEvent(SoundEvent.Type.LOOP_INSTANCE, acc.id, acc.cursor);
+			return true;
+		}
+		// no more loops to do
+		else {
+			endPlay(acc, acc.starts);
+			return false;
+		}
+	}
+
+	// play number starts of an instance came to its end, at the end of the clip or of stopAt
+	private void endPlay(SoundClipCursor acc, int starts) {
+		if (acc.isRendering && acc.starts == starts) {
+			acc.isRendering = false;
+			activeVoices --;
+			// before the instance may be recycled and handed out again
+			acc.publish();
+		}
+		// stopped or started again by now, then that is what counts
+		if (!acc.markDone(starts)) return;
+		broadcastEvent(SoundEvent.Type.STOP_INSTANCE, acc.id, acc.cursor);
+		if (acc.recycleWhenDone) {
+			acc.resetInstance();
+			acc.cursor = 0;
+			schedule.remove(acc.id);
+			available.push(acc.id);
+			broadcastEvent(SoundEvent.Type.RELEASE_INSTANCE, acc.id, acc.cursor);
 		}
 	}
 	
-	private void readFractionalFrame(float[] audioVals, double index) {
-		int intIndex = (int) index;
-		int stereoIndex = intIndex * 2;
-		
-		audioVals[0] = (float)(pcm[stereoIndex + 2] * (index - intIndex)
-				+ pcm[stereoIndex] * ((intIndex + 1) - index));
-		
-		audioVals[1] = (float)(pcm[stereoIndex + 3] * (index - intIndex)
-				+ pcm[stereoIndex + 1] * ((intIndex + 1) - index));
+	private void broadcastEvent(SoundEvent.Type type, int instanceID, double position) {
+		// the render thread calls this per loop/stop, don't publish an event nobody receives
+		if (listeners.isEmpty()) return;
+		EventDispatcher eventDispatcher = this.eventDispatcher;
+		if (eventDispatcher != null) {
+			boolean published = eventDispatcher.publish(eventTarget, type, instanceID, position);
+			RenderMetrics metrics = metrics();
+			if (metrics.isEnabled()) metrics.recordEvent(published, eventDispatcher.getQueuedEventCount());
+		}
+		else deliverEvent(type, instanceID, position);
 	}
 
-	private void broadcastEvent(SoundEvent event) {
+	private void deliverEvent(Object type, int instanceID, double position) {
+		SoundEvent event = new SoundEvent(this, (SoundEvent.Type) type, instanceID, position);
 		for (SoundListener listener : listeners) {
 			listener.update(event);
 		}
@@ -1,18 +1,28 @@
 package com.tianscar.jamplayer;
 
-import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.Mixer;
-import javax.sound.sampled.SourceDataLine;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
+import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
 
 import static com.tianscar.jamplayer.Utils.*;
+import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
 
 public class SoundMuxer implements AutoCloseable {
 
-	private SoundClip[] clipCache;
+	// volatile for isIdle, which any thread may call
+	private volatile SoundClip[] clipCache = new SoundClip[0];
 	private final CopyOnWriteArrayList<SoundClip> clipManager;
 	private volatile boolean clipCacheUpdated;
 	private int clipCount;
@@ -33,9 +43,97 @@ public class SoundMuxer implements AutoCloseable {
 	public int getReadBufferSize() {
 		return readBufferSize;
 	}
-	private final int sdlByteBufferSize;
+	// the bytes of a block of output
+	private final int blockByteSize;
+	// the size of the sink's buffer, in bytes
 	public int getSourceDataLineBufferSize() {
-		return sdlByteBufferSize;
+		return sinkBufferFrames * channels * 2;
+	}
+	private volatile int sinkBufferFrames;
+	public int getSinkBufferFrames() {
+		return sinkBufferFrames;
+	}
+	/*
+	 * The frames the sink is opened to buffer, as opposed to the frames
+	 * mixed per block; bufferFrames, the default, buffers a single block.
+	 * A larger buffer rides out a late block, and with setLatencyBounds
+	 * need not add to the latency.
+	 */
+	public void setSinkBufferFrames(int sinkBufferFrames) {
+		checkNotPlaying();
+		if (sinkBufferFrames < bufferFrames) throw new IllegalArgumentException("sinkBufferFrames < bufferFrames");
+		this.sinkBufferFrames = sinkBufferFrames;
+	}
+
+	private volatile int minLatencyFrames = NOT_SPECIFIED, maxLatencyFrames = NOT_SPECIFIED;
+	public int getMinLatencyFrames() {
+		return minLatencyFrames;
+	}
+	public int getMaxLatencyFrames() {
+		return maxLatencyFrames;
+	}
+	/*
+	 * Caps the frames queued in the sink, the block just written
+	 * included, at a target latency: a block is only mixed once there is
+	 * room for it below the target. The target starts at minFrames, and
+	 * stays there unless adaptive. Both NOT_SPECIFIED, the default, fill
+	 * the sink's whole buffer.
+	 */
+	public void setLatencyBounds(int minFrames, int maxFrames) {
+		if (minFrames == NOT_SPECIFIED && maxFrames == NOT_SPECIFIED) targetLatencyFrames = NOT_SPECIFIED;
+		else {
+			if (minFrames < bufferFrames) throw new IllegalArgumentException("minFrames < bufferFrames");
+			if (maxFrames < minFrames) throw new IllegalArgumentException("maxFrames < minFrames");
+			targetLatencyFrames = minFrames;
+		}
+		minLatencyFrames = minFrames;
+		maxLatencyFrames = maxFrames;
+	}
+
+	private volatile boolean adaptiveLatency;
+	public boolean isAdaptiveLatency() {
+		return adaptiveLatency;
+	}
+	/*
+	 * Within the latency bounds, raises the target by a block after every
+	 * underrun, and lowers it by one after ADAPT_SECONDS without.
+	 */
+	public void setAdaptiveLatency(boolean adaptiveLatency) {
+		this.adaptiveLatency = adaptiveLatency;
+	}
+	private static final int ADAPT_SECONDS = 10;
+
+	// written by the playback thread only
+	private volatile int targetLatencyFrames = NOT_SPECIFIED;
+	public int getTargetLatencyFrames() {
+		return targetLatencyFrames;
+	}
+	private volatile int latencyFrames;
+	// the frames queued in the sink right after the last block was written, as far as the sink tells
+	public int getLatencyFrames() {
+		return latencyFrames;
+	}
+	private volatile long underrunCount;
+	// times the sink was found to have run dry while playing
+	public long getUnderrunCount() {
+		return underrunCount;
+	}
+
+	// disabled until told otherwise, see RenderMetrics
+	private final RenderMetrics metrics = new RenderMetrics();
+	public RenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	// 16-bit signed little-endian, at any sample rate and channel count
+	private final AudioFormat audioFormat;
+	public AudioFormat getAudioFormat() {
+		return audioFormat;
+	}
+	// entries per frame of every buffer mixed
+	private final int channels;
+	public int getChannels() {
+		return channels;
 	}
 
 	private final Mixer mixer;
@@ -43,6 +141,11 @@ public class SoundMuxer implements AutoCloseable {
 		return mixer;
 	}
 
+	private final AudioSink audioSink;
+	public AudioSink getAudioSink() {
+		return audioSink;
+	}
+
 	private final int threadPriority;
 	public int getThreadPriority() {
 		return threadPriority;
@@ -52,13 +155,83 @@ public class SoundMuxer implements AutoCloseable {
 	public boolean isPlaying() {
 		return playing;
 	}
+	private volatile Thread playbackThread;
+
+	private volatile int voiceLimit = NOT_SPECIFIED;
+	public int getVoiceLimit() {
+		return voiceLimit;
+	}
+	/*
+	 * Caps the voices mixed per buffer, across all clips. Voices beyond
+	 * the limit become virtual: their cursors keep advancing, but nothing
+	 * is rendered. Every buffer, the most audible voices (volume, weighted
+	 * by the priority given to SoundClip.play) are the real ones.
+	 * NOT_SPECIFIED, the default, mixes every voice.
+	 */
+	public void setVoiceLimit(int voiceLimit) {
+		if (voiceLimit < 1 && voiceLimit != NOT_SPECIFIED) throw new IllegalArgumentException("voiceLimit < 1");
+		this.voiceLimit = voiceLimit;
+	}
+
+	// as of the last buffer mixed under a voice limit
+	private volatile int voiceCount, virtualVoiceCount;
+	public int getVoiceCount() {
+		return voiceCount;
+	}
+	public int getVirtualVoiceCount() {
+		return virtualVoiceCount;
+	}
+
+	private volatile int mixingThreads = 1;
+	public int getMixingThreads() {
+		return mixingThreads;
+	}
+	/*
+	 * Threads mixing the clips of a buffer, the playback (or rendering)
+	 * thread included. 1, the default, mixes on that thread alone;
+	 * more render the clips in parallel, with the same output.
+	 */
+	public void setMixingThreads(int mixingThreads) {
+		checkNotPlaying();
+		if (mixingThreads < 1) throw new IllegalArgumentException("mixingThreads < 1");
+		closeMixerPool();
+		this.mixingThreads = mixingThreads;
+	}
+
+	// written by the mixing thread only
+	private volatile long frameTime;
+	/*
+	 * Frames mixed so far, the frame the next buffer starts at: the clock
+	 * of SoundClip.startAt and the like. Played back, that frame is heard
+	 * a buffer or so later, schedule ahead by at least that much.
+	 */
+	public long getFrameTime() {
+		return frameTime;
+	}
+
+	private volatile OutputStage outputStage = OutputStage.HARD_CLIP;
+	public OutputStage getOutputStage() {
+		return outputStage;
+	}
+	public void setOutputStage(OutputStage outputStage) {
+		this.outputStage = Objects.requireNonNull(outputStage);
+	}
+
+	private volatile boolean dither;
+	public boolean isDither() {
+		return dither;
+	}
+	// TPDF dither when converting to 16-bit output
+	public void setDither(boolean dither) {
+		this.dither = dither;
+	}
 
 	public SoundMuxer() {
 		this(DEFAULT_BUFFER_FRAMES);
 	}
 
 	public SoundMuxer(int bufferFrames) {
-		this(null, bufferFrames, Thread.MAX_PRIORITY);
+		this((Mixer) null, bufferFrames, Thread.MAX_PRIORITY);
 	}
 
 	public SoundMuxer(Mixer mixer, int threadPriority) {
@@ -66,10 +239,45 @@ public class SoundMuxer implements AutoCloseable {
 	}
 
 	public SoundMuxer(Mixer mixer, int bufferFrames, int threadPriority) {
+		this(mixer, DEFAULT_AUDIO_FORMAT, bufferFrames, threadPriority);
+	}
+
+	/*
+	 * audioFormat must be 16-bit signed little-endian PCM, at the rate of
+	 * the device, say 48000 Hz. Load the clips for this muxer at the same
+	 * rate, see SoundClip(AudioInputStream, int, Storage, float).
+	 * Beyond stereo, say 6 channels for 5.1, the instances play on the
+	 * first two channels unless routed with SoundClip.setChannelGains;
+	 * with a single channel, they are mixed down to mono.
+	 */
+	public SoundMuxer(Mixer mixer, AudioFormat audioFormat, int bufferFrames, int threadPriority) {
+		this(mixer, new LineAudioSink(mixer), audioFormat, bufferFrames, threadPriority);
+	}
+
+	public SoundMuxer(AudioSink audioSink, int bufferFrames, int threadPriority) {
+		this(audioSink, DEFAULT_AUDIO_FORMAT, bufferFrames, threadPriority);
+	}
+
+	public SoundMuxer(AudioSink audioSink, AudioFormat audioFormat, int bufferFrames, int threadPriority) {
+		this(null, audioSink, audioFormat, bufferFrames, threadPriority);
+	}
+
+	public SoundMuxer(AudioSink audioSink) {
+		this(audioSink, DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY);
+	}
+
+	private SoundMuxer(Mixer mixer, AudioSink audioSink, AudioFormat audioFormat, int bufferFrames, int threadPriority) {
+		this.audioSink = Objects.requireNonNull(audioSink);
+		if (!isSupportedAudioFormat(audioFormat)) throw new IllegalArgumentException("Unsupported audio format: " + audioFormat);
+		this.audioFormat = audioFormat;
+		channels = audioFormat.getChannels();
 		clipManager = new CopyOnWriteArrayList<>();
 		this.bufferFrames = bufferFrames;
-		this.readBufferSize = bufferFrames * 2;
-		this.sdlByteBufferSize = bufferFrames * 4;
+		this.readBufferSize = bufferFrames * channels;
+		blockByteSize = bufferFrames * channels * 2;
+		sinkBufferFrames = bufferFrames;
+		audioData = new float[readBufferSize];
+		mixBuffer = new double[readBufferSize];
 		this.mixer = mixer;
 		this.threadPriority = threadPriority;
 	}
@@ -103,80 +311,638 @@ public class SoundMuxer implements AutoCloseable {
 		
 		updateClips();
 		
-		SoundMuxerPlayer player = new SoundMuxerPlayer(mixer);
+		SoundMuxerPlayer player;
+		try {
+			player = new SoundMuxerPlayer();
+		}
+		catch (LineUnavailableException | RuntimeException e) {
+			playing = false;
+			throw e;
+		}
 		Thread t = new Thread(player, "SoundMuxerPlayback-" + serialNumber());
 		t.setPriority(threadPriority);
+		playbackThread = t;
 		t.start();
 	}
 
+	// returns once the playback thread drained and closed the sink, so start may open it again
 	public void stop() {
 		if (!playing) return;
 		playing = false;
+		Thread playbackThread = this.playbackThread;
+		this.playbackThread = null;
+		awaitPlayback(playbackThread, audioSink);
 	}
 
 	@Override
 	public void close() {
 		stop();
+		// the pool left by rendering, the playback thread closed its own
+		closeMixerPool();
+		metrics.unregisterMBean();
+	}
+	
+	private SoundClip[] mixerClips;
+	// what the clip being mixed adds to mixBuffer
+	private final float[] audioData;
+	private final double[] mixBuffer;
+	// the clips fillBuffer mixes, and those it knows of
+	private SoundClip[] activeClips = new SoundClip[0];
+	private int activeCount;
+	private SoundClip[] memberClips = new SoundClip[0];
+	private boolean activeClipsStale;
+	// clips woken up since the last buffer, linked through SoundClip.nextWoken
+	private final AtomicReference<SoundClip> woken = new AtomicReference<>();
+	private OutputStage appliedOutputStage;
+	private Limiter limiter;
+	// of what was mixed, the frames the output stage still holds back
+	private int heldFrames;
+	// per voice of all clips, by the active clips' first voice
+	private int[] clipVoices = new int[0];
+	private double[] voiceAudibility = new double[0];
+	private double[] voiceSelection = new double[0];
+	private boolean[] voiceReal = new boolean[0];
+	/*
+	 * Parallel mixing, a buffer per clip and what the tasks work on. The
+	 * pool belongs to the thread mixing: made by its first buffer mixed in
+	 * parallel, closed by the playback thread as it exits, or by close for
+	 * rendering. stop returns after the playback thread, so nobody can
+	 * make one again behind the back of close.
+	 */
+	private MixerPool mixerPool;
+	private float[][] clipBuffers = new float[0][];
+	private boolean[] clipMixed = new boolean[0];
+	private int mixLength, mixSliceLength, mixVoiceLimit;
+	private final IntConsumer mixClip = this::mixClip, sumClips = this::sumClips;
+	private static final int MIN_SLICE_LENGTH = 256;
+	private final SampleConverter renderConverter = new SampleConverter();
+
+	// by the thread mixing, or while nobody mixes
+	private void closeMixerPool() {
+		if (mixerPool != null) {
+			mixerPool.close();
+			mixerPool = null;
+		}
+	}
+
+	private void checkNotPlaying() {
+		if (playing) throw new IllegalStateException("You need to call the function before playing");
+	}
+
+	/*
+	 * Offline rendering: drives the same mixing code as the playback
+	 * thread, without a SourceDataLine, as fast as the CPU allows.
+	 * Only available while the SoundMuxer is not playing.
+	 */
+	public void render(float[] buffer) {
+		render(buffer, 0, buffer.length);
+	}
+
+	public void render(float[] buffer, int offset, int length) {
+		checkNotPlaying();
+		if (offset < 0) throw new ArrayIndexOutOfBoundsException(offset);
+		else if (offset + length > buffer.length) throw new ArrayIndexOutOfBoundsException(offset + length);
+
+		for (int end = offset + length; offset < end; offset += readBufferSize) {
+			fillBuffer(buffer, offset, Math.min(readBufferSize, end - offset));
+		}
+	}
+
+	// 16-bit signed little-endian, in the muxer's channels, as many whole frames as the buffer has room for
+	public void render(ByteBuffer buffer) {
+		checkNotPlaying();
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			float[] renderBuffer = new float[readBufferSize];
+			int frameSize = channels * 2;
+			while (buffer.remaining() >= frameSize) {
+				int length = Math.min(readBufferSize, buffer.remaining() / frameSize * channels);
+				fillBuffer(renderBuffer, 0, length);
+				renderConverter.toPcm16(renderBuffer, 0, length, buffer, dither);
+			}
+		}
+		finally {
+			buffer.order(order);
+		}
+	}
+
+	/*
+	 * Renders until no instance of any clip is playing anymore and the
+	 * output stage let out what it held back, or maxFrames were rendered,
+	 * whichever comes first.
+	 */
+	public float[] renderUntilIdle(int maxFrames) {
+		checkNotPlaying();
+		if (maxFrames < 0) throw new IllegalArgumentException("maxFrames < 0");
+
+		float[] buffer = new float[Math.min(maxFrames, bufferFrames) * channels];
+		int length = 0;
+		int maxLength = (int) Math.min((long) maxFrames * channels, MAX_BUFFER_SIZE - MAX_BUFFER_SIZE % channels);
+		for (int frames; length < maxLength && (frames = framesUntilIdle()) > 0; ) {
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, maxLength));
+			}
+			int blockLength = Math.min(frames * channels, buffer.length - length);
+			fillBuffer(buffer, length, blockLength);
+			length += blockLength;
+		}
+		return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+	}
+
+	// the frames to render next: a block, once idle what the output stage still holds back, then 0
+	private int framesUntilIdle() {
+		return isIdle() ? Math.min(heldFrames, bufferFrames) : bufferFrames;
+	}
+
+	/*
+	 * A stream which renders on demand, from the reading thread.
+	 * frameLength of NOT_SPECIFIED renders until idle.
+	 */
+	public AudioInputStream getRenderStream(long frameLength) {
+		checkNotPlaying();
+		return new AudioInputStream(new RenderInputStream(frameLength), audioFormat, frameLength);
+	}
+
+	// reads the clips last published by updateClips only, the mixing state belongs to the rendering thread
+	public boolean isIdle() {
+		for (SoundClip clip : clipCache) {
+			if (clip.isPlaying() && clip.hasPlayingInstances()) return false;
+		}
+		return true;
+	}
+
+	private void updateMixerClips() {
+		if (clipCacheUpdated) {
+			/*
+			 * Concurrency plan: Better to allow a late  
+			 * or redundant update than to skip an update.
+			 */
+			clipCacheUpdated = false;
+			mixerClips = clipCache;
+			clipCount = mixerClips.length;
+			activeClipsStale = true;
+
+			int voices = 0;
+			for (int n = 0; n < clipCount; n ++) {
+				voices += mixerClips[n].getPolyphony();
+			}
+			if (voiceAudibility.length < voices) {
+				voiceAudibility = new double[voices];
+				voiceSelection = new double[voices];
+				voiceReal = new boolean[voices];
+			}
+		}
+	}
+
+	/*
+	 * Mixes one buffer (up to readBufferSize entries) of all registered clips into normalizedOut.
+	 * Only ever called by one thread at a time, the playback thread
+	 * while playing, the rendering thread otherwise.
+	 *
+	 * Each active clip renders into a buffer of its own, which is added
+	 * to the mix in double, unclipped, in clip order, whichever thread
+	 * rendered it; the output stage then brings the sum into range once
+	 * per buffer.
+	 */
+	void fillBuffer(float[] normalizedOut, int offset, int length) {
+		boolean measured = metrics.isEnabled();
+		long start = measured ? System.nanoTime() : 0;
+		updateMixerClips();
+		updateActiveClips();
+		Arrays.fill(mixBuffer, 0, length, 0);
+		if (mixingThreads > 1 && activeCount > 1) {
+			MixerPool mixerPool = this.mixerPool;
+			if (mixerPool == null) this.mixerPool = mixerPool = new MixerPool(mixingThreads - 1);
+			fillBufferInParallel(mixerPool, length);
+		}
+		else fillBufferFromClips(length);
+		boolean mixed = activeCount > 0;
+		dropIdleClips();
+		applyOutputStage(normalizedOut, offset, length);
+		if (appliedOutputStage != OutputStage.LIMITER) heldFrames = 0;
+		else heldFrames = mixed ? Limiter.LOOKAHEAD_FRAMES : Math.max(0, heldFrames - length / channels);
+		frameTime += length / channels;
+		if (measured) {
+			metrics.recordBlock(System.nanoTime() - start, length / channels, audioFormat.getSampleRate());
+			int voices = 0;
+			for (int n = 0; n < activeCount; n ++) {
+				voices += activeClips[n].getActiveVoiceCount();
+			}
+			metrics.recordActivity(activeCount, voices);
+		}
+	}
+
+	/*
+	 * Idle clips cost nothing per buffer, only the active ones are mixed.
+	 * A clip which has become idle is dropped after the buffer, and its
+	 * next command wakes it up again. SoundClip.muxerActive is set while
+	 * a clip is active or on the woken stack, so it is pushed only once
+	 * meanwhile; only the playback side ever clears it, and only for a
+	 * clip which is in neither.
+	 */
+	private void updateActiveClips() {
+		if (activeClipsStale) {
+			activeClipsStale = false;
+			for (SoundClip clip : memberClips) {
+				clip.muxerMember = false;
+			}
+			memberClips = mixerClips;
+			for (int n = 0; n < clipCount; n ++) {
+				mixerClips[n].muxerMember = true;
+			}
+			if (activeClips.length < clipCount) {
+				activeClips = Arrays.copyOf(activeClips, clipCount);
+				clipVoices = new int[clipCount];
+			}
+			// removed clips are dropped, the rest stay active
+			int count = 0;
+			for (int n = 0; n < activeCount; n ++) {
+				SoundClip clip = activeClips[n];
+				if (clip.muxerMember) {
+					clip.muxerIndex = count;
+					activeClips[count ++] = clip;
+				}
+				else {
+					clip.muxerIndex = NOT_SPECIFIED;
+					clip.muxerActive.set(false);
+				}
+			}
+			Arrays.fill(activeClips, count, activeCount, null);
+			activeCount = count;
+		}
+		for (SoundClip clip = woken.getAndSet(null); clip != null; ) {
+			SoundClip next = clip.nextWoken;
+			clip.nextWoken = null;
+			if (clip.muxerMember) {
+				if (clip.muxerIndex == NOT_SPECIFIED) {
+					clip.muxerIndex = activeCount;
+					activeClips[activeCount ++] = clip;
+				}
+			}
+			else {
+				// removed, or not added yet: then it tries again with the next buffer
+				clip.muxerActive.set(false);
+				if (clip.getSoundMuxer() == this && !clip.isIdle() && clip.muxerActive.compareAndSet(false, true)) wake(clip);
+			}
+			clip = next;
+		}
+	}
+
+	// a clip with something to render again
+	void wake(SoundClip clip) {
+		for (;;) {
+			SoundClip head = woken.get();
+			clip.nextWoken = head;
+			if (woken.compareAndSet(head, clip)) return;
+		}
+	}
+
+	private void dropIdleClips() {
+		int count = 0;
+		for (int n = 0; n < activeCount; n ++) {
+			SoundClip clip = activeClips[n];
+			if (clip.isIdle()) {
+				clip.muxerActive.set(false);
+				// a command sent meanwhile either finds the flag cleared and wakes the clip, or is seen here
+				if (clip.isIdle() || !clip.muxerActive.compareAndSet(false, true)) {
+					clip.muxerIndex = NOT_SPECIFIED;
+					continue;
+				}
+			}
+			clip.muxerIndex = count;
+			activeClips[count ++] = clip;
+		}
+		Arrays.fill(activeClips, count, activeCount, null);
+		activeCount = count;
+	}
+
+	private void fillBufferFromClips(int length) {
+		int voiceLimit = this.voiceLimit;
+		if (voiceLimit != NOT_SPECIFIED) {
+			fillBufferFromVoices(length, voiceLimit);
+			return;
+		}
+		// loop through the active clips, summing
+		for (int n = 0; n < activeCount; n ++) {
+			if (activeClips[n].isPlaying()) {
+				try {
+					Arrays.fill(audioData, 0, length, 0);
+					activeClips[n].mix(audioData, 0, length, channels, frameTime);
+					addToMix(audioData, 0, length);
+				} 
+				catch (Exception ignored) {
+				}							
+			}
+		}
+	}
+
+	// fillBufferFromClips under a voice limit
+	private void fillBufferFromVoices(int length, int voiceLimit) {
+		collectVoices(voiceLimit);
+		for (int n = 0; n < activeCount; n ++) {
+			if (clipVoices[n] != NOT_SPECIFIED) {
+				try {
+					Arrays.fill(audioData, 0, length, 0);
+					activeClips[n].mixVoices(audioData, 0, length, channels, voiceReal, clipVoices[n]);
+					addToMix(audioData, 0, length);
+				}
+				catch (Exception ignored) {
+				}
+			}
+		}
+	}
+
+	private void addToMix(float[] clipBuffer, int start, int end) {
+		for (int i = start; i < end; i ++) {
+			mixBuffer[i] += clipBuffer[i];
+		}
+	}
+
+	// lists the voices of the active clips and picks the real ones, the clips collected hold their render role until mixed
+	private void collectVoices(int voiceLimit) {
+		int count = 0;
+		for (int n = 0; n < activeCount; n ++) {
+			if (activeClips[n].isPlaying()) {
+				clipVoices[n] = count;
+				count += activeClips[n].collectVoices(voiceAudibility, count, frameTime);
+			}
+			else clipVoices[n] = NOT_SPECIFIED;
+		}
+		int real = selectVoices(count, voiceLimit);
+		voiceCount = count;
+		virtualVoiceCount = count - real;
+	}
+
+	/*
+	 * Parallel mixing: the clips render into buffers of their own on the
+	 * pool, then the pool sums these up, split by sample range. Every
+	 * sample is still summed in clip order, so the output is the same
+	 * as fillBufferFromClips', whatever the number of threads.
+	 */
+	private void fillBufferInParallel(MixerPool mixerPool, int length) {
+		if (clipBuffers.length < activeCount) {
+			float[][] clipBuffers = Arrays.copyOf(this.clipBuffers, activeClips.length);
+			for (int n = this.clipBuffers.length; n < clipBuffers.length; n ++) {
+				clipBuffers[n] = new float[readBufferSize];
+			}
+			this.clipBuffers = clipBuffers;
+			clipMixed = new boolean[clipBuffers.length];
+		}
+		mixVoiceLimit = voiceLimit;
+		if (mixVoiceLimit != NOT_SPECIFIED) collectVoices(mixVoiceLimit);
+		mixLength = length;
+		int slices = Math.min(mixerPool.getParallelism(), Math.max(1, length / MIN_SLICE_LENGTH));
+		// whole frames
+		mixSliceLength = ((length + slices - 1) / slices + channels - 1) / channels * channels;
+		mixerPool.invoke(activeCount, mixClip);
+		mixerPool.invoke((length + mixSliceLength - 1) / mixSliceLength, sumClips);
+	}
+
+	private void mixClip(int n) {
+		clipMixed[n] = false;
+		if (mixVoiceLimit == NOT_SPECIFIED ? activeClips[n].isPlaying() : clipVoices[n] != NOT_SPECIFIED) {
+			try {
+				Arrays.fill(clipBuffers[n], 0, mixLength, 0);
+				if (mixVoiceLimit == NOT_SPECIFIED) activeClips[n].mix(clipBuffers[n], 0, mixLength, channels, frameTime);
+				else activeClips[n].mixVoices(clipBuffers[n], 0, mixLength, channels, voiceReal, clipVoices[n]);
+				clipMixed[n] = true;
+			}
+			catch (Exception ignored) {
+			}
+		}
+	}
+
+	private void sumClips(int slice) {
+		int start = slice * mixSliceLength;
+		int end = Math.min(mixLength, start + mixSliceLength);
+		for (int n = 0; n < activeCount; n ++) {
+			if (clipMixed[n]) addToMix(clipBuffers[n], start, end);
+		}
+	}
+
+	// the only place the mix is brought into range
+	private void applyOutputStage(float[] normalizedOut, int offset, int length) {
+		OutputStage outputStage = this.outputStage;
+		if (outputStage == OutputStage.LIMITER) {
+			// starts over, instead of letting out what it held back when last used
+			if (appliedOutputStage != OutputStage.LIMITER) {
+				if (limiter == null) limiter = new Limiter(audioFormat.getSampleRate(), channels);
+				else limiter.reset();
+			}
+			limiter.process(mixBuffer, length, normalizedOut, offset);
+		}
+		else if (outputStage == OutputStage.SOFT_CLIP) {
+			for (int i = 0; i < length; i ++) {
+				normalizedOut[offset + i] = (float) softClip(mixBuffer[i]);
+			}
+		}
+		else {
+			for (int i = 0; i < length; i ++) {
+				double sample = mixBuffer[i];
+				if (sample > 1) sample = 1;
+				else if (sample < -1) sample = -1;
+				normalizedOut[offset + i] = (float) sample;
+			}
+		}
+		appliedOutputStage = outputStage;
+	}
+
+	// tanh, as a rational approximation which reaches 1 at 3
+	private static double softClip(double x) {
+		if (x <= -3) return -1;
+		else if (x >= 3) return 1;
+		double x2 = x * x;
+		return x * (27 + x2) / (27 + 9 * x2);
+	}
+
+	/*
+	 * Marks the voiceLimit most audible of the count voices collected as
+	 * real, the first ones listed among equally audible voices.
+	 * Returns the number of real voices.
+	 */
+	private int selectVoices(int count, int voiceLimit) {
+		if (count <= voiceLimit) {
+			Arrays.fill(voiceReal, 0, count, true);
+			return count;
+		}
+		System.arraycopy(voiceAudibility, 0, voiceSelection, 0, count);
+		double threshold = select(voiceSelection, count, count - voiceLimit);
+		int above = 0;
+		for (int i = 0; i < count; i ++) {
+			if (voiceAudibility[i] > threshold) above ++;
+		}
+		int ties = voiceLimit - above;
+		for (int i = 0; i < count; i ++) {
+			double audibility = voiceAudibility[i];
+			voiceReal[i] = audibility > threshold || (audibility == threshold && ties -- > 0);
+		}
+		return voiceLimit;
+	}
+
+	// Hoare's selection: rearranges values[0, count) until values[k] is the k-th smallest
+	private static double select(double[] values, int count, int k) {
+		int left = 0, right = count - 1;
+		while (left < right) {
+			double pivot = values[(left + right) >>> 1];
+			int i = left, j = right;
+			while (i <= j) {
+				while (values[i] < pivot) i ++;
+				while (values[j] > pivot) j --;
+				if (i <= j) {
+					double value = values[i];
+					values[i ++] = values[j];
+					values[j --] = value;
+				}
+			}
+			if (k <= j) right = j;
+			else if (k >= i) left = i;
+			else break;
+		}
+		return values[k];
+	}
+
+	public static final class OutputStage {
+
+		private final String name;
+
+		private OutputStage(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		// clips the sum at full scale
+		public static final OutputStage HARD_CLIP = new OutputStage("HardClip");
+		// tanh-shaped, rounds off peaks but also colors loud passages below full scale
+		public static final OutputStage SOFT_CLIP = new OutputStage("SoftClip");
+		// look-ahead limiter, transparent below full scale; delays the output by about 1.5 ms
+		public static final OutputStage LIMITER = new OutputStage("Limiter");
+
+	}
+
+	private final class RenderInputStream extends InputStream {
+		private final long frameLength;
+		private long framesRendered;
+		private final float[] renderBuffer = new float[readBufferSize];
+		private final byte[] audioBytes = new byte[blockByteSize];
+		private final ShortBuffer audioBytesView = audioBytesView(audioBytes);
+		private int position, limit;
+
+		private RenderInputStream(long frameLength) {
+			this.frameLength = frameLength;
+		}
+
+		private boolean renderBlock() {
+			checkNotPlaying();
+			long frames;
+			if (frameLength == NOT_SPECIFIED) frames = framesUntilIdle();
+			else frames = Math.min(bufferFrames, frameLength - framesRendered);
+			if (frames <= 0) return false;
+
+			int length = (int) frames * channels;
+			fillBuffer(renderBuffer, 0, length);
+			audioBytesView.clear();
+			renderConverter.toPcm16(renderBuffer, 0, length, audioBytesView, dither);
+			framesRendered += frames;
+			position = 0;
+			limit = length * 2;
+			return true;
+		}
+
+		@Override
+		public int read() {
+			if (position == limit && !renderBlock()) return -1;
+			return audioBytes[position ++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (position == limit && !renderBlock()) return -1;
+			int n = Math.min(len, limit - position);
+			System.arraycopy(audioBytes, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return limit - position;
+		}
 	}
 	
+	// moves the target latency by frames, within the bounds
+	private void adaptLatency(int frames) {
+		int minFrames = minLatencyFrames, maxFrames = maxLatencyFrames;
+		if (minFrames != NOT_SPECIFIED) targetLatencyFrames = clamp(targetLatencyFrames + frames, minFrames, maxFrames);
+	}
+
 	private final class SoundMuxerPlayer implements Runnable {
-		private final SourceDataLine sourceDataLine;
 		private final float[] readBuffer;
-		private final float[] audioData;
 		private final byte[] audioBytes;
-		private SoundClip[] mixerClips;
+		private final ShortBuffer audioBytesView;
+		private final SampleConverter sampleConverter = new SampleConverter();
 
-		private SoundMuxerPlayer(Mixer mixer) throws LineUnavailableException {
-			audioBytes = new byte[sdlByteBufferSize];
+		private SoundMuxerPlayer() throws LineUnavailableException {
+			audioBytes = new byte[blockByteSize];
+			audioBytesView = audioBytesView(audioBytes);
 			readBuffer = new float[readBufferSize];
-			audioData = new float[readBufferSize];
 
-			sourceDataLine = (SourceDataLine) (mixer == null ? AudioSystem.getLine(DEFAULT_AUDIO_LINE_INFO) : mixer.getLine(DEFAULT_AUDIO_LINE_INFO));
-			sourceDataLine.open(DEFAULT_AUDIO_FORMAT, sdlByteBufferSize);
-			sourceDataLine.start();
+			audioSink.open(audioFormat, getSourceDataLineBufferSize());
+			audioSink.start();
 		}
 
+		/*
+		 * The sink is asked what it holds once per round. One which held
+		 * frames before and is found empty ran dry: an underrun. Sinks
+		 * taking what is written right away never hold any, so never
+		 * count one.
+		 */
 		public void run() {
-			while(playing) {
-		    	if (clipCacheUpdated) {
-		    		/*
-		    		 * Concurrency plan: Better to allow a late  
-		    		 * or redundant update than to skip an update.
-		    		 */
-		    		clipCacheUpdated = false;
-		    		mixerClips = clipCache;
-		    		clipCount = mixerClips.length;
-		    	}
-				Arrays.fill(readBuffer, 0);
-				fillBufferFromClips(readBuffer);
-				fromPcmToAudioBytes(audioBytes, readBuffer);
-				sourceDataLine.write(audioBytes, 0, sdlByteBufferSize);
-			}
-
-			sourceDataLine.drain();
-			sourceDataLine.close();
-		}
-		
-	   private void fillBufferFromClips(float[] normalizedOut) {
-	    	// loop through all clips, summing
-			for (int n = 0; n < clipCount; n ++) {
-				if (mixerClips[n].isPlaying()) {
-					try {
-						mixerClips[n].read(audioData, 0, readBufferSize);
-						for (int i = 0; i < readBufferSize; i ++) {
-							normalizedOut[i] += audioData[i];
-						}
-					} 
-					catch (Exception ignored) {
-					}							
-				}
-				for (int i = 0; i < readBufferSize; i ++) {
-					if (normalizedOut[i] > 1) normalizedOut[i] = 1;
-					else if (normalizedOut[i] < -1) normalizedOut[i] = -1;
+			try {
+				int frameSize = channels * 2;
+				boolean queues = false;
+				long framesSinceUnderrun = 0;
+				while(playing) {
+					int queued = Math.max(0, audioSink.getBufferSize() - audioSink.available()) / frameSize;
+					if (queued > 0) queues = true;
+					else if (queues) {
+						underrunCount ++;
+						metrics.recordUnderrun();
+						framesSinceUnderrun = 0;
+						if (adaptiveLatency && targetLatencyFrames != NOT_SPECIFIED) adaptLatency(bufferFrames);
+					}
+					int target = targetLatencyFrames;
+					if (target != NOT_SPECIFIED && queued > 0 && queued + bufferFrames > target) {
+						// until there is room for the block below the target
+						LockSupport.parkNanos((long) ((queued + bufferFrames - target) * 1_000_000_000.0 / audioFormat.getSampleRate()));
+						continue;
+					}
+
+					fillBuffer(readBuffer, 0, readBufferSize);
+					audioBytesView.clear();
+					sampleConverter.toPcm16(readBuffer, 0, readBufferSize, audioBytesView, dither);
+					audioSink.write(audioBytes, 0, blockByteSize);
+					latencyFrames = queued + bufferFrames;
+
+					framesSinceUnderrun += bufferFrames;
+					if (framesSinceUnderrun >= ADAPT_SECONDS * (long) audioFormat.getSampleRate()) {
+						framesSinceUnderrun = 0;
+						if (adaptiveLatency && targetLatencyFrames != NOT_SPECIFIED) adaptLatency(-bufferFrames);
+					}
 				}
 			}
+			finally {
+				closeMixerPool();
+			}
+			audioSink.drain();
+			audioSink.close();
 		}
 
 	}
 
-}
\ No newline at end of file
+}
@@ -4,6 +4,9 @@ import javax.sound.sampled.*;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -15,7 +18,7 @@ final class Utils {
 
     static final int DEFAULT_BUFFER_FRAMES = 2048;
     static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
-    static final AudioFormat DEFAULT_AUDIO_FORMAT = new AudioFormat(44100, 16, 2, true, false);
+    static final AudioFormat DEFAULT_AUDIO_FORMAT = audioFormat(44100);
     static final DataLine.Info DEFAULT_AUDIO_LINE_INFO = new DataLine.Info(SourceDataLine.class, DEFAULT_AUDIO_FORMAT);
     static final int SOUND_VOLUME_STEPS = 1024;
     static final int SOUND_SPEED_STEPS = 4096;
@@ -33,6 +36,35 @@ final class Utils {
         }
     }
 
+    /*
+     * Waits for a playback thread to drain and close audioSink, for twice
+     * what the sink holds takes to play and a little more; a sink nobody
+     * takes from is then closed under the thread, which releases it.
+     * Returns at once on the playback thread itself. Keeps the interrupt status.
+     */
+    static void awaitPlayback(Thread thread, AudioSink audioSink) {
+        if (thread == null || thread == Thread.currentThread()) return;
+        AudioFormat format = audioSink.getFormat();
+        long timeout = 100_000_000L;
+        if (format != null) timeout += (long) (audioSink.getBufferSize() / format.getFrameSize() * 2_000_000_000.0 / format.getFrameRate());
+        long deadline = System.nanoTime() + timeout;
+        boolean closed = false, interrupted = false;
+        while (thread.isAlive()) {
+            long remaining = deadline - System.nanoTime();
+            if (!closed && remaining <= 0) {
+                audioSink.close();
+                closed = true;
+            }
+            try {
+                if (closed) thread.join();
+                else thread.join(Math.max(1, remaining / 1_000_000L));
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
     static byte[] readNBytes(InputStream in, int n) throws IOException {
         if (n < 0) throw new IllegalArgumentException("n < 0");
         Objects.requireNonNull(in);
@@ -150,21 +182,41 @@ final class Utils {
                 true,
                 sourceFormat.isBigEndian()
         );
-        return AudioSystem.getAudioInputStream(targetFormat, AudioSystem.getAudioInputStream(decodedFormat, sourceStream));
-    }
+        AudioInputStream decodedStream = AudioSystem.getAudioInputStream(decodedFormat, sourceStream);
 
-    static void fromPcmToAudioBytes(byte[] audioBytes, float[] sourcePcm) {
-        if (sourcePcm.length * 2 != audioBytes.length) {
-            throw new IllegalArgumentException(
-                    "Destination array must be exactly twice the length of the source array");
+        // the rate is converted by RateConverter, AudioSystem may not support the ratio, or be slow at it
+        float sampleRate = sourceFormat.getSampleRate();
+        if (sampleRate != NOT_SPECIFIED && targetFormat.getSampleRate() != NOT_SPECIFIED && sampleRate != targetFormat.getSampleRate()) {
+            AudioInputStream pcmStream = AudioSystem.getAudioInputStream(audioFormat(sampleRate, targetFormat.getChannels()), decodedStream);
+            decodedStream = RateConverter.convert(pcmStream, targetFormat.getSampleRate());
         }
+        return AudioSystem.getAudioInputStream(targetFormat, decodedStream);
+    }
 
-        for (int i = 0, n = sourcePcm.length; i < n; i ++) {
-            sourcePcm[i] *= 32767;
+    // 16-bit signed little-endian stereo, what SoundClip decodes to and SoundMuxer outputs
+    static AudioFormat audioFormat(float sampleRate) {
+        return audioFormat(sampleRate, 2);
+    }
 
-            audioBytes[i * 2] = (byte) sourcePcm[i];
-            audioBytes[i * 2 + 1] = (byte)((int) sourcePcm[i] >> 8);
-        }
+    static AudioFormat audioFormat(float sampleRate, int channels) {
+        return new AudioFormat(sampleRate, 16, channels, true, false);
+    }
+
+    static float checkSampleRate(float sampleRate) {
+        if (!(sampleRate > 0)) throw new IllegalArgumentException("sampleRate <= 0");
+        return sampleRate;
+    }
+
+    static boolean isSupportedAudioFormat(AudioFormat format) {
+        return format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED && format.getSampleSizeInBits() == 16
+                && format.getChannels() > 0 && !format.isBigEndian() && format.getSampleRate() > 0;
+    }
+
+    // a view of audioBytes to convert samples into, in the byte order of DEFAULT_AUDIO_FORMAT
+    static ShortBuffer audioBytesView(byte[] audioBytes) {
+        return ByteBuffer.wrap(audioBytes)
+                .order(DEFAULT_AUDIO_FORMAT.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN)
+                .asShortBuffer();
     }
 
 }
@@ -0,0 +1,183 @@
+package com.tianscar.jamplayer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Indexed binary min-heap of the instances play() started, in the order
+ * SoundClip steals them in. An instance has at most one entry, found
+ * through positions, so offering it again updates its entry in place
+ * and the heap never grows beyond polyphony. Entries of plays which
+ * have ended since are not removed when they end, the thief drops them.
+ *
+ * offer is lock-free, so a play which steals nothing takes no lock: it
+ * only pushes the instance onto a stack of pending offers, which peek
+ * takes into the heap. Everything but offer is not thread-safe,
+ * SoundClip guards it.
+ */
+final class VoiceHeap {
+
+    static final int EMPTY = -1;
+
+    // instance IDs, heap ordered
+    private final int[] heap;
+    // index of every instance in heap, EMPTY if it has no entry
+    private final int[] positions;
+    private int size;
+
+    private final int[] starts;
+    private final int[] priorities;
+    private final double[] volumes;
+    private final long[] sequences;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    // the pending offers, instance IDs linked through pendingNext, an instance at most once
+    private final AtomicInteger pendingTop = new AtomicInteger(EMPTY);
+    private final int[] pendingNext;
+    private final AtomicIntegerArray pending;
+    // the latest offer of every instance, published by the write to pendingStarts
+    private final AtomicIntegerArray pendingStarts;
+    private final int[] pendingPriorities;
+    private final double[] pendingVolumes;
+    private final long[] pendingSequences;
+
+    private SoundClip.VoiceStealing policy;
+
+    VoiceHeap(int capacity, SoundClip.VoiceStealing policy) {
+        heap = new int[capacity];
+        positions = new int[capacity];
+        Arrays.fill(positions, EMPTY);
+        starts = new int[capacity];
+        priorities = new int[capacity];
+        volumes = new double[capacity];
+        sequences = new long[capacity];
+        pendingNext = new int[capacity];
+        pending = new AtomicIntegerArray(capacity);
+        pendingStarts = new AtomicIntegerArray(capacity);
+        pendingPriorities = new int[capacity];
+        pendingVolumes = new double[capacity];
+        pendingSequences = new long[capacity];
+        this.policy = policy;
+    }
+
+    void setPolicy(SoundClip.VoiceStealing policy) {
+        this.policy = policy;
+        for (int i = size / 2 - 1; i >= 0; i --) {
+            siftDown(i);
+        }
+    }
+
+    /*
+     * Any thread, by the owner of the instance: the play numbered starts of
+     * the instance, which replaces the entry of an older play.
+     */
+    void offer(int instanceID, int starts, int priority, double volume) {
+        pendingPriorities[instanceID] = priority;
+        pendingVolumes[instanceID] = volume;
+        pendingSequences[instanceID] = nextSequence.getAndIncrement();
+        pendingStarts.set(instanceID, starts);
+        // already pending, the drain reads this offer after it clears the flag
+        if (!pending.compareAndSet(instanceID, 0, 1)) return;
+        for (int top; ; ) {
+            top = pendingTop.get();
+            pendingNext[instanceID] = top;
+            if (pendingTop.compareAndSet(top, instanceID)) return;
+        }
+    }
+
+    // takes the pending offers into the heap, the whole stack at once so a pop can't meet an ABA
+    private void drain() {
+        for (int instanceID = pendingTop.getAndSet(EMPTY); instanceID != EMPTY; ) {
+            int next = pendingNext[instanceID];
+            pending.set(instanceID, 0);
+            put(instanceID, pendingStarts.get(instanceID), pendingPriorities[instanceID],
+                    pendingVolumes[instanceID], pendingSequences[instanceID]);
+            instanceID = next;
+        }
+    }
+
+    private void put(int instanceID, int starts, int priority, double volume, long sequence) {
+        int position = positions[instanceID];
+        if (position != EMPTY && starts - this.starts[instanceID] < 0) return;
+        this.starts[instanceID] = starts;
+        priorities[instanceID] = priority;
+        volumes[instanceID] = volume;
+        sequences[instanceID] = sequence;
+        if (position == EMPTY) {
+            position = size ++;
+            heap[position] = instanceID;
+            positions[instanceID] = position;
+            siftUp(position);
+        }
+        else {
+            siftUp(position);
+            siftDown(positions[instanceID]);
+        }
+    }
+
+    void remove(int instanceID) {
+        int position = positions[instanceID];
+        if (position == EMPTY) return;
+        positions[instanceID] = EMPTY;
+        int last = heap[-- size];
+        if (position < size) {
+            heap[position] = last;
+            positions[last] = position;
+            siftUp(position);
+            siftDown(positions[last]);
+        }
+    }
+
+    // the instance to steal first, EMPTY if none
+    int peek() {
+        drain();
+        return size == 0 ? EMPTY : heap[0];
+    }
+
+    int getStarts(int instanceID) {
+        return starts[instanceID];
+    }
+
+    int getPriority(int instanceID) {
+        return priorities[instanceID];
+    }
+
+    double getVolume(int instanceID) {
+        return volumes[instanceID];
+    }
+
+    // whether a goes before b, the older one if the policy does not tell
+    private boolean before(int a, int b) {
+        if (policy == SoundClip.VoiceStealing.QUIETEST && volumes[a] != volumes[b]) return volumes[a] < volumes[b];
+        if (policy == SoundClip.VoiceStealing.LOWEST_PRIORITY && priorities[a] != priorities[b]) return priorities[a] < priorities[b];
+        return sequences[a] < sequences[b];
+    }
+
+    private void siftUp(int position) {
+        int instanceID = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!before(instanceID, heap[parent])) break;
+            heap[position] = heap[parent];
+            positions[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = instanceID;
+        positions[instanceID] = position;
+    }
+
+    private void siftDown(int position) {
+        int instanceID = heap[position];
+        for (int child; (child = position * 2 + 1) < size; position = child) {
+            if (child + 1 < size && before(heap[child + 1], heap[child])) child ++;
+            if (!before(heap[child], instanceID)) break;
+            heap[position] = heap[child];
+            positions[heap[position]] = position;
+        }
+        heap[position] = instanceID;
+        positions[instanceID] = position;
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.tianscar.jamplayer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+
+// writes a PCM WAV file, the RIFF sizes are patched in on close()
+public class WaveFileAudioSink extends AbstractAudioSink {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final File file;
+    public File getFile() {
+        return file;
+    }
+
+    private RandomAccessFile output;
+    private long dataSize;
+
+    public WaveFileAudioSink(File file) {
+        this.file = Objects.requireNonNull(file);
+    }
+
+    @Override
+    protected void implOpen(AudioFormat format, int bufferSize) throws LineUnavailableException {
+        boolean signed = format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED);
+        if (!(signed || format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED))
+                || (format.getSampleSizeInBits() > 8 && format.isBigEndian())
+                || (format.getSampleSizeInBits() == 8) == signed) {
+            throw new IllegalArgumentException("Unsupported WAV format: " + format);
+        }
+        try {
+            output = new RandomAccessFile(file, "rw");
+            output.setLength(0);
+            output.write(new byte[HEADER_SIZE]);
+        } catch (IOException e) {
+            closeQuietly();
+            LineUnavailableException exception = new LineUnavailableException("Cannot open " + file);
+            exception.initCause(e);
+            throw exception;
+        }
+        dataSize = 0;
+    }
+
+    @Override
+    protected int implWrite(byte[] b, int off, int len) {
+        try {
+            output.write(b, off, len);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        dataSize += len;
+        return len;
+    }
+
+    @Override
+    protected void implClose() {
+        try {
+            AudioFormat format = getFormat();
+            byte[] header = new byte[HEADER_SIZE];
+            putAscii(header, 0, "RIFF");
+            putInt(header, 4, (int) Math.min(dataSize + HEADER_SIZE - 8, 0xFFFFFFFFL));
+            putAscii(header, 8, "WAVE");
+            putAscii(header, 12, "fmt ");
+            putInt(header, 16, 16);
+            putShort(header, 20, 1);
+            putShort(header, 22, format.getChannels());
+            putInt(header, 24, (int) format.getSampleRate());
+            putInt(header, 28, (int) format.getFrameRate() * format.getFrameSize());
+            putShort(header, 32, format.getFrameSize());
+            putShort(header, 34, format.getSampleSizeInBits());
+            putAscii(header, 36, "data");
+            putInt(header, 40, (int) Math.min(dataSize, 0xFFFFFFFFL));
+            output.seek(0);
+            output.write(header);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        if (output != null) {
+            Utils.closeQuietly(output);
+            output = null;
+        }
+    }
+
+    private static void putAscii(byte[] b, int off, String s) {
+        for (int i = 0; i < 4; i ++) {
+            b[off + i] = (byte) s.charAt(i);
+        }
+    }
+
+    private static void putShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        putShort(b, off, value);
+        putShort(b, off + 2, value >> 16);
+    }
+
+}
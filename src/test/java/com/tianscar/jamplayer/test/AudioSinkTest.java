@@ -0,0 +1,271 @@
+package com.tianscar.jamplayer.test;
+
+import com.tianscar.jamplayer.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+public class AudioSinkTest {
+
+	public static final int DEFAULT_BUFFER_FRAMES = 1024;
+	public static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+
+	@Test
+	public void testSoundMuxerToRingBuffer() throws LineUnavailableException, InterruptedException {
+		float[] clipData = new float[DEFAULT_BUFFER_FRAMES * 2];
+		for (int i = 0; i < clipData.length; i ++) {
+			clipData[i] = 0.5f;
+		}
+		SoundClip testClip = new SoundClip(clipData, 1);
+		RingBufferAudioSink testSink = new RingBufferAudioSink(DEFAULT_BUFFER_FRAMES * 4 * 8);
+		SoundMuxer testMuxer = new SoundMuxer(testSink, DEFAULT_BUFFER_FRAMES, Thread.NORM_PRIORITY);
+		testClip.open(testMuxer);
+		testClip.play();
+		testMuxer.start();
+
+		byte[] bytes = new byte[DEFAULT_BUFFER_FRAMES * 4];
+		int read = 0;
+		while (read < bytes.length) {
+			read += testSink.read(bytes, read, bytes.length - read);
+			Thread.sleep(1);
+		}
+		for (int i = 0; i < bytes.length; i += 2) {
+			Assertions.assertEquals(16384, (short) ((bytes[i] & 0xFF) | (bytes[i + 1] << 8)));
+		}
+
+		testMuxer.stop();
+		// the playback thread is blocked on the full ring, closing the sink releases it
+		testSink.close();
+		testClip.close();
+	}
+
+	// a device which, whenever asked what it holds, has played drain bytes more, or all but keep
+	private static final class SimulatedSink extends AbstractAudioSink {
+		private volatile int drain, keep;
+		private int queued, maxQueued;
+
+		@Override
+		protected int implWrite(byte[] b, int off, int len) {
+			synchronized (lock) {
+				queued += len;
+				maxQueued = Math.max(maxQueued, queued);
+			}
+			return len;
+		}
+
+		@Override
+		public int available() {
+			synchronized (lock) {
+				queued = Math.max(queued - drain, Math.min(queued, keep));
+				return getBufferSize() - queued;
+			}
+		}
+
+		private int getMaxQueued() {
+			synchronized (lock) {
+				return maxQueued;
+			}
+		}
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 30_000;
+		while (!condition.getAsBoolean()) {
+			Assertions.assertTrue(System.currentTimeMillis() < deadline, "timed out");
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void testSoundMuxerLatency() throws LineUnavailableException, InterruptedException {
+		SimulatedSink testSink = new SimulatedSink();
+		SoundMuxer testMuxer = new SoundMuxer(testSink, 256, Thread.NORM_PRIORITY);
+		Assertions.assertEquals(256, testMuxer.getSinkBufferFrames());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> testMuxer.setSinkBufferFrames(128));
+		testMuxer.setSinkBufferFrames(256 * 16);
+		Assertions.assertEquals(256 * 16 * 4, testMuxer.getSourceDataLineBufferSize());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> testMuxer.setLatencyBounds(128, 512));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> testMuxer.setLatencyBounds(512, 256));
+		testMuxer.setLatencyBounds(512, 2048);
+		Assertions.assertEquals(512, testMuxer.getTargetLatencyFrames());
+
+		// never more than the target queued, however large the sink's buffer
+		testSink.drain = 64 * 4;
+		testMuxer.start();
+		Assertions.assertEquals(256 * 16 * 4, testSink.getBufferSize());
+		await(() -> testMuxer.getFrameTime() >= 256 * 32);
+		Assertions.assertTrue(testSink.getMaxQueued() <= 512 * 4);
+		Assertions.assertTrue(testMuxer.getLatencyFrames() <= 512);
+		Assertions.assertEquals(0, testMuxer.getUnderrunCount());
+
+		// runs dry all the time: underruns, upon which the target rises up to the bound
+		testMuxer.setAdaptiveLatency(true);
+		testSink.drain = Integer.MAX_VALUE;
+		await(() -> testMuxer.getTargetLatencyFrames() == 2048);
+		Assertions.assertTrue(testMuxer.getUnderrunCount() >= (2048 - 512) / 256);
+
+		// and falls back once the sink keeps up for a while
+		testSink.keep = 4;
+		await(() -> testMuxer.getTargetLatencyFrames() == 512);
+		testMuxer.stop();
+	}
+
+	@Test
+	public void testNoUnderrunsWithoutQueue() throws LineUnavailableException, InterruptedException {
+		NullAudioSink testSink = new NullAudioSink();
+		SoundMuxer testMuxer = new SoundMuxer(testSink, 256, Thread.NORM_PRIORITY);
+		testMuxer.start();
+		await(() -> testMuxer.getFrameTime() >= 256 * 64);
+		testMuxer.stop();
+		Assertions.assertEquals(0, testMuxer.getUnderrunCount());
+	}
+
+	@Test
+	public void testCallbackSinkPosition() throws LineUnavailableException, InterruptedException {
+		AtomicLong received = new AtomicLong();
+		CallbackAudioSink testSink = new CallbackAudioSink((b, off, len) -> received.addAndGet(len));
+		SoundClip testClip = new SoundClip(new float[DEFAULT_BUFFER_FRAMES * 2], 1);
+		testClip.open(testSink, DEFAULT_BUFFER_FRAMES, Thread.NORM_PRIORITY);
+		while (received.get() < DEFAULT_BUFFER_FRAMES * 4 * 4) {
+			Thread.sleep(1);
+		}
+		testClip.close();
+		Assertions.assertTrue(testSink.getLongFramePosition() >= DEFAULT_BUFFER_FRAMES * 4);
+	}
+
+	@Test
+	public void testNullSink() throws LineUnavailableException {
+		NullAudioSink testSink = new NullAudioSink();
+		testSink.open(FORMAT, AudioSystem.NOT_SPECIFIED);
+		Assertions.assertEquals(DEFAULT_BUFFER_FRAMES * 2 * 4, testSink.getBufferSize());
+		Assertions.assertEquals(400, testSink.write(new byte[400], 0, 400));
+		Assertions.assertEquals(100, testSink.getLongFramePosition());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> testSink.write(new byte[3], 0, 3));
+		testSink.close();
+		Assertions.assertFalse(testSink.isOpen());
+		Assertions.assertEquals(0, testSink.write(new byte[4], 0, 4));
+	}
+
+	@Test
+	public void testClosedLineSink() {
+		// as a playback thread finds it once the sink was closed under it
+		LineAudioSink testSink = new LineAudioSink();
+		testSink.close();
+		Assertions.assertFalse(testSink.isOpen());
+		testSink.start();
+		Assertions.assertEquals(0, testSink.write(new byte[4], 0, 4));
+		Assertions.assertEquals(0, testSink.available());
+		Assertions.assertEquals(0, testSink.getBufferSize());
+		Assertions.assertNull(testSink.getFormat());
+		Assertions.assertEquals(0, testSink.getLongFramePosition());
+		Assertions.assertEquals(0, testSink.getMicrosecondPosition());
+		testSink.drain();
+		testSink.flush();
+		testSink.stop();
+		testSink.close();
+	}
+
+	@Test
+	public void testSoundMuxerRestart() throws LineUnavailableException, InterruptedException {
+		NullAudioSink testSink = new NullAudioSink();
+		SoundMuxer testMuxer = new SoundMuxer(testSink, 256, Thread.NORM_PRIORITY);
+		SoundClip testClip = new SoundClip(new float[] { 0.5f, 0.5f }, 1);
+		testClip.open(testMuxer);
+		testClip.play(1, 1, 1, -1);
+		// the sink is closed once stop returns, so the next start opens it again
+		for (int i = 0; i < 20; i ++) {
+			testMuxer.start();
+			Thread.sleep(2);
+			testMuxer.stop();
+			Assertions.assertFalse(testSink.isOpen());
+		}
+		testClip.close();
+		testMuxer.close();
+	}
+
+	private static Set<Thread> mixingThreads() {
+		Set<Thread> threads = new HashSet<>();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("SoundMuxerMixing-")) threads.add(thread);
+		}
+		return threads;
+	}
+
+	@Test
+	public void testSoundMuxerMixingThreads() throws LineUnavailableException, InterruptedException {
+		Set<Thread> before = mixingThreads();
+		NullAudioSink testSink = new NullAudioSink();
+		SoundMuxer testMuxer = new SoundMuxer(testSink, 256, Thread.NORM_PRIORITY);
+		testMuxer.setMixingThreads(3);
+		SoundClip[] testClips = new SoundClip[4];
+		for (int n = 0; n < testClips.length; n ++) {
+			testClips[n] = new SoundClip(new float[] { 0.1f, 0.1f }, 1);
+			testClips[n].open(testMuxer);
+			testClips[n].play(1, 1, 1, -1);
+		}
+		// the playback thread closes its pool as it exits, none is left behind once stop returns
+		for (int i = 0; i < 10; i ++) {
+			testMuxer.start();
+			Thread.sleep(5);
+			if (i % 2 == 0) testMuxer.stop();
+			else testMuxer.close();
+			Set<Thread> after = mixingThreads();
+			after.removeAll(before);
+			for (Thread thread : after) {
+				thread.join(1000);
+				Assertions.assertFalse(thread.isAlive(), thread.getName() + " leaked");
+			}
+		}
+		for (SoundClip testClip : testClips) {
+			testClip.close();
+		}
+	}
+
+	@Test
+	public void testSoundClipReopen() throws LineUnavailableException, InterruptedException {
+		NullAudioSink testSink = new NullAudioSink();
+		SoundClip testClip = new SoundClip(new float[] { 0.5f, 0.5f }, 1);
+		testClip.play(1, 1, 1, -1);
+		// the sink is closed once close returns, so the next open opens it again
+		for (int i = 0; i < 20; i ++) {
+			testClip.open(testSink, 256, Thread.NORM_PRIORITY);
+			Thread.sleep(2);
+			testClip.close();
+			Assertions.assertFalse(testSink.isOpen());
+		}
+	}
+
+	@Test
+	public void testWaveFile() throws LineUnavailableException, IOException, UnsupportedAudioFileException {
+		File file = File.createTempFile("jamplayer", ".wav");
+		file.deleteOnExit();
+		WaveFileAudioSink testSink = new WaveFileAudioSink(file);
+		testSink.open(FORMAT, AudioSystem.NOT_SPECIFIED);
+		byte[] bytes = new byte[DEFAULT_BUFFER_FRAMES * 4];
+		for (int i = 0; i < bytes.length; i ++) {
+			bytes[i] = (byte) i;
+		}
+		testSink.write(bytes, 0, bytes.length);
+		testSink.close();
+
+		try (AudioInputStream stream = AudioSystem.getAudioInputStream(file)) {
+			Assertions.assertEquals(DEFAULT_BUFFER_FRAMES, stream.getFrameLength());
+			Assertions.assertTrue(stream.getFormat().matches(FORMAT));
+			byte[] read = new byte[bytes.length];
+			Assertions.assertEquals(bytes.length, stream.read(read));
+			Assertions.assertArrayEquals(bytes, read);
+		}
+	}
+
+}
@@ -0,0 +1,256 @@
+package com.tianscar.jamplayer.test;
+
+import com.tianscar.jamplayer.EventDispatcher;
+import com.tianscar.jamplayer.SoundClip;
+import com.tianscar.jamplayer.SoundEvent;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventDispatcherTest {
+
+	private static final long TIMEOUT_SECONDS = 10;
+
+	// loops every 2 frames, so every read raises plenty of LOOP_INSTANCE events
+	private static SoundClip loopingClip() {
+		return new SoundClip(new float[] { 0.5f, 0.5f, 0.5f, 0.5f }, 1);
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			Assertions.assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		}
+		catch (InterruptedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void testAsynchronousDelivery() {
+		try (EventDispatcher dispatcher = new EventDispatcher()) {
+			SoundClip testClip = loopingClip();
+			testClip.setEventDispatcher(dispatcher);
+			Assertions.assertSame(dispatcher, testClip.getEventDispatcher());
+
+			List<SoundEvent.Type> types = new CopyOnWriteArrayList<>();
+			List<Thread> threads = new CopyOnWriteArrayList<>();
+			CountDownLatch released = new CountDownLatch(1);
+			testClip.addSoundListener(event -> {
+				types.add(event.getType());
+				threads.add(Thread.currentThread());
+				Assertions.assertSame(testClip, event.getSource());
+				if (event.getType() == SoundEvent.Type.RELEASE_INSTANCE) released.countDown();
+			});
+			testClip.play(1, 1, 1, 2);
+			testClip.read(new float[64]);
+			await(released);
+
+			Assertions.assertEquals(Arrays.asList(SoundEvent.Type.OBTAIN_INSTANCE, SoundEvent.Type.START_INSTANCE,
+					SoundEvent.Type.LOOP_INSTANCE, SoundEvent.Type.LOOP_INSTANCE,
+					SoundEvent.Type.STOP_INSTANCE, SoundEvent.Type.RELEASE_INSTANCE), types);
+			for (Thread thread : threads) {
+				Assertions.assertNotSame(Thread.currentThread(), thread);
+			}
+			Assertions.assertEquals(0, dispatcher.getDroppedEventCount());
+			testClip.close();
+		}
+	}
+
+	@Test
+	public void testSlowListener() {
+		try (EventDispatcher dispatcher = new EventDispatcher()) {
+			SoundClip testClip = loopingClip();
+			testClip.setEventDispatcher(dispatcher);
+			CountDownLatch release = new CountDownLatch(1);
+			testClip.addSoundListener(event -> await(release));
+			testClip.play(1, 1, 1, -1);
+
+			// a listener which never returns doesn't hold up rendering
+			float[] testBuffer = new float[2048];
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(TIMEOUT_SECONDS), () -> {
+				for (int i = 0; i < 64; i ++) {
+					testClip.read(testBuffer);
+				}
+			});
+			Assertions.assertEquals(0.5f, testBuffer[testBuffer.length - 1], 1e-6);
+			Assertions.assertTrue(dispatcher.getDroppedEventCount() > 0);
+			release.countDown();
+			testClip.close();
+		}
+	}
+
+	@Test
+	public void testOverflow() {
+		try (EventDispatcher dispatcher = new EventDispatcher(3)) {
+			Assertions.assertEquals(4, dispatcher.getCapacity());
+			SoundClip testClip = loopingClip();
+			testClip.setEventDispatcher(dispatcher);
+			testClip.play(1, 1, 1, -1);
+
+			CountDownLatch entered = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			AtomicInteger delivered = new AtomicInteger();
+			testClip.addSoundListener(event -> {
+				entered.countDown();
+				await(release);
+				delivered.incrementAndGet();
+			});
+			// one loop
+			testClip.read(new float[4]);
+			await(entered);
+
+			// the dispatcher is stuck in the listener, the ring fills up and the rest is dropped
+			testClip.read(new float[2048]);
+			Assertions.assertEquals(512 - dispatcher.getCapacity(), dispatcher.getDroppedEventCount());
+
+			release.countDown();
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(TIMEOUT_SECONDS), () -> {
+				while (delivered.get() < 1 + dispatcher.getCapacity()) Thread.yield();
+			});
+			testClip.close();
+		}
+	}
+
+	private static int countLoops(boolean coalescing) {
+		try (EventDispatcher dispatcher = new EventDispatcher()) {
+			dispatcher.setCoalescing(coalescing);
+			Assertions.assertEquals(coalescing, dispatcher.isCoalescing());
+			SoundClip testClip = loopingClip();
+			testClip.setEventDispatcher(dispatcher);
+			CountDownLatch entered = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			CountDownLatch stopped = new CountDownLatch(1);
+			AtomicInteger loops = new AtomicInteger();
+			testClip.addSoundListener(event -> {
+				entered.countDown();
+				await(release);
+				if (event.getType() == SoundEvent.Type.LOOP_INSTANCE) loops.incrementAndGet();
+				else if (event.getType() == SoundEvent.Type.STOP_INSTANCE) stopped.countDown();
+			});
+			int instanceID = testClip.play(1, 1, 1, -1);
+			await(entered);
+
+			// the loops pile up while the listener is stuck
+			float[] testBuffer = new float[2048];
+			for (int i = 0; i < 4; i ++) {
+				testClip.read(testBuffer);
+			}
+			testClip.stop(instanceID);
+			release.countDown();
+			await(stopped);
+			Assertions.assertEquals(0, dispatcher.getDroppedEventCount());
+			testClip.close();
+			return loops.get();
+		}
+	}
+
+	@Test
+	public void testCoalescing() {
+		Assertions.assertEquals(4 * 512, countLoops(false));
+		// at most one per batch
+		int loops = countLoops(true);
+		Assertions.assertTrue(loops > 0);
+		Assertions.assertTrue(loops <= 4 * 512 / 256 + 1, "loops: " + loops);
+	}
+
+	@Test
+	public void testSynchronousDelivery() {
+		SoundClip testClip = loopingClip();
+		Assertions.assertSame(EventDispatcher.getDefault(), testClip.getEventDispatcher());
+		testClip.setEventDispatcher(null);
+		List<Thread> threads = new CopyOnWriteArrayList<>();
+		testClip.addSoundListener(event -> threads.add(Thread.currentThread()));
+		testClip.play(1, 1, 1, 1);
+		testClip.read(new float[64]);
+		// OBTAIN, START, LOOP, STOP and RELEASE, delivered before read returned
+		Assertions.assertEquals(5, threads.size());
+		for (Thread thread : threads) {
+			Assertions.assertSame(Thread.currentThread(), thread);
+		}
+		testClip.close();
+	}
+
+	@Test
+	public void testExecutor() {
+		ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "listeners"));
+		try (EventDispatcher dispatcher = new EventDispatcher(executor, 64)) {
+			SoundClip testClip = loopingClip();
+			testClip.setEventDispatcher(dispatcher);
+			List<String> threadNames = new CopyOnWriteArrayList<>();
+			CountDownLatch released = new CountDownLatch(1);
+			testClip.addSoundListener(event -> {
+				threadNames.add(Thread.currentThread().getName());
+				if (event.getType() == SoundEvent.Type.RELEASE_INSTANCE) released.countDown();
+			});
+			testClip.play(1, 1, 1, 1);
+			testClip.read(new float[64]);
+			await(released);
+			Assertions.assertEquals(5, threadNames.size());
+			for (String threadName : threadNames) {
+				Assertions.assertEquals("listeners", threadName);
+			}
+			testClip.close();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testFailingListener() {
+		List<Throwable> reported = new CopyOnWriteArrayList<>();
+		ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "listeners");
+			thread.setUncaughtExceptionHandler((t, e) -> reported.add(e));
+			return thread;
+		});
+		try (EventDispatcher dispatcher = new EventDispatcher(executor, 64)) {
+			SoundClip testClip = loopingClip();
+			testClip.setEventDispatcher(dispatcher);
+			CountDownLatch released = new CountDownLatch(1);
+			testClip.addSoundListener(event -> {
+				if (event.getType() == SoundEvent.Type.START_INSTANCE) throw new IllegalStateException("listener failed");
+				if (event.getType() == SoundEvent.Type.RELEASE_INSTANCE) released.countDown();
+			});
+			testClip.play(1, 1, 1, 1);
+			testClip.read(new float[64]);
+			// the events after the failing one are still delivered
+			await(released);
+			Assertions.assertEquals(1, dispatcher.getListenerFailureCount());
+			Assertions.assertEquals(1, reported.size());
+			Assertions.assertEquals("listener failed", reported.get(0).getMessage());
+			testClip.close();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testClose() {
+		Assertions.assertThrows(IllegalStateException.class, () -> EventDispatcher.getDefault().close());
+		Assertions.assertFalse(EventDispatcher.getDefault().isClosed());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new EventDispatcher(0));
+
+		EventDispatcher dispatcher = new EventDispatcher();
+		dispatcher.close();
+		Assertions.assertTrue(dispatcher.isClosed());
+		SoundClip testClip = loopingClip();
+		testClip.setEventDispatcher(dispatcher);
+		testClip.addSoundListener(event -> Assertions.fail("delivered after close"));
+		testClip.play(1, 1, 1, 1);
+		testClip.read(new float[64]);
+		Assertions.assertEquals(5, dispatcher.getDroppedEventCount());
+		testClip.close();
+	}
+
+}
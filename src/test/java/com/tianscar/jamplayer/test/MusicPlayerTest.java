@@ -0,0 +1,209 @@
+package com.tianscar.jamplayer.test;
+
+import com.tianscar.jamplayer.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
+
+public class MusicPlayerTest {
+
+	private static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	// keeps everything written, and tells whether anything came after a drain
+	private static final class CollectingSink extends AbstractAudioSink {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private volatile boolean drained, writtenAfterDrain;
+
+		@Override
+		protected void implOpen(AudioFormat format, int bufferSize) {
+			drained = false;
+		}
+
+		@Override
+		protected int implWrite(byte[] b, int off, int len) {
+			if (drained) writtenAfterDrain = true;
+			synchronized (lock) {
+				bytes.write(b, off, len);
+			}
+			return len;
+		}
+
+		@Override
+		public void drain() {
+			drained = true;
+		}
+
+		private short[] getSamples() {
+			byte[] written;
+			synchronized (lock) {
+				written = bytes.toByteArray();
+			}
+			short[] samples = new short[written.length / 2];
+			ByteBuffer.wrap(written).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+			return samples;
+		}
+	}
+
+	// frames of a constant sample
+	private static SoundClip.StreamSource track(short sample, int frames) {
+		byte[] bytes = new byte[frames * 4];
+		for (int i = 0; i < bytes.length; i += 2) {
+			bytes[i] = (byte) sample;
+			bytes[i + 1] = (byte) (sample >> 8);
+		}
+		return () -> new AudioInputStream(new ByteArrayInputStream(bytes), FORMAT, frames);
+	}
+
+	// silence without end
+	private static SoundClip.StreamSource endlessTrack() {
+		return () -> new AudioInputStream(new InputStream() {
+			@Override
+			public int read() {
+				return 0;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				Arrays.fill(b, off, off + len, (byte) 0);
+				return len;
+			}
+		}, FORMAT, NOT_SPECIFIED);
+	}
+
+	private static void awaitStopped(MusicPlayer player) throws InterruptedException {
+		long start = System.nanoTime();
+		while (player.isPlaying()) {
+			Assertions.assertTrue(System.nanoTime() - start < TIMEOUT_NANOS, "timed out");
+			Thread.sleep(1);
+		}
+	}
+
+	private static MusicPlayer player(AudioSink audioSink, List<Long> trackPositions) {
+		MusicPlayer player = new MusicPlayer(audioSink, FORMAT);
+		player.setEventDispatcher(null);
+		player.addMusicListener(event -> {
+			if (event.getType() == MusicEvent.Type.NEXT_TRACK) trackPositions.add(event.getFramePosition());
+		});
+		return player;
+	}
+
+	@Test
+	public void testGapless() throws LineUnavailableException, UnsupportedAudioFileException, InterruptedException {
+		CollectingSink testSink = new CollectingSink();
+		List<Long> trackPositions = new CopyOnWriteArrayList<>();
+		MusicPlayer player = player(testSink, trackPositions);
+		player.enqueue(track((short) 1000, 3000));
+		player.enqueue(track((short) 2000, 100000));
+		player.enqueue(track((short) 3000, 777));
+		Assertions.assertEquals(3, player.getQueuedTrackCount());
+		player.prepare();
+		player.start();
+		awaitStopped(player);
+
+		// every frame of every track, one right after the other
+		short[] samples = testSink.getSamples();
+		Assertions.assertEquals((3000 + 100000 + 777) * 2, samples.length);
+		for (int i = 0; i < samples.length; i ++) {
+			int frame = i / 2;
+			short expected = (short) (frame < 3000 ? 1000 : frame < 103000 ? 2000 : 3000);
+			Assertions.assertEquals(expected, samples[i], "frame " + frame);
+		}
+		Assertions.assertEquals(Arrays.asList(0L, 3000L, 103000L), trackPositions);
+		Assertions.assertEquals(0, player.getQueuedTrackCount());
+	}
+
+	@Test
+	public void testCrossfade() throws LineUnavailableException, UnsupportedAudioFileException, InterruptedException {
+		CollectingSink testSink = new CollectingSink();
+		List<Long> trackPositions = new CopyOnWriteArrayList<>();
+		MusicPlayer player = player(testSink, trackPositions);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> player.setCrossfadeFrames(-1));
+		player.setCrossfadeFrames(1024);
+		Assertions.assertEquals(1024, player.getCrossfadeFrames());
+		player.enqueue(track((short) 8000, 4096));
+		player.enqueue(track((short) 0, 4096));
+		player.prepare();
+		player.start();
+		awaitStopped(player);
+
+		// the second track starts 1024 frames before the end of the first, which fades out meanwhile
+		short[] samples = testSink.getSamples();
+		Assertions.assertEquals((4096 + 4096 - 1024) * 2, samples.length);
+		Assertions.assertEquals(Arrays.asList(0L, 3072L), trackPositions);
+		for (int frame = 0; frame < 4096 + 4096 - 1024; frame ++) {
+			double expected;
+			if (frame < 3072) expected = 8000;
+			else if (frame < 4096) expected = 8000 * Math.cos((frame - 3072 + 0.5) / 1024 * Math.PI / 2);
+			else expected = 0;
+			Assertions.assertEquals(expected, samples[frame * 2], 1, "frame " + frame);
+			Assertions.assertEquals(samples[frame * 2], samples[frame * 2 + 1]);
+		}
+	}
+
+	@Test
+	public void testFailingTrack() throws LineUnavailableException, UnsupportedAudioFileException, InterruptedException {
+		CollectingSink testSink = new CollectingSink();
+		List<Long> trackPositions = new CopyOnWriteArrayList<>();
+		MusicPlayer player = player(testSink, trackPositions);
+		player.enqueue(() -> {
+			throw new IOException("unreadable");
+		});
+		player.enqueue(track((short) 1000, 500));
+		player.prepare();
+		player.start();
+		awaitStopped(player);
+		// skipped
+		Assertions.assertEquals(500 * 2, testSink.getSamples().length);
+		Assertions.assertEquals(Arrays.asList(0L), trackPositions);
+	}
+
+	@Test
+	public void testStop() throws LineUnavailableException, UnsupportedAudioFileException, InterruptedException {
+		CollectingSink testSink = new CollectingSink();
+		List<Long> trackPositions = new CopyOnWriteArrayList<>();
+		MusicPlayer player = player(testSink, trackPositions);
+		player.enqueue(endlessTrack());
+		player.enqueue(track((short) 1000, 500));
+		player.prepare();
+		player.start();
+		long start = System.nanoTime();
+		while (testSink.getSamples().length == 0) {
+			Assertions.assertTrue(System.nanoTime() - start < TIMEOUT_NANOS, "timed out");
+			Thread.sleep(1);
+		}
+		// the endless track plays until stopped
+		Assertions.assertThrows(IllegalStateException.class, () -> player.setCrossfadeFrames(0));
+		// ends the queue too, the playback thread gone before the sink is drained
+		player.stop();
+		Assertions.assertFalse(testSink.writtenAfterDrain);
+		Assertions.assertFalse(player.isPlaying());
+		Assertions.assertEquals(0, player.getQueuedTrackCount());
+		Assertions.assertEquals(Arrays.asList(0L), trackPositions);
+
+		// and plays again once prepared again
+		player.enqueue(track((short) 2000, 500));
+		player.prepare();
+		player.start();
+		awaitStopped(player);
+		short[] samples = testSink.getSamples();
+		Assertions.assertEquals(2000, samples[samples.length - 1]);
+	}
+
+}
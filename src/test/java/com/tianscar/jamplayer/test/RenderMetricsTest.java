@@ -0,0 +1,248 @@
+package com.tianscar.jamplayer.test;
+
+import com.tianscar.jamplayer.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
+
+public class RenderMetricsTest {
+
+	private static final int BUFFER_FRAMES = 256;
+	private static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private static SoundClip loopingClip(int polyphony) {
+		float[] clipData = new float[BUFFER_FRAMES * 2];
+		for (int i = 0; i < clipData.length; i ++) {
+			clipData[i] = 0.25f;
+		}
+		return new SoundClip(clipData, polyphony);
+	}
+
+	// a second of a quiet sine, as a wave file
+	private static byte[] sineWave() throws IOException {
+		int frames = (int) FORMAT.getFrameRate();
+		byte[] bytes = new byte[frames * 4];
+		for (int i = 0; i < frames * 2; i ++) {
+			short sample = (short) (Math.sin(i / 2 * 2 * Math.PI * 440 / FORMAT.getFrameRate()) * 8192);
+			bytes[i * 2] = (byte) sample;
+			bytes[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		ByteArrayOutputStream wave = new ByteArrayOutputStream();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), FORMAT, frames), AudioFileFormat.Type.WAVE, wave);
+		return wave.toByteArray();
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long start = System.nanoTime();
+		while (!condition.getAsBoolean()) {
+			Assertions.assertTrue(System.nanoTime() - start < TIMEOUT_NANOS, "timed out");
+			Thread.sleep(1);
+		}
+	}
+
+	private static long sum(long[] histogram) {
+		long sum = 0;
+		for (long count : histogram) {
+			sum += count;
+		}
+		return sum;
+	}
+
+	@Test
+	public void testDisabled() {
+		SoundMuxer testMuxer = new SoundMuxer(BUFFER_FRAMES);
+		RenderMetrics metrics = testMuxer.getMetrics();
+		Assertions.assertFalse(metrics.isEnabled());
+		SoundClip testClip = loopingClip(1);
+		testClip.open(testMuxer);
+		testClip.play(1, 1, 1, -1);
+		Assertions.assertEquals(NOT_SPECIFIED, testClip.play());
+		testMuxer.render(new float[testMuxer.getReadBufferSize() * 4]);
+
+		Assertions.assertEquals(0, metrics.getBlockCount());
+		Assertions.assertEquals(0, sum(metrics.getRenderTimeHistogram()));
+		Assertions.assertTrue(Double.isNaN(metrics.getMeanHeadroom()));
+		Assertions.assertTrue(Double.isNaN(metrics.getMinHeadroom()));
+		Assertions.assertEquals(0, metrics.getActiveVoiceCount());
+		Assertions.assertEquals(0, metrics.getDroppedPlayCount());
+		testClip.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testSoundMuxerBlocks() {
+		SoundMuxer testMuxer = new SoundMuxer(BUFFER_FRAMES);
+		RenderMetrics metrics = testMuxer.getMetrics();
+		metrics.setEnabled(true);
+		SoundClip testClip1 = loopingClip(2);
+		SoundClip testClip2 = loopingClip(2);
+		testClip1.open(testMuxer);
+		testClip2.open(testMuxer);
+		testClip1.play(0.5, 0.5, 1, -1);
+		testClip1.play(0.5, 0.5, 1, -1);
+		testClip2.play(0.5, 0.5, 1, -1);
+		// every instance taken, and none stolen: counted by the muxer the clip is opened on
+		Assertions.assertEquals(NOT_SPECIFIED, testClip1.play());
+		Assertions.assertEquals(1, metrics.getDroppedPlayCount());
+		Assertions.assertEquals(0, testClip1.getMetrics().getDroppedPlayCount());
+
+		testMuxer.render(new float[testMuxer.getReadBufferSize() * 8]);
+		Assertions.assertEquals(8, metrics.getBlockCount());
+		long[] histogram = metrics.getRenderTimeHistogram();
+		Assertions.assertEquals(RenderMetrics.HISTOGRAM_BUCKETS, histogram.length);
+		Assertions.assertEquals(8, sum(histogram));
+		Assertions.assertTrue(metrics.getMaxRenderNanos() > 0);
+		Assertions.assertTrue(metrics.getMeanRenderNanos() <= metrics.getMaxRenderNanos());
+		Assertions.assertTrue(metrics.getMeanHeadroom() < 1);
+		Assertions.assertTrue(metrics.getMinHeadroom() <= metrics.getMeanHeadroom());
+		Assertions.assertTrue(metrics.getLateBlockCount() <= 8);
+		Assertions.assertEquals(2, metrics.getActiveClipCount());
+		Assertions.assertEquals(3, metrics.getActiveVoiceCount());
+
+		metrics.reset();
+		Assertions.assertEquals(0, metrics.getBlockCount());
+		Assertions.assertEquals(0, sum(metrics.getRenderTimeHistogram()));
+		Assertions.assertEquals(0, metrics.getMaxRenderNanos());
+		Assertions.assertEquals(0, metrics.getDroppedPlayCount());
+		Assertions.assertTrue(Double.isNaN(metrics.getMinHeadroom()));
+		testClip1.close();
+		testClip2.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testSoundClipPlayer() throws LineUnavailableException, InterruptedException {
+		SoundClip testClip = loopingClip(1);
+		RenderMetrics metrics = testClip.getMetrics();
+		metrics.setEnabled(true);
+		testClip.play(1, 1, 1, -1);
+		testClip.open(new NullAudioSink(), BUFFER_FRAMES, Thread.NORM_PRIORITY);
+		await(() -> metrics.getBlockCount() > 16);
+		Assertions.assertEquals(1, metrics.getActiveClipCount());
+		Assertions.assertEquals(1, metrics.getActiveVoiceCount());
+		// a sink which never holds anything never runs dry
+		Assertions.assertEquals(0, metrics.getUnderrunCount());
+		testClip.close();
+	}
+
+	@Test
+	public void testEvents() throws InterruptedException {
+		try (EventDispatcher dispatcher = new EventDispatcher(4)) {
+			SoundClip testClip = loopingClip(1);
+			RenderMetrics metrics = testClip.getMetrics();
+			metrics.setEnabled(true);
+			testClip.setEventDispatcher(dispatcher);
+			CountDownLatch entered = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			testClip.addSoundListener(event -> {
+				entered.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException ignored) {
+				}
+			});
+			testClip.play(1, 1, 1, -1);
+			Assertions.assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+			// the dispatcher is stuck in the listener, the ring fills up
+			testClip.read(new float[BUFFER_FRAMES * 2 * 8]);
+			Assertions.assertEquals(dispatcher.getCapacity(), metrics.getEventQueueDepth());
+			Assertions.assertEquals(dispatcher.getCapacity(), metrics.getMaxEventQueueDepth());
+			Assertions.assertEquals(dispatcher.getDroppedEventCount(), metrics.getDroppedEventCount());
+			Assertions.assertTrue(metrics.getDroppedEventCount() > 0);
+			release.countDown();
+			testClip.close();
+		}
+	}
+
+	@Test
+	public void testStreamDecoding() throws IOException, UnsupportedAudioFileException, InterruptedException {
+		byte[] wave = sineWave();
+		SoundMuxer testMuxer = new SoundMuxer(BUFFER_FRAMES);
+		RenderMetrics metrics = testMuxer.getMetrics();
+		metrics.setEnabled(true);
+		SoundClip streamingClip = new SoundClip(() -> AudioSystem.getAudioInputStream(new ByteArrayInputStream(wave)), 1);
+		streamingClip.open(testMuxer);
+		streamingClip.play();
+		float[] testBuffer = new float[testMuxer.getReadBufferSize()];
+		await(() -> {
+			testMuxer.render(testBuffer);
+			return metrics.getDecodedFrameCount() > 0;
+		});
+		Assertions.assertTrue(metrics.getDecodeSpeed() > 0);
+		Assertions.assertEquals(0, streamingClip.getMetrics().getDecodedFrameCount());
+		streamingClip.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testMusicPlayer() throws IOException, UnsupportedAudioFileException, LineUnavailableException, InterruptedException {
+		File file = File.createTempFile("jamplayer", ".wav");
+		file.deleteOnExit();
+		byte[] wave = sineWave();
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(wave);
+		}
+		MusicPlayer player = new MusicPlayer(new NullAudioSink(), FORMAT);
+		RenderMetrics metrics = player.getMetrics();
+		metrics.setEnabled(true);
+		player.setDataSource(file);
+		player.prepare();
+		player.start();
+		await(() -> !player.isPlaying());
+		Assertions.assertTrue(metrics.getBlockCount() > 0);
+		Assertions.assertEquals(sum(metrics.getRenderTimeHistogram()), metrics.getBlockCount());
+		Assertions.assertEquals((long) FORMAT.getFrameRate(), metrics.getDecodedFrameCount());
+		Assertions.assertTrue(metrics.getDecodeSpeed() > 0);
+	}
+
+	@Test
+	public void testMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		SoundMuxer testMuxer = new SoundMuxer(BUFFER_FRAMES);
+		RenderMetrics metrics = testMuxer.getMetrics();
+		Assertions.assertNull(metrics.getObjectName());
+		ObjectName name = metrics.registerMBean("testMBean");
+		Assertions.assertEquals(name, metrics.getObjectName());
+		Assertions.assertTrue(server.isRegistered(name));
+		Assertions.assertThrows(IllegalStateException.class, () -> metrics.registerMBean("testMBean"));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new SoundMuxer(BUFFER_FRAMES).getMetrics().registerMBean("testMBean"));
+
+		server.setAttribute(name, new Attribute("Enabled", true));
+		Assertions.assertTrue(metrics.isEnabled());
+		testMuxer.render(new float[testMuxer.getReadBufferSize() * 2]);
+		Assertions.assertEquals(2L, server.getAttribute(name, "BlockCount"));
+		Assertions.assertEquals(RenderMetrics.HISTOGRAM_BUCKETS, ((long[]) server.getAttribute(name, "RenderTimeHistogram")).length);
+		server.invoke(name, "reset", null, null);
+		Assertions.assertEquals(0, metrics.getBlockCount());
+
+		// closing the player unregisters them
+		testMuxer.close();
+		Assertions.assertNull(metrics.getObjectName());
+		Assertions.assertFalse(server.isRegistered(name));
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.tianscar.jamplayer.test;
+
+import com.tianscar.jamplayer.SampleCache;
+import com.tianscar.jamplayer.SoundClip;
+import com.tianscar.jamplayer.SoundMuxer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class SampleCacheTest {
+
+	// frames of 16-bit stereo, so 4 bytes per frame, 8 bytes per frame as floats
+	private static byte[] wave(int frames, int seed) throws IOException {
+		byte[] bytes = new byte[frames * 4];
+		for (int i = 0; i < bytes.length; i ++) {
+			bytes[i] = (byte) (i * seed);
+		}
+		AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), format, frames), AudioFileFormat.Type.WAVE, output);
+		return output.toByteArray();
+	}
+
+	@Test
+	public void testSharing() throws IOException, UnsupportedAudioFileException {
+		SampleCache cache = new SampleCache();
+		byte[] content = wave(1000, 3);
+
+		SoundClip clip0 = cache.newSoundClip(content, 1);
+		SoundClip clip1 = cache.newSoundClip(content.clone(), 4);
+		Assertions.assertEquals(1, cache.getMissCount());
+		Assertions.assertEquals(1, cache.getHitCount());
+		Assertions.assertEquals(1, cache.getEntryCount());
+		Assertions.assertEquals(1000 * 2 * 4, cache.getMemoryUsage());
+		Assertions.assertEquals(1000, clip0.getFrameLength());
+		Assertions.assertArrayEquals(clip0.copyPCM(), clip1.copyPCM());
+		Assertions.assertEquals(4, clip1.getPolyphony());
+
+		SoundClip clip2 = cache.newSoundClip(wave(1000, 5), 1);
+		Assertions.assertEquals(2, cache.getMissCount());
+		Assertions.assertEquals(2, cache.getEntryCount());
+
+		clip0.close();
+		clip1.close();
+		clip2.close();
+		// within the budget, nothing is evicted
+		Assertions.assertEquals(0, cache.getEvictionCount());
+		cache.clear();
+		Assertions.assertEquals(2, cache.getEvictionCount());
+		Assertions.assertEquals(0, cache.getMemoryUsage());
+	}
+
+	@Test
+	public void testEviction() throws IOException, UnsupportedAudioFileException {
+		// room for two entries
+		SampleCache cache = new SampleCache(2 * 1000 * 2 * 4);
+		byte[] content0 = wave(1000, 3);
+		byte[] content1 = wave(1000, 5);
+		byte[] content2 = wave(1000, 7);
+
+		cache.newSoundClip(content0, 1).close();
+		SoundClip clip1 = cache.newSoundClip(content1, 1);
+		// touch content0, so content1 is the least recently used one, but it is in use
+		cache.newSoundClip(content0, 1).close();
+		cache.newSoundClip(content2, 1).close();
+
+		// over budget: content0 is evicted, content1 is pinned by clip1
+		Assertions.assertEquals(1, cache.getEvictionCount());
+		Assertions.assertEquals(2, cache.getEntryCount());
+		cache.newSoundClip(content1, 1).close();
+		Assertions.assertEquals(3, cache.getMissCount());
+		Assertions.assertEquals(2, cache.getHitCount());
+
+		// closing twice only gives the reference back once
+		clip1.close();
+		clip1.close();
+		cache.setMemoryBudget(1000 * 2 * 4);
+		Assertions.assertEquals(1, cache.getEntryCount());
+		Assertions.assertEquals(1000 * 2 * 4, cache.getMemoryUsage());
+	}
+
+	@Test
+	public void testClose() throws IOException, UnsupportedAudioFileException {
+		// room for one entry
+		SampleCache cache = new SampleCache(1000 * 2 * 4);
+		byte[] content0 = wave(1000, 3);
+		SoundClip clip0 = cache.newSoundClip(content0, 1);
+		SoundClip clip1 = cache.newSoundClip(content0, 1);
+
+		// closed, even if never opened, a clip gives its entry back for good, only once
+		clip0.close();
+		clip0.close();
+		Assertions.assertThrows(IllegalStateException.class, () -> clip0.open(new SoundMuxer()));
+		// still in use by clip1, so the other entry is the one evicted
+		cache.newSoundClip(wave(1000, 5), 1).close();
+		Assertions.assertEquals(1, cache.getEvictionCount());
+		Assertions.assertEquals(1, cache.getEntryCount());
+		long hits = cache.getHitCount();
+		cache.newSoundClip(content0, 1).close();
+		Assertions.assertEquals(hits + 1, cache.getHitCount());
+		Assertions.assertEquals(1000 * 2 * 4, cache.getMemoryUsage());
+		clip1.close();
+	}
+
+	@Test
+	public void testFailure() {
+		SampleCache cache = new SampleCache();
+		Assertions.assertThrows(UnsupportedAudioFileException.class, () -> cache.newSoundClip(new byte[100], 1));
+		Assertions.assertEquals(0, cache.getEntryCount());
+		Assertions.assertEquals(0, cache.getMemoryUsage());
+	}
+
+	@Test
+	public void testStorage() throws IOException, UnsupportedAudioFileException {
+		SampleCache cache = new SampleCache(SampleCache.DEFAULT_MEMORY_BUDGET, SoundClip.Storage.SHORT);
+		byte[] content = wave(1000, 3);
+
+		SoundClip clip = cache.newSoundClip(content, 1);
+		Assertions.assertEquals(SoundClip.Storage.SHORT, clip.getStorage());
+		// 2 bytes per entry, half of the float storage
+		Assertions.assertEquals(1000 * 2 * 2, cache.getMemoryUsage());
+		Assertions.assertArrayEquals(new SampleCache().newSoundClip(content, 1).copyPCM(), clip.copyPCM());
+		clip.close();
+	}
+
+}
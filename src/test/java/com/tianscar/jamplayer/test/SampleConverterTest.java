@@ -0,0 +1,63 @@
+package com.tianscar.jamplayer.test;
+
+import com.tianscar.jamplayer.SampleConverter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+public class SampleConverterTest {
+
+	@Test
+	public void testRoundingAndClipping() {
+		float[] source = {0, 1, -1, 0.5f, -0.5f, 1.5f, -1.5f, 0.4f / 32767, 0.6f / 32767, -0.6f / 32767};
+		float[] sourceCopy = source.clone();
+		short[] destination = new short[source.length];
+		new SampleConverter().toPcm16(source, 0, source.length, destination, 0, false);
+
+		Assertions.assertArrayEquals(new short[] {0, 32767, -32767, 16384, -16383, 32767, -32768, 0, 1, -1}, destination);
+		// the source is left alone
+		Assertions.assertArrayEquals(sourceCopy, source);
+	}
+
+	@Test
+	public void testByteOrder() {
+		float[] source = {0.25f, -0.25f};
+		for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+			ByteBuffer destination = ByteBuffer.allocate(6).order(order);
+			destination.put((byte) 42);
+			new SampleConverter().toPcm16(source, 0, source.length, destination, false);
+			Assertions.assertEquals(5, destination.position());
+			Assertions.assertEquals(8192, destination.getShort(1));
+			Assertions.assertEquals(-8192, destination.getShort(3));
+		}
+	}
+
+	@Test
+	public void testDither() {
+		float[] source = new float[10000];
+		for (int i = 0; i < source.length; i ++) {
+			source[i] = (float) Math.sin(i * 0.01) * 0.999f;
+		}
+		short[] plain = new short[source.length];
+		short[] dithered = new short[source.length];
+		new SampleConverter().toPcm16(source, 0, source.length, plain, 0, false);
+		ShortBuffer ditheredBuffer = ShortBuffer.wrap(dithered);
+		new SampleConverter(1).toPcm16(source, 0, source.length, ditheredBuffer, true);
+
+		int changed = 0;
+		for (int i = 0; i < source.length; i ++) {
+			Assertions.assertTrue(Math.abs(plain[i] - dithered[i]) <= 1);
+			if (plain[i] != dithered[i]) changed ++;
+		}
+		Assertions.assertTrue(changed > 0);
+
+		// a fixed seed is reproducible
+		short[] again = new short[source.length];
+		new SampleConverter(1).toPcm16(source, 0, source.length, again, 0, true);
+		Assertions.assertArrayEquals(dithered, again);
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.tianscar.jamplayer.test;
+
+import com.tianscar.jamplayer.SampleCache;
+import com.tianscar.jamplayer.SoundBankLoader;
+import com.tianscar.jamplayer.SoundClip;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class SoundBankLoaderTest {
+
+	private static byte[] wave(int frames, int seed) throws IOException {
+		byte[] bytes = new byte[frames * 4];
+		for (int i = 0; i < bytes.length; i ++) {
+			bytes[i] = (byte) (i * seed);
+		}
+		AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), format, frames), AudioFileFormat.Type.WAVE, output);
+		return output.toByteArray();
+	}
+
+	@Test
+	public void testLoad() throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			SoundBankLoader loader = new SoundBankLoader(executor, SoundClip.Storage.SHORT);
+			for (int i = 0; i < 16; i ++) {
+				loader.add("effect" + i, wave(1000 + i, i + 1), 2);
+			}
+			Assertions.assertThrows(IllegalArgumentException.class, () -> loader.add("effect0", new byte[0], 1));
+
+			Set<Integer> progress = ConcurrentHashMap.newKeySet();
+			loader.addProgressListener((name, completed, total, failure) -> {
+				Assertions.assertEquals(16, total);
+				Assertions.assertNull(failure);
+				progress.add(completed);
+			});
+
+			Map<String, SoundClip> clips = loader.loadAll().join();
+			Assertions.assertEquals(16, clips.size());
+			int i = 0;
+			// manifest order
+			for (Map.Entry<String, SoundClip> entry : clips.entrySet()) {
+				Assertions.assertEquals("effect" + i, entry.getKey());
+				Assertions.assertEquals(1000 + i, entry.getValue().getFrameLength());
+				Assertions.assertEquals(SoundClip.Storage.SHORT, entry.getValue().getStorage());
+				entry.getValue().close();
+				i ++;
+			}
+			// every entry reported exactly once
+			for (int completed = 1; completed <= 16; completed ++) {
+				Assertions.assertTrue(progress.contains(completed));
+			}
+		}
+		finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testFailure() throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			SampleCache cache = new SampleCache();
+			SoundBankLoader loader = new SoundBankLoader(executor, cache);
+			byte[] content = wave(1000, 3);
+			loader.add("effect", content, 1).add("same", content, 1).add("broken", new byte[100], 1);
+
+			Map<String, CompletableFuture<SoundClip>> futures = loader.load();
+			Assertions.assertEquals(1000, futures.get("effect").join().getFrameLength());
+			Assertions.assertEquals(1000, futures.get("same").join().getFrameLength());
+			CompletionException e = Assertions.assertThrows(CompletionException.class, () -> futures.get("broken").join());
+			Assertions.assertTrue(e.getCause() instanceof UnsupportedAudioFileException);
+			// decoded once, shared by both clips
+			Assertions.assertEquals(1, cache.getEntryCount());
+			futures.get("effect").join().close();
+			futures.get("same").join().close();
+
+			Assertions.assertThrows(CompletionException.class, () -> loader.loadAll().join());
+		}
+		finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+package com.tianscar.jamplayer.test;
+
+import com.tianscar.jamplayer.SoundClip;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class SoundClipConcurrencyTest {
+
+	private static final int POLYPHONY = 16;
+	private static final int PRODUCERS = 8;
+	private static final int ITERATIONS = 5000;
+
+	// obtains, controls and releases instances, checking nobody else holds them meanwhile
+	private static Thread producer(SoundClip testClip, AtomicIntegerArray owners, ConcurrentLinkedQueue<Throwable> failures) {
+		return new Thread(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			try {
+				for (int i = 0; i < ITERATIONS; i ++) {
+					if (random.nextInt(8) == 0) {
+						// recycled by the render thread once done, not ours to control
+						testClip.play(random.nextDouble(), random.nextDouble(), 0.5 + random.nextDouble() * 2, 0, random.nextInt(-2, 3));
+						continue;
+					}
+					int instanceID = testClip.obtainInstance();
+					if (instanceID < 0) {
+						Thread.yield();
+						continue;
+					}
+					if (!owners.compareAndSet(instanceID, 0, 1)) throw new AssertionError("instance: " + instanceID + " obtained twice");
+
+					testClip.seekToFrames(instanceID, random.nextInt(testClip.getFrameLength()));
+					testClip.setVolume(instanceID, random.nextDouble());
+					testClip.setSpeed(instanceID, 0.125 + random.nextDouble() * 4);
+					testClip.setLooping(instanceID, -1);
+					testClip.start(instanceID);
+					Assertions.assertTrue(testClip.isPlaying(instanceID));
+					for (int n = random.nextInt(8); n > 0; n --) {
+						testClip.setVolume(instanceID, random.nextDouble(), random.nextDouble());
+						testClip.setSpeed(instanceID, 0.125 + random.nextDouble() * 8);
+					}
+					testClip.stop(instanceID);
+					Assertions.assertFalse(testClip.isPlaying(instanceID));
+
+					owners.set(instanceID, 0);
+					testClip.releaseInstance(instanceID);
+				}
+			}
+			catch (Throwable e) {
+				failures.add(e);
+			}
+		});
+	}
+
+	private static void runProducers(SoundClip testClip) throws InterruptedException {
+		AtomicIntegerArray owners = new AtomicIntegerArray(POLYPHONY);
+		ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+		Thread[] producers = new Thread[PRODUCERS];
+		for (int i = 0; i < PRODUCERS; i ++) {
+			producers[i] = producer(testClip, owners, failures);
+			producers[i].start();
+		}
+		for (Thread producer : producers) {
+			producer.join(60_000);
+			Assertions.assertFalse(producer.isAlive(), "producer deadlocked");
+		}
+		if (!failures.isEmpty()) throw new AssertionError(failures.peek());
+	}
+
+	// every instance is back on the free-list exactly once
+	private static void assertAllAvailable(SoundClip testClip) {
+		Set<Integer> instanceIDs = new HashSet<>();
+		for (int i = 0; i < POLYPHONY; i ++) {
+			int instanceID = testClip.obtainInstance();
+			Assertions.assertTrue(instanceID >= 0, "instance missing from the free-list");
+			Assertions.assertTrue(instanceIDs.add(instanceID), "instance: " + instanceID + " on the free-list twice");
+		}
+		Assertions.assertEquals(-1, testClip.obtainInstance());
+	}
+
+	@Test
+	@Timeout(120)
+	public void testProducersWithRenderThread() throws InterruptedException {
+		float[] clipData = new float[4096 * 2];
+		for (int i = 0; i < clipData.length; i ++) {
+			clipData[i] = (float) Math.sin(i * 0.01);
+		}
+		SoundClip testClip = new SoundClip(clipData, POLYPHONY);
+		runWithRenderThread(testClip);
+		testClip.close();
+	}
+
+	@Test
+	@Timeout(120)
+	public void testProducersWithVoiceStealing() throws InterruptedException {
+		float[] clipData = new float[4096 * 2];
+		for (int i = 0; i < clipData.length; i ++) {
+			clipData[i] = (float) Math.sin(i * 0.01);
+		}
+		// plays steal from one another while the owners of obtained instances keep theirs
+		for (SoundClip.VoiceStealing voiceStealing : new SoundClip.VoiceStealing[] {
+				SoundClip.VoiceStealing.OLDEST, SoundClip.VoiceStealing.QUIETEST, SoundClip.VoiceStealing.LOWEST_PRIORITY }) {
+			SoundClip testClip = new SoundClip(clipData, POLYPHONY);
+			testClip.setVoiceStealing(voiceStealing);
+			runWithRenderThread(testClip);
+			testClip.close();
+		}
+	}
+
+	private static void runWithRenderThread(SoundClip testClip) throws InterruptedException {
+		ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+		Thread renderer = new Thread(() -> {
+			float[] buffer = new float[256 * 2];
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					testClip.read(buffer);
+					for (float sample : buffer) {
+						if (Float.isNaN(sample) || Math.abs(sample) > POLYPHONY) throw new AssertionError("torn state: " + sample);
+					}
+				}
+			}
+			catch (Throwable e) {
+				failures.add(e);
+			}
+		});
+		renderer.start();
+		runProducers(testClip);
+
+		// let the plays of play() run out and get recycled
+		long deadline = System.nanoTime() + 30_000_000_000L;
+		for (int i = 0; i < POLYPHONY; i ++) {
+			while (testClip.isPlaying(i) && System.nanoTime() < deadline) Thread.sleep(1);
+		}
+		Thread.sleep(50);
+		renderer.interrupt();
+		renderer.join();
+		if (!failures.isEmpty()) throw new AssertionError(failures.peek());
+
+		assertAllAvailable(testClip);
+	}
+
+	@Test
+	@Timeout(120)
+	public void testProducersWithoutRenderThread() throws InterruptedException {
+		// nobody renders, so producers have to apply the commands of the full ring themselves
+		SoundClip testClip = new SoundClip(new float[4096 * 2], POLYPHONY);
+		runProducers(testClip);
+
+		// nothing rendered, so play() instances are still playing
+		for (int i = 0; i < POLYPHONY; i ++) {
+			if (testClip.isPlaying(i)) {
+				testClip.stop(i);
+				testClip.releaseInstance(i);
+			}
+		}
+		assertAllAvailable(testClip);
+		testClip.close();
+	}
+
+}
@@ -3,9 +3,31 @@ package com.tianscar.jamplayer.test;
 import javax.sound.sampled.LineUnavailableException;
 
 import com.tianscar.jamplayer.SoundClip;
+import com.tianscar.jamplayer.SoundMuxer;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
 
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class SoundClipTest {
 
 	public static final int DEFAULT_BUFFER_FRAMES = 1024;
@@ -42,6 +64,125 @@ public class SoundClipTest {
 		testClip.close();
 	}
 	
+	@Test
+	public void testVoiceStealing() {
+		float[] pcmData = new float[44100];
+		SoundClip testClip = new SoundClip(pcmData, 2);
+
+		// NONE: the third play is dropped
+		Assertions.assertEquals(SoundClip.VoiceStealing.NONE, testClip.getVoiceStealing());
+		int instance0 = testClip.play();
+		int instance1 = testClip.play();
+		Assertions.assertEquals(-1, testClip.play());
+
+		// OLDEST: the first play goes first
+		testClip.setVoiceStealing(SoundClip.VoiceStealing.OLDEST);
+		testClip.stop(instance0);
+		testClip.stop(instance1);
+		testClip.releaseInstance(instance0);
+		testClip.releaseInstance(instance1);
+		instance0 = testClip.play();
+		instance1 = testClip.play();
+		Assertions.assertEquals(instance0, testClip.play());
+		Assertions.assertEquals(instance1, testClip.play());
+		Assertions.assertTrue(testClip.isPlaying(instance0) && testClip.isPlaying(instance1));
+
+		// LOWEST_PRIORITY: never steals from a higher priority
+		testClip.setVoiceStealing(SoundClip.VoiceStealing.LOWEST_PRIORITY);
+		testClip.stop(instance0);
+		testClip.stop(instance1);
+		testClip.releaseInstance(instance0);
+		testClip.releaseInstance(instance1);
+		instance0 = testClip.play(1, 1, 1, 0, 5);
+		instance1 = testClip.play(1, 1, 1, 0, 1);
+		Assertions.assertEquals(instance1, testClip.play(1, 1, 1, 0, 3));
+		Assertions.assertEquals(-1, testClip.play(1, 1, 1, 0, 0));
+		Assertions.assertEquals(instance1, testClip.play(1, 1, 1, 0, 3));
+
+		// QUIETEST: never steals from a louder play
+		testClip.setVoiceStealing(SoundClip.VoiceStealing.QUIETEST);
+		testClip.stop(instance0);
+		testClip.stop(instance1);
+		testClip.releaseInstance(instance0);
+		testClip.releaseInstance(instance1);
+		instance0 = testClip.play(0.9);
+		instance1 = testClip.play(0.2);
+		Assertions.assertEquals(instance1, testClip.play(0.5));
+		Assertions.assertEquals(-1, testClip.play(0.1));
+
+		// instances obtained by hand are never stolen
+		testClip.stop(instance0);
+		testClip.stop(instance1);
+		testClip.releaseInstance(instance0);
+		testClip.releaseInstance(instance1);
+		testClip.setVoiceStealing(SoundClip.VoiceStealing.OLDEST);
+		instance0 = testClip.obtainInstance();
+		instance1 = testClip.obtainInstance();
+		testClip.start(instance0);
+		testClip.start(instance1);
+		Assertions.assertEquals(-1, testClip.play());
+
+		testClip.close();
+	}
+
+	@Test
+	public void testScheduledStart() {
+		float[] clipData = new float[DEFAULT_BUFFER_FRAMES * 4];
+		Arrays.fill(clipData, 0.5f);
+		SoundClip testClip = new SoundClip(clipData, 1);
+
+		// not opened on a SoundMuxer, the clip counts the frames read
+		float[] testBuffer = new float[DEFAULT_BUFFER_FRAMES * 2];
+		testClip.read(testBuffer);
+		Assertions.assertEquals(DEFAULT_BUFFER_FRAMES, testClip.getFrameTime());
+		int instanceID = testClip.obtainInstance();
+		testClip.setVolume(instanceID, 1);
+		testClip.startAt(instanceID, DEFAULT_BUFFER_FRAMES + 10);
+		// before the start, so it never plays
+		testClip.stopAt(instanceID, DEFAULT_BUFFER_FRAMES + 5);
+		testClip.read(testBuffer);
+		for (float sample : testBuffer) {
+			Assertions.assertEquals(0, sample);
+		}
+		Assertions.assertFalse(testClip.isPlaying(instanceID));
+
+		testClip.startAt(instanceID, DEFAULT_BUFFER_FRAMES * 2 + 10);
+		testClip.read(testBuffer);
+		Assertions.assertEquals(0, testBuffer[9 * 2]);
+		Assertions.assertEquals(0.5f, testBuffer[10 * 2]);
+		Assertions.assertEquals(DEFAULT_BUFFER_FRAMES - 10, testClip.getFramePosition(instanceID), 1e-9);
+
+		testClip.close();
+	}
+
+	@Test
+	public void testVoiceStealingFadeOut() {
+		float[] clipData = new float[44100 * 2];
+		Arrays.fill(clipData, 0.5f);
+		SoundClip testClip = new SoundClip(clipData, 1);
+		testClip.setVoiceStealing(SoundClip.VoiceStealing.OLDEST);
+
+		float[] testBuffer = new float[DEFAULT_BUFFER_FRAMES * 2];
+		testClip.play(1.0);
+		testClip.read(testBuffer);
+		Assertions.assertEquals(0.5f, testBuffer[testBuffer.length - 1], 1e-6);
+
+		// the stolen play fades out over SOUND_VOLUME_STEPS while the new one plays
+		Assertions.assertEquals(0, testClip.play(0.5));
+		testClip.read(testBuffer);
+		Assertions.assertEquals(0.75f, testBuffer[0], 0.001);
+		for (int i = 2; i < testBuffer.length; i += 2) {
+			Assertions.assertTrue(testBuffer[i] <= testBuffer[i - 2]);
+		}
+		Assertions.assertEquals(0.25f, testBuffer[testBuffer.length - 1], 0.001);
+		testClip.read(testBuffer);
+		for (float sample : testBuffer) {
+			Assertions.assertEquals(0.25f, sample, 1e-6);
+		}
+
+		testClip.close();
+	}
+
 	// @TODO test state logic (active, running)
 	
 	@Test
@@ -324,6 +465,180 @@ public class SoundClipTest {
 		testClip.close();
 	}
 	
+	// a stereo clip whose channels differ, with a length that ends within a block
+	private static float[] stereo(int frames) {
+		float[] clipData = new float[frames * 2];
+		for (int i = 0; i < frames; i ++) {
+			clipData[i * 2] = (float) Math.sin(i * 0.01);
+			clipData[i * 2 + 1] = (float) Math.cos(i * 0.013);
+		}
+		return clipData;
+	}
+
+	// the per-frame reference: linear interpolation at cursor, silence past the last frame
+	private static float lerp(float[] clipData, double cursor, int channel) {
+		int frameLength = clipData.length / 2;
+		int frame = (int) cursor;
+		float x0 = clipData[frame * 2 + channel];
+		float x1 = frame + 1 < frameLength ? clipData[(frame + 1) * 2 + channel] : 0;
+		return (float) (x0 + (x1 - x0) * (cursor - frame));
+	}
+
+	private static float[] perFrame(float[] clipData, double leftVolume, double rightVolume, double speed, int frames) {
+		float[] expected = new float[frames * 2];
+		double cursor = 0;
+		for (int n = 0; n < frames && cursor <= clipData.length / 2 - 1; n ++, cursor += speed) {
+			expected[n * 2] = (float) (lerp(clipData, cursor, 0) * leftVolume);
+			expected[n * 2 + 1] = (float) (lerp(clipData, cursor, 1) * rightVolume);
+		}
+		return expected;
+	}
+
+	@Test
+	public void testBlockRendering() {
+		int frames = 1500;
+		float[] clipData = stereo(frames);
+		float delta = 1e-6f;
+
+		// speed 1 on whole frames: the scaled copy, then the per-frame path on the last frame
+		SoundClip testClip = new SoundClip(clipData, 1);
+		testClip.play(0.5, 0.25, 1, 0);
+		float[] testBuffer = new float[2048 * 2];
+		testClip.read(testBuffer);
+		Assertions.assertArrayEquals(perFrame(clipData, 0.5, 0.25, 1, 2048), testBuffer, delta);
+		Assertions.assertFalse(testClip.isPlaying(0));
+		testClip.close();
+
+		// constant speed: the LERP span, then the per-frame path where the kernel reaches the end
+		for (double speed : new double[] { 0.75, 1.3 }) {
+			testClip = new SoundClip(clipData, 1);
+			testClip.play(0.8, 0.6, speed, 0);
+			testBuffer = new float[2048 * 2];
+			testClip.read(testBuffer);
+			Assertions.assertArrayEquals(perFrame(clipData, 0.8, 0.6, speed, 2048), testBuffer, delta);
+			testClip.close();
+		}
+
+		// a volume ramp on the per-frame path, then the LERP span once it ended
+		clipData = stereo(SOUND_SPEED_STEPS);
+		testClip = new SoundClip(clipData, 1);
+		int instanceID = testClip.play(1, 1, 0.75, 0);
+		testClip.read(new float[256 * 2]);
+		testClip.setVolume(instanceID, 0.5, 0.25);
+		testBuffer = new float[2048 * 2];
+		testClip.read(testBuffer);
+		float[] expected = new float[testBuffer.length];
+		for (int n = 0; n < 2048; n ++) {
+			double cursor = (256 + n) * 0.75;
+			int steps = Math.min(n + 1, SOUND_VOLUME_STEPS);
+			double leftVolume = 1 + (0.5 - 1) * steps / SOUND_VOLUME_STEPS;
+			double rightVolume = 1 + (0.25 - 1) * steps / SOUND_VOLUME_STEPS;
+			expected[n * 2] = (float) (lerp(clipData, cursor, 0) * leftVolume);
+			expected[n * 2 + 1] = (float) (lerp(clipData, cursor, 1) * rightVolume);
+		}
+		Assertions.assertArrayEquals(expected, testBuffer, delta);
+		testClip.close();
+
+		// reading at an offset renders what reading from 0 does, and leaves the rest of the buffer alone
+		for (double speed : new double[] { 1, 0.75 }) {
+			SoundClip expectedClip = new SoundClip(clipData, 1);
+			testClip = new SoundClip(clipData, 1);
+			expectedClip.play(0.8, 0.6, speed, 0);
+			testClip.play(0.8, 0.6, speed, 0);
+			expected = new float[1000 * 2];
+			testBuffer = new float[expected.length + 6 + 10];
+			for (int block = 0; block < 3; block ++) {
+				expectedClip.read(expected);
+				Arrays.fill(testBuffer, 7);
+				testClip.read(testBuffer, 6, expected.length);
+				Assertions.assertArrayEquals(expected, Arrays.copyOfRange(testBuffer, 6, 6 + expected.length));
+				for (int i = 0; i < 6; i ++) Assertions.assertEquals(7, testBuffer[i]);
+				for (int i = 6 + expected.length; i < testBuffer.length; i ++) Assertions.assertEquals(7, testBuffer[i]);
+			}
+			Assertions.assertEquals(expectedClip.getFramePosition(0), testClip.getFramePosition(0));
+			expectedClip.close();
+			testClip.close();
+		}
+	}
+
+	private static float[] sine(int frames, double step) {
+		float[] clipData = new float[frames * 2];
+		for (int i = 0; i < frames; i ++) {
+			clipData[i * 2] = clipData[i * 2 + 1] = (float) Math.sin(i * step);
+		}
+		return clipData;
+	}
+
+	private static float[] render(SoundClip testClip, SoundClip.Interpolation interpolation, double speed) {
+		testClip.setInterpolation(interpolation);
+		testClip.play(1, 1, speed, 0);
+		float[] testBuffer = new float[DEFAULT_BUFFER_FRAMES * 2];
+		testClip.read(testBuffer);
+		testClip.close();
+		return testBuffer;
+	}
+
+	// the largest difference to sin(cursor * step), away from the start of the clip
+	private static double error(float[] rendered, double step, double speed) {
+		double error = 0;
+		for (int i = 64; i < rendered.length / 2; i ++) {
+			error = Math.max(error, Math.abs(rendered[i * 2] - Math.sin(i * speed * step)));
+		}
+		return error;
+	}
+
+	private static double rms(float[] rendered) {
+		double sum = 0;
+		for (int i = 128; i < rendered.length; i ++) {
+			sum += rendered[i] * rendered[i];
+		}
+		return Math.sqrt(sum / (rendered.length - 128));
+	}
+
+	@Test
+	public void testInterpolation() {
+		Assertions.assertEquals(SoundClip.Interpolation.LINEAR, new SoundClip(new float[2], 1).getInterpolation());
+
+		// the closer to the sine, the better the kernel
+		double step = 0.3;
+		float[] clipData = sine(DEFAULT_BUFFER_FRAMES * 2, step);
+		double linear = error(render(new SoundClip(clipData, 1), SoundClip.Interpolation.LINEAR, 0.75), step, 0.75);
+		double cubic = error(render(new SoundClip(clipData, 1), SoundClip.Interpolation.CUBIC, 0.75), step, 0.75);
+		double sinc = error(render(new SoundClip(clipData, 1), SoundClip.Interpolation.SINC, 0.75), step, 0.75);
+		Assertions.assertTrue(cubic < linear / 2, cubic + " vs " + linear);
+		Assertions.assertTrue(sinc < cubic / 2, sinc + " vs " + cubic);
+		Assertions.assertTrue(sinc < 1e-3, String.valueOf(sinc));
+
+		// close to the Nyquist frequency played at twice the speed, the sinc filters out what would alias
+		clipData = sine(DEFAULT_BUFFER_FRAMES * 3, Math.PI * 0.85);
+		Assertions.assertTrue(rms(render(new SoundClip(clipData, 1), SoundClip.Interpolation.LINEAR, 2)) > 0.1);
+		Assertions.assertTrue(rms(render(new SoundClip(clipData, 1), SoundClip.Interpolation.SINC, 2)) < 0.01);
+		// and so it does while the volume ramps, on the per-frame path, where every cursor is on a whole frame
+		SoundClip rampClip = new SoundClip(clipData, 1);
+		rampClip.setInterpolation(SoundClip.Interpolation.SINC);
+		int instanceID = rampClip.play(1, 1, 2, 0);
+		rampClip.setVolume(instanceID, 0.5);
+		float[] rampBuffer = new float[DEFAULT_BUFFER_FRAMES * 2];
+		rampClip.read(rampBuffer);
+		rampClip.close();
+		Assertions.assertTrue(rms(rampBuffer) < 0.01);
+
+		// 16-bit storage converts windows with the frames around the cursor, so the output is identical
+		short[] shortData = new short[DEFAULT_BUFFER_FRAMES];
+		float[] floatData = new float[shortData.length];
+		for (int i = 0; i < shortData.length; i ++) {
+			shortData[i] = (short) (Math.sin(i * 0.01) * 32767);
+			floatData[i] = shortData[i] / 32767f;
+		}
+		for (SoundClip.Interpolation interpolation : new SoundClip.Interpolation[] {
+				SoundClip.Interpolation.LINEAR, SoundClip.Interpolation.CUBIC, SoundClip.Interpolation.SINC }) {
+			for (double speed : new double[] { 0.2, 1.3, 7 }) {
+				float[] expected = render(new SoundClip(floatData, 1), interpolation, speed);
+				Assertions.assertArrayEquals(expected, render(new SoundClip(shortData, 1), interpolation, speed));
+			}
+		}
+	}
+
 	@Test
 	public void testDynamicSpeed() {
 
@@ -377,4 +692,450 @@ public class SoundClipTest {
 		Assertions.assertEquals(targetSpeed, testClip.getSpeed(instance0));
 	}	
 	
+	@Test
+	public void testReadAllocationFree() {
+		java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		Assumptions.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocationCounter = (com.sun.management.ThreadMXBean) threadMXBean;
+		Assumptions.assumeTrue(allocationCounter.isThreadAllocatedMemorySupported());
+		allocationCounter.setThreadAllocatedMemoryEnabled(true);
+
+		float[] clipData = new float[SOUND_SPEED_STEPS * 2];
+		for (int i = 0; i < clipData.length; i ++) {
+			clipData[i] = (float) Math.sin(i * 0.01);
+		}
+		SoundClip testClip = new SoundClip(clipData, 4);
+
+		// integer cursor, fractional cursor, and ramping volume/speed
+		testClip.play(1, 1, 1, -1);
+		testClip.play(0.5, 0.5, 0.75, -1);
+		int ramping = testClip.play(1, 1, 1.5, -1);
+
+		float[] testBuffer = new float[2048 * 2];
+		long threadID = Thread.currentThread().getId();
+		// warm up, so the JIT and the counter itself are settled
+		for (int i = 0; i < 2000; i ++) {
+			testClip.read(testBuffer);
+		}
+		long overhead = allocationCounter.getThreadAllocatedBytes(threadID);
+		overhead = allocationCounter.getThreadAllocatedBytes(threadID) - overhead;
+
+		for (int i = 0; i < 100; i ++) {
+			testClip.setVolume(ramping, (i & 1) == 0 ? 0.25 : 1);
+			testClip.setSpeed(ramping, (i & 1) == 0 ? 0.5 : 2);
+			long before = allocationCounter.getThreadAllocatedBytes(threadID);
+			testClip.read(testBuffer);
+			long allocated = allocationCounter.getThreadAllocatedBytes(threadID) - before - overhead;
+			Assertions.assertEquals(0, allocated, "bytes allocated by read");
+		}
+
+		testClip.close();
+
+		// 5.1, each voice routed through channel gains; warmed up on another clip, as the first block of a clip counts
+		float[] gains = { 0, 0, 0, 0, 0.5f, 0.5f, 0, 0, 1, 0, 0, 1 };
+		SoundMuxer testMuxer = new SoundMuxer((Mixer) null, new AudioFormat(44100, 16, 6, true, false), 2048, Thread.MAX_PRIORITY);
+		float[] muxerBuffer = new float[testMuxer.getReadBufferSize()];
+		SoundClip warmClip = new SoundClip(clipData, 2);
+		warmClip.open(testMuxer);
+		warmClip.setChannelGains(warmClip.play(1, 1, 0.75, -1), gains);
+		for (int i = 0; i < 2000; i ++) {
+			testMuxer.render(muxerBuffer);
+		}
+		warmClip.close();
+		testMuxer.render(muxerBuffer);
+
+		testClip = new SoundClip(clipData, 2);
+		testClip.open(testMuxer);
+		testClip.setChannelGains(testClip.play(1, 1, 1, -1), gains);
+		testClip.setChannelGains(testClip.play(0.5, 0.5, 0.75, -1), gains);
+		for (int i = 0; i < 100; i ++) {
+			long before = allocationCounter.getThreadAllocatedBytes(threadID);
+			testMuxer.render(muxerBuffer);
+			long allocated = allocationCounter.getThreadAllocatedBytes(threadID) - before - overhead;
+			Assertions.assertEquals(0, allocated, "bytes allocated by render");
+		}
+		testClip.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testStorage() throws IOException {
+		short[] shortData = new short[SOUND_SPEED_STEPS * 2 + 2];
+		float[] floatData = new float[shortData.length];
+		ByteBuffer directData = ByteBuffer.allocateDirect(shortData.length * 2).order(ByteOrder.BIG_ENDIAN);
+		for (int i = 0; i < shortData.length; i ++) {
+			shortData[i] = (short) (Math.sin(i * 0.01) * 32767);
+			floatData[i] = shortData[i] / 32767f;
+			directData.putShort(shortData[i]);
+		}
+		directData.flip();
+
+		SoundClip floatClip = new SoundClip(floatData, 3);
+		File cacheFile = File.createTempFile("jamplayer", ".pcm");
+		cacheFile.deleteOnExit();
+		floatClip.savePCM(cacheFile);
+		Assertions.assertEquals(shortData.length * 2, cacheFile.length());
+
+		SoundClip[] testClips = new SoundClip[] {
+				floatClip,
+				new SoundClip(shortData, 3),
+				new SoundClip(directData, 3),
+				SoundClip.mapPCM(cacheFile, 3)
+		};
+		Assertions.assertEquals(SoundClip.Storage.FLOAT, testClips[0].getStorage());
+		Assertions.assertEquals(SoundClip.Storage.SHORT, testClips[1].getStorage());
+		Assertions.assertEquals(SoundClip.Storage.DIRECT, testClips[2].getStorage());
+		Assertions.assertEquals(SoundClip.Storage.DIRECT, testClips[3].getStorage());
+		Assertions.assertEquals(shortData.length * 4L, testClips[0].getStorageByteSize());
+		Assertions.assertEquals(shortData.length * 2L, testClips[1].getStorageByteSize());
+
+		// integer cursor, fractional cursor, and ramping volume/speed
+		for (SoundClip testClip : testClips) {
+			Assertions.assertEquals(SOUND_SPEED_STEPS + 1, testClip.getFrameLength());
+			Assertions.assertArrayEquals(floatData, testClip.copyPCM());
+			testClip.play(1, 1, 1, -1);
+			testClip.play(0.5, 0.5, 0.75, -1);
+			testClip.play(0.25, 1, 0.2, -1);
+		}
+
+		float[] expected = new float[DEFAULT_BUFFER_FRAMES * 2];
+		float[] actual = new float[expected.length];
+		for (int i = 0; i < 20; i ++) {
+			for (int n = 0; n < testClips.length; n ++) {
+				testClips[n].setVolume(2, (i & 1) == 0 ? 0.5 : 1);
+				testClips[n].setSpeed(2, (i & 1) == 0 ? 8 : 0.125);
+				testClips[n].read(n == 0 ? expected : actual);
+				// 16-bit storage converts to the same floats, so the output is identical
+				if (n > 0) Assertions.assertArrayEquals(expected, actual);
+			}
+		}
+
+		for (SoundClip testClip : testClips) {
+			testClip.close();
+		}
+	}
+
+	// a WAVE file of a 1 kHz sine at half scale, one second long
+	private static byte[] sineWave(float sampleRate) throws IOException {
+		return sineWave(sampleRate, 2);
+	}
+
+	private static byte[] sineWave(float sampleRate, int channels) throws IOException {
+		int frames = (int) sampleRate;
+		byte[] bytes = new byte[frames * channels * 2];
+		for (int i = 0; i < frames * channels; i ++) {
+			short sample = (short) Math.round(Math.sin(2 * Math.PI * 1000 * (i / channels) / sampleRate) * 0.5 * 32767);
+			bytes[i * 2] = (byte) sample;
+			bytes[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), new AudioFormat(sampleRate, 16, channels, true, false), frames),
+				AudioFileFormat.Type.WAVE, output);
+		return output.toByteArray();
+	}
+
+	@Test
+	public void testSampleRateConversion() throws IOException, UnsupportedAudioFileException, InterruptedException {
+		Assertions.assertEquals(AudioSystem.NOT_SPECIFIED, new SoundClip(new float[2], 1).getSampleRate());
+		Assertions.assertThrows(IllegalArgumentException.class, () ->
+				new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(sineWave(44100))), 1, SoundClip.Storage.FLOAT, 0));
+
+		// down and up to 44.1 kHz, the sine stays where it was
+		for (float sampleRate : new float[] { 48000, 22050 }) {
+			SoundClip testClip = new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(sineWave(sampleRate))),
+					1, SoundClip.Storage.FLOAT, 44100);
+			Assertions.assertEquals(44100, testClip.getSampleRate());
+			Assertions.assertEquals(44100, testClip.getFrameLength(), 1);
+			float[] pcm = testClip.copyPCM();
+			for (int i = 64; i < 44000; i ++) {
+				Assertions.assertEquals(Math.sin(2 * Math.PI * 1000 * i / 44100) * 0.5, pcm[i * 2], 1e-3);
+				Assertions.assertEquals(pcm[i * 2], pcm[i * 2 + 1]);
+			}
+			testClip.close();
+		}
+
+		// a stream converts while decoding, to the same PCM
+		byte[] wave = sineWave(48000);
+		SoundClip expectedClip = new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(wave)), 1, SoundClip.Storage.FLOAT, 44100);
+		SoundClip streamingClip = new SoundClip(() -> AudioSystem.getAudioInputStream(new ByteArrayInputStream(wave)), 1, 44100);
+		Assertions.assertEquals(44100, streamingClip.getSampleRate());
+		Assertions.assertEquals(expectedClip.getFrameLength(), streamingClip.getFrameLength());
+		expectedClip.play(1, 1, 1, 0);
+		streamingClip.play(1, 1, 1, 0);
+		float[] expected = new float[DEFAULT_BUFFER_FRAMES * 2];
+		float[] actual = new float[expected.length];
+		for (int i = 0; i < expectedClip.getFrameLength() / DEFAULT_BUFFER_FRAMES + 1; i ++) {
+			expectedClip.read(expected);
+			streamingClip.read(actual);
+			Assertions.assertArrayEquals(expected, actual);
+			Thread.sleep(5);
+		}
+		expectedClip.close();
+		streamingClip.close();
+	}
+
+	@Test
+	public void testMonoStorage() throws IOException, UnsupportedAudioFileException {
+		byte[] monoWave = sineWave(48000, 1);
+		byte[] stereoWave = sineWave(48000, 2);
+		for (SoundClip.Storage storage : new SoundClip.Storage[] { SoundClip.Storage.FLOAT, SoundClip.Storage.SHORT }) {
+			// converted on the way, mono stays mono
+			SoundClip monoClip = new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(monoWave)), 4, storage, 44100);
+			SoundClip stereoClip = new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(stereoWave)), 4, storage, 44100);
+			Assertions.assertEquals(1, monoClip.getChannels());
+			Assertions.assertEquals(2, stereoClip.getChannels());
+			Assertions.assertEquals(stereoClip.getFrameLength(), monoClip.getFrameLength());
+			Assertions.assertEquals(stereoClip.getStorageByteSize() / 2, monoClip.getStorageByteSize());
+			float[] monoPcm = monoClip.copyPCM();
+			float[] stereoPcm = stereoClip.copyPCM();
+			Assertions.assertEquals(stereoPcm.length / 2, monoPcm.length);
+			for (int i = 0; i < monoPcm.length; i ++) {
+				Assertions.assertEquals(stereoPcm[i * 2], monoPcm[i]);
+			}
+
+			monoClip.close();
+			stereoClip.close();
+
+			// every render path spreads the mono frames to both channels as if they were stereo
+			for (SoundClip.Interpolation interpolation : new SoundClip.Interpolation[] {
+					SoundClip.Interpolation.LINEAR, SoundClip.Interpolation.CUBIC, SoundClip.Interpolation.SINC }) {
+				monoClip = new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(monoWave)), 4, storage, 44100);
+				stereoClip = new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(stereoWave)), 4, storage, 44100);
+				for (SoundClip testClip : new SoundClip[] { monoClip, stereoClip }) {
+					testClip.setInterpolation(interpolation);
+					testClip.play(1, 0.5, 1, 0);
+					testClip.play(0.25, 1, 0.75, 0);
+					testClip.play(0.5, 0.5, 3, 0);
+					int instanceID = testClip.play(1, 1, 1, 0);
+					testClip.setPan(instanceID, -0.5);
+					testClip.setSpeed(instanceID, 1.5);
+				}
+				float[] expected = new float[DEFAULT_BUFFER_FRAMES * 2];
+				float[] actual = new float[expected.length];
+				for (int i = 0; i < 8; i ++) {
+					stereoClip.read(expected);
+					monoClip.read(actual);
+					Assertions.assertArrayEquals(expected, actual);
+				}
+				monoClip.close();
+				stereoClip.close();
+			}
+		}
+
+		// a mono cache file maps back as mono
+		short[] shortData = new short[DEFAULT_BUFFER_FRAMES];
+		ByteBuffer monoData = ByteBuffer.allocate(shortData.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < shortData.length; i ++) {
+			shortData[i] = (short) (Math.sin(i * 0.01) * 32767);
+			monoData.putShort(shortData[i]);
+		}
+		monoData.flip();
+		SoundClip monoClip = new SoundClip(monoData, 1, 1);
+		Assertions.assertEquals(shortData.length, monoClip.getFrameLength());
+		File cacheFile = File.createTempFile("jamplayer", ".pcm");
+		cacheFile.deleteOnExit();
+		monoClip.savePCM(cacheFile);
+		Assertions.assertEquals(shortData.length * 2, cacheFile.length());
+		SoundClip mappedClip = SoundClip.mapPCM(cacheFile, 1, 1);
+		Assertions.assertEquals(1, mappedClip.getChannels());
+		Assertions.assertArrayEquals(monoClip.copyPCM(), mappedClip.copyPCM());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> SoundClip.mapPCM(cacheFile, 3, 1));
+		monoClip.close();
+		mappedClip.close();
+	}
+
+	@Test
+	public void testPan() {
+		float[] clipData = new float[DEFAULT_BUFFER_FRAMES * 8];
+		Arrays.fill(clipData, 0.5f);
+		SoundClip testClip = new SoundClip(clipData, 1);
+		Assertions.assertEquals(SoundClip.PanLaw.CONSTANT_POWER, testClip.getPanLaw());
+		float[] testBuffer = new float[DEFAULT_BUFFER_FRAMES * 2];
+
+		int instanceID = testClip.obtainInstance();
+		Assertions.assertEquals(0, testClip.getPan(instanceID));
+		testClip.setVolume(instanceID, 1);
+		testClip.setPan(instanceID, -2);
+		Assertions.assertEquals(-1, testClip.getPan(instanceID));
+		testClip.setPan(instanceID, 0.5);
+		testClip.setLooping(instanceID, -1);
+		testClip.start(instanceID);
+		testClip.read(testBuffer);
+		// the same power as at the center, sin/cos of the pan
+		Assertions.assertEquals(0.5 * Math.sqrt(2) * Math.cos(Math.PI * 3 / 8), testBuffer[0], 1e-6);
+		Assertions.assertEquals(0.5 * Math.sqrt(2) * Math.sin(Math.PI * 3 / 8), testBuffer[1], 1e-6);
+		Assertions.assertEquals(0.5, testBuffer[0] * testBuffer[0] + testBuffer[1] * testBuffer[1], 1e-6);
+
+		// ramped while playing, like the volumes
+		testClip.setPan(instanceID, -1);
+		testClip.read(testBuffer);
+		Assertions.assertTrue(testBuffer[1] > 0.5);
+		Assertions.assertTrue(testBuffer[(SOUND_VOLUME_STEPS / 2) * 2 + 1] < testBuffer[1]);
+		Assertions.assertEquals(0.5 * Math.sqrt(2), testBuffer[testBuffer.length - 2], 1e-6);
+		Assertions.assertEquals(0, testBuffer[testBuffer.length - 1], 1e-6);
+		// the volumes stay what they were set to
+		Assertions.assertEquals(1, testClip.getLeftVolume(instanceID));
+		Assertions.assertEquals(1, testClip.getRightVolume(instanceID));
+
+		// the linear law for the next start, back at the center it leaves the volumes as they are
+		testClip.setPanLaw(SoundClip.PanLaw.LINEAR);
+		testClip.stop(instanceID);
+		testClip.setPan(instanceID, 0.5);
+		testClip.start(instanceID);
+		testClip.read(testBuffer);
+		Assertions.assertEquals(0.25, testBuffer[0], 1e-6);
+		Assertions.assertEquals(0.75, testBuffer[1], 1e-6);
+		testClip.setPan(instanceID, 0);
+		testClip.read(testBuffer);
+		Assertions.assertEquals(0.5f, testBuffer[testBuffer.length - 2]);
+		Assertions.assertEquals(0.5f, testBuffer[testBuffer.length - 1]);
+
+		Assertions.assertThrows(NullPointerException.class, () -> testClip.setPanLaw(null));
+		testClip.close();
+	}
+
+	@Test
+	public void testStreaming() throws IOException, UnsupportedAudioFileException, InterruptedException {
+		// long enough to leave the head, which the stream decodes up front
+		int frames = 50000;
+		byte[] bytes = new byte[frames * 4];
+		for (int i = 0; i < frames * 2; i ++) {
+			short sample = (short) (Math.sin(i * 0.001) * 30000);
+			bytes[i * 2] = (byte) sample;
+			bytes[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), new AudioFormat(44100, 16, 2, true, false), frames),
+				AudioFileFormat.Type.WAVE, output);
+		byte[] wave = output.toByteArray();
+
+		SoundClip expectedClip = new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(wave)), 2);
+		SoundClip streamingClip = new SoundClip(() -> AudioSystem.getAudioInputStream(new ByteArrayInputStream(wave)), 2);
+		Assertions.assertEquals(SoundClip.Storage.STREAM, streamingClip.getStorage());
+		Assertions.assertEquals(frames, streamingClip.getFrameLength());
+		Assertions.assertThrows(UnsupportedOperationException.class, streamingClip::copyPCM);
+
+		// looping back to the head, and a fractional cursor
+		for (SoundClip testClip : new SoundClip[] { expectedClip, streamingClip }) {
+			testClip.play(1, 1, 1, 1);
+			testClip.play(0.5, 0.5, 0.75, 0);
+		}
+		float[] expected = new float[DEFAULT_BUFFER_FRAMES * 2];
+		float[] actual = new float[expected.length];
+		for (int i = 0; i < frames * 2 / DEFAULT_BUFFER_FRAMES + 2; i ++) {
+			expectedClip.read(expected);
+			streamingClip.read(actual);
+			Assertions.assertArrayEquals(expected, actual);
+			// played faster than real time, give the decoder time to keep up
+			Thread.sleep(5);
+		}
+		Assertions.assertFalse(streamingClip.isPlaying(0));
+		Assertions.assertFalse(streamingClip.isPlaying(1));
+
+		expectedClip.close();
+		streamingClip.close();
+	}
+
+	@Test
+	public void testStreamingError() throws IOException, UnsupportedAudioFileException, InterruptedException {
+		int frames = 50000;
+		byte[] bytes = new byte[frames * 4];
+		for (int i = 0; i < frames * 2; i ++) {
+			short sample = (short) (Math.sin(i * 0.001) * 30000);
+			bytes[i * 2] = (byte) sample;
+			bytes[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), new AudioFormat(44100, 16, 2, true, false), frames),
+				AudioFileFormat.Type.WAVE, output);
+		byte[] wave = output.toByteArray();
+
+		// the first stream, which the head is decoded from, breaks past the head
+		int breakFrame = 30000;
+		AtomicInteger opens = new AtomicInteger();
+		SoundClip expectedClip = new SoundClip(AudioSystem.getAudioInputStream(new ByteArrayInputStream(wave)), 2);
+		SoundClip streamingClip = new SoundClip(() -> {
+			InputStream input = new ByteArrayInputStream(wave);
+			if (opens.getAndIncrement() == 0) input = new FilterInputStream(input) {
+				private int remaining = wave.length - frames * 4 + breakFrame * 4;
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (remaining <= 0) throw new IOException("Broken");
+					int n = super.read(b, off, Math.min(len, remaining));
+					if (n > 0) remaining -= n;
+					return n;
+				}
+			};
+			return AudioSystem.getAudioInputStream(input);
+		}, 1);
+		Assertions.assertEquals(SoundClip.Storage.STREAM, streamingClip.getStorage());
+
+		// the play ends where the stream broke, the clip keeps its length
+		streamingClip.play();
+		float[] actual = new float[DEFAULT_BUFFER_FRAMES * 2];
+		for (int i = 0; i < frames / DEFAULT_BUFFER_FRAMES + 2 && streamingClip.isPlaying(0); i ++) {
+			streamingClip.read(actual);
+			Thread.sleep(5);
+		}
+		Assertions.assertFalse(streamingClip.isPlaying(0));
+		Assertions.assertEquals(frames, streamingClip.getFrameLength());
+
+		// the next play reopens the source, and gets past the break
+		expectedClip.play();
+		streamingClip.play();
+		float[] expected = new float[actual.length];
+		for (int i = 0; i < frames / DEFAULT_BUFFER_FRAMES + 2; i ++) {
+			expectedClip.read(expected);
+			streamingClip.read(actual);
+			Assertions.assertArrayEquals(expected, actual);
+			Thread.sleep(5);
+		}
+		Assertions.assertFalse(streamingClip.isPlaying(0));
+		Assertions.assertEquals(frames, streamingClip.getFrameLength());
+
+		expectedClip.close();
+		streamingClip.close();
+	}
+
+	@Test
+	public void testStreamingClose() throws IOException, UnsupportedAudioFileException, InterruptedException {
+		int frames = 50000;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(new byte[frames * 4]), new AudioFormat(44100, 16, 2, true, false), frames),
+				AudioFileFormat.Type.WAVE, output);
+		byte[] wave = output.toByteArray();
+
+		Set<Thread> before = streamingThreads();
+		SoundClip testClip = new SoundClip(() -> AudioSystem.getAudioInputStream(new ByteArrayInputStream(wave)), 1);
+		Set<Thread> decoders = streamingThreads();
+		decoders.removeAll(before);
+		Assertions.assertEquals(1, decoders.size());
+		Thread decoder = decoders.iterator().next();
+
+		// closed while open, the decoder stops once the playback did
+		SoundMuxer muxer = new SoundMuxer();
+		testClip.open(muxer);
+		testClip.play();
+		testClip.close();
+		decoder.join(5000);
+		Assertions.assertFalse(decoder.isAlive());
+		// a stopped decoder can't be restarted, so neither can the clip be reopened
+		Assertions.assertThrows(IllegalStateException.class, () -> testClip.open(muxer));
+		Assertions.assertThrows(IllegalStateException.class, () -> testClip.open(new SoundMuxer()));
+		testClip.close();
+	}
+
+	private static Set<Thread> streamingThreads() {
+		Set<Thread> threads = new HashSet<>();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("SoundClipStreaming-")) threads.add(thread);
+		}
+		return threads;
+	}
+
 }
@@ -0,0 +1,530 @@
+package com.tianscar.jamplayer.test;
+
+import com.tianscar.jamplayer.SoundClip;
+import com.tianscar.jamplayer.SoundMuxer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Mixer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+public class SoundMuxerTest {
+
+	public static final int DEFAULT_BUFFER_FRAMES = 1024;
+
+	private static float[] ramp(int frames, float scale) {
+		float[] pcm = new float[frames * 2];
+		for (int i = 0; i < frames; i ++) {
+			pcm[i * 2] = i * scale;
+			pcm[i * 2 + 1] = -i * scale;
+		}
+		return pcm;
+	}
+
+	@Test
+	public void testRenderMatchesClip() {
+		float[] clipData = ramp(DEFAULT_BUFFER_FRAMES * 3, 0.0001f);
+		SoundClip testClip = new SoundClip(clipData, 1);
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		testClip.open(testMuxer);
+		testClip.play();
+
+		// not a multiple of the muxer's buffer
+		float[] testBuffer = new float[(DEFAULT_BUFFER_FRAMES * 2 + 100) * 2];
+		testMuxer.render(testBuffer);
+		for (int i = 0; i < testBuffer.length; i ++) {
+			Assertions.assertEquals(clipData[i], testBuffer[i]);
+		}
+
+		testClip.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testRenderSumsClips() {
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		SoundClip testClip0 = new SoundClip(ramp(DEFAULT_BUFFER_FRAMES, 0.0001f), 1);
+		SoundClip testClip1 = new SoundClip(ramp(DEFAULT_BUFFER_FRAMES, 0.0002f), 1);
+		testClip0.open(testMuxer);
+		testClip1.open(testMuxer);
+		testClip0.play();
+		testClip1.play(0.5);
+
+		float[] testBuffer = new float[DEFAULT_BUFFER_FRAMES * 2];
+		testMuxer.render(testBuffer);
+		for (int i = 0; i < DEFAULT_BUFFER_FRAMES; i ++) {
+			Assertions.assertEquals(i * 0.0002f, testBuffer[i * 2], 1e-6);
+		}
+
+		testClip0.close();
+		testClip1.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testRenderUntilIdle() {
+		int clipFrames = DEFAULT_BUFFER_FRAMES * 2 + 10;
+		SoundClip testClip = new SoundClip(ramp(clipFrames, 0.0001f), 2);
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		testClip.open(testMuxer);
+
+		Assertions.assertTrue(testMuxer.isIdle());
+		Assertions.assertEquals(0, testMuxer.renderUntilIdle(Integer.MAX_VALUE).length);
+
+		testClip.play();
+		float[] rendered = testMuxer.renderUntilIdle(Integer.MAX_VALUE);
+		// rendering stops at the first block boundary after the clip ended
+		Assertions.assertEquals(DEFAULT_BUFFER_FRAMES * 3 * 2, rendered.length);
+		Assertions.assertTrue(testMuxer.isIdle());
+		Assertions.assertEquals(0, rendered[rendered.length - 1]);
+
+		testClip.play(1, 1, 1, -1);
+		Assertions.assertEquals(100 * 2, testMuxer.renderUntilIdle(100).length);
+
+		testClip.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testRenderUntilIdleLimiter() throws IOException {
+		// ends on a block boundary, the limiter still holds its last frames then
+		int clipFrames = DEFAULT_BUFFER_FRAMES * 2;
+		float[] clipData = ramp(clipFrames, 0.0001f);
+		SoundClip testClip = new SoundClip(clipData, 1);
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		testMuxer.setOutputStage(SoundMuxer.OutputStage.LIMITER);
+		testClip.open(testMuxer);
+
+		testClip.play();
+		float[] rendered = testMuxer.renderUntilIdle(Integer.MAX_VALUE);
+		// delayed by the look-ahead, transparent below full scale, and let out to the last frame
+		int lookahead = 64;
+		Assertions.assertEquals((clipFrames + lookahead) * 2, rendered.length);
+		Assertions.assertArrayEquals(clipData, Arrays.copyOfRange(rendered, lookahead * 2, rendered.length), 1e-6f);
+		Assertions.assertEquals(0, testMuxer.renderUntilIdle(Integer.MAX_VALUE).length);
+
+		// and so does the render stream
+		testClip.play();
+		AudioInputStream stream = testMuxer.getRenderStream(AudioSystem.NOT_SPECIFIED);
+		long bytes = 0;
+		for (byte[] buffer = new byte[4096]; ; ) {
+			int read = stream.read(buffer);
+			if (read < 0) break;
+			bytes += read;
+		}
+		Assertions.assertEquals((clipFrames + lookahead) * 4, bytes);
+
+		testClip.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testRenderBytes() throws IOException {
+		float[] clipData = ramp(DEFAULT_BUFFER_FRAMES, 0.0005f);
+		SoundClip testClip = new SoundClip(clipData, 1);
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		testClip.open(testMuxer);
+
+		testClip.play();
+		ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_FRAMES * 4 + 3);
+		testMuxer.render(buffer);
+		// only whole frames are written
+		Assertions.assertEquals(3, buffer.remaining());
+		buffer.flip();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < clipData.length; i ++) {
+			// rounded to nearest, exact ties may go either way
+			Assertions.assertEquals(clipData[i] * 32767, buffer.getShort(), 0.51);
+		}
+
+		testClip.play();
+		AudioInputStream stream = testMuxer.getRenderStream(AudioSystem.NOT_SPECIFIED);
+		byte[] bytes = new byte[DEFAULT_BUFFER_FRAMES * 8];
+		int read, total = 0;
+		while ((read = stream.read(bytes, total, bytes.length - total)) > 0) {
+			total += read;
+		}
+		Assertions.assertEquals(DEFAULT_BUFFER_FRAMES * 4, total);
+
+		testClip.play();
+		stream = testMuxer.getRenderStream(100);
+		Assertions.assertEquals(100, stream.getFrameLength());
+		Assertions.assertEquals(100 * 4, stream.read(bytes));
+		Assertions.assertEquals(-1, stream.read(bytes));
+
+		testClip.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testVoiceLimit() {
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		SoundClip testClip0 = new SoundClip(ramp(DEFAULT_BUFFER_FRAMES * 3, 0.0001f), 1);
+		SoundClip testClip1 = new SoundClip(ramp(DEFAULT_BUFFER_FRAMES * 3, 0.0001f), 1);
+		SoundClip testClip2 = new SoundClip(ramp(DEFAULT_BUFFER_FRAMES * 3, 0.0001f), 1);
+		testClip0.open(testMuxer);
+		testClip1.open(testMuxer);
+		testClip2.open(testMuxer);
+		testMuxer.setVoiceLimit(2);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> testMuxer.setVoiceLimit(0));
+
+		// the quietest voice is virtual
+		testClip0.play(1.0);
+		testClip1.play(0.5);
+		testClip2.play(0.25);
+		float[] testBuffer = new float[DEFAULT_BUFFER_FRAMES * 2];
+		testMuxer.render(testBuffer);
+		Assertions.assertEquals(3, testMuxer.getVoiceCount());
+		Assertions.assertEquals(1, testMuxer.getVirtualVoiceCount());
+		for (int i = 0; i < DEFAULT_BUFFER_FRAMES; i ++) {
+			Assertions.assertEquals(i * 0.0001f * 1.5f, testBuffer[i * 2], 1e-6);
+		}
+
+		// its cursor kept advancing meanwhile
+		testMuxer.setVoiceLimit(AudioSystem.NOT_SPECIFIED);
+		testMuxer.render(testBuffer);
+		for (int i = 0; i < DEFAULT_BUFFER_FRAMES; i ++) {
+			Assertions.assertEquals((DEFAULT_BUFFER_FRAMES + i) * 0.0001f * 1.75f, testBuffer[i * 2], 1e-5);
+		}
+
+		// priority outweighs volume
+		testMuxer.setVoiceLimit(1);
+		testMuxer.render(testBuffer);
+		testClip0.play(1.0);
+		testClip1.play(0.1, 0.1, 1, 0, 4);
+		testMuxer.render(testBuffer);
+		Assertions.assertEquals(2, testMuxer.getVoiceCount());
+		Assertions.assertEquals(1, testMuxer.getVirtualVoiceCount());
+		for (int i = 0; i < DEFAULT_BUFFER_FRAMES; i ++) {
+			Assertions.assertEquals(i * 0.0001f * 0.1f, testBuffer[i * 2], 1e-6);
+		}
+
+		testClip0.close();
+		testClip1.close();
+		testClip2.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testScheduledPlayback() {
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		float[] clipData = new float[DEFAULT_BUFFER_FRAMES * 8];
+		Arrays.fill(clipData, 0.5f);
+		SoundClip testClip = new SoundClip(clipData, 2);
+		testClip.open(testMuxer);
+		Assertions.assertEquals(0, testClip.getFrameTime());
+
+		// starts and stops on the very frames, in the middle of buffers
+		int instanceID = testClip.playAt(1000, 1, 1, 1, 0);
+		Assertions.assertTrue(testClip.isPlaying(instanceID));
+		testClip.stopAt(instanceID, 2500);
+		float[] testBuffer = new float[DEFAULT_BUFFER_FRAMES * 3 * 2];
+		testMuxer.render(testBuffer);
+		Assertions.assertEquals(DEFAULT_BUFFER_FRAMES * 3, testMuxer.getFrameTime());
+		Assertions.assertEquals(DEFAULT_BUFFER_FRAMES * 3, testClip.getFrameTime());
+		for (int i = 0; i < DEFAULT_BUFFER_FRAMES * 3; i ++) {
+			Assertions.assertEquals(i >= 1000 && i < 2500 ? 0.5f : 0, testBuffer[i * 2], "frame " + i);
+		}
+		// ended like at the end of the clip, and recycled
+		Assertions.assertFalse(testClip.isPlaying(instanceID));
+		Assertions.assertFalse(testClip.isActive(instanceID));
+
+		// a volume change starts ramping on its frame
+		long frameTime = testClip.getFrameTime();
+		instanceID = testClip.obtainInstance();
+		testClip.setVolume(instanceID, 1);
+		testClip.startAt(instanceID, frameTime + 100);
+		testClip.setVolumeAt(instanceID, frameTime + 300, 0, 0);
+		testMuxer.render(testBuffer, 0, DEFAULT_BUFFER_FRAMES * 2);
+		Assertions.assertEquals(0, testBuffer[99 * 2]);
+		Assertions.assertEquals(0.5f, testBuffer[100 * 2]);
+		Assertions.assertEquals(0.5f, testBuffer[299 * 2]);
+		Assertions.assertTrue(testBuffer[300 * 2] < 0.5f);
+		testMuxer.render(testBuffer, 0, DEFAULT_BUFFER_FRAMES * 2);
+		Assertions.assertEquals(0, testClip.getLeftVolume(instanceID));
+		testClip.stop(instanceID);
+
+		// cancelled by a stop before its frame
+		testClip.startAt(instanceID, testClip.getFrameTime() + 10);
+		testClip.stop(instanceID);
+		testMuxer.render(testBuffer);
+		for (float sample : testBuffer) {
+			Assertions.assertEquals(0, sample);
+		}
+		testClip.releaseInstance(instanceID);
+
+		// a frame time which has passed plays with the next buffer; under a voice limit, one started within a buffer is real
+		testMuxer.setVoiceLimit(1);
+		instanceID = testClip.playAt(0, 1, 1, 1, 0);
+		testClip.playAt(testClip.getFrameTime() + 512, 0.5, 0.5, 1, 0);
+		testMuxer.render(testBuffer, 0, DEFAULT_BUFFER_FRAMES * 2);
+		Assertions.assertEquals(0.5f, testBuffer[0]);
+		Assertions.assertEquals(0.5f, testBuffer[511 * 2]);
+		Assertions.assertEquals(0.75f, testBuffer[512 * 2]);
+		testMuxer.render(testBuffer, 0, DEFAULT_BUFFER_FRAMES * 2);
+		Assertions.assertEquals(0.5f, testBuffer[0]);
+		Assertions.assertTrue(testClip.isPlaying(instanceID));
+
+		testClip.close();
+		testMuxer.close();
+	}
+
+	// clips of different lengths, speeds, volumes and loops, loud enough to clip now and then
+	private static float[] renderMix(int mixingThreads, int voiceLimit) {
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		testMuxer.setMixingThreads(mixingThreads);
+		testMuxer.setVoiceLimit(voiceLimit);
+		SoundClip[] testClips = new SoundClip[12];
+		for (int n = 0; n < testClips.length; n ++) {
+			float[] clipData = new float[(DEFAULT_BUFFER_FRAMES + n * 397) * 2];
+			for (int i = 0; i < clipData.length; i ++) {
+				clipData[i] = (float) Math.sin(i * (0.01 + n * 0.003));
+			}
+			testClips[n] = new SoundClip(clipData, 3);
+			testClips[n].open(testMuxer);
+			for (int j = 0; j < 3; j ++) {
+				testClips[n].play(0.1 + 0.05 * j, 0.3 - 0.02 * n, 0.5 + 0.25 * j + 0.1 * n, n % 3 == 0 ? -1 : j);
+			}
+		}
+		float[] rendered = new float[DEFAULT_BUFFER_FRAMES * 2 * 20 + 100];
+		testMuxer.render(rendered);
+		for (SoundClip testClip : testClips) {
+			testClip.close();
+		}
+		testMuxer.close();
+		return rendered;
+	}
+
+	@Test
+	public void testParallelMixing() {
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new SoundMuxer().setMixingThreads(0));
+		float[] sequential = renderMix(1, AudioSystem.NOT_SPECIFIED);
+		for (int mixingThreads = 2; mixingThreads <= 8; mixingThreads *= 2) {
+			Assertions.assertArrayEquals(sequential, renderMix(mixingThreads, AudioSystem.NOT_SPECIFIED));
+		}
+		sequential = renderMix(1, 10);
+		Assertions.assertArrayEquals(sequential, renderMix(4, 10));
+	}
+
+	private static SoundClip dc(float value, SoundMuxer testMuxer) {
+		float[] clipData = new float[DEFAULT_BUFFER_FRAMES * 2];
+		Arrays.fill(clipData, value);
+		SoundClip testClip = new SoundClip(clipData, 1);
+		testClip.open(testMuxer);
+		testClip.play(1, 1, 1, -1);
+		return testClip;
+	}
+
+	@Test
+	public void testIdleClips() {
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		float[] testBuffer = new float[DEFAULT_BUFFER_FRAMES * 2];
+		SoundClip[] idleClips = new SoundClip[64];
+		for (int n = 0; n < idleClips.length; n ++) {
+			idleClips[n] = new SoundClip(new float[DEFAULT_BUFFER_FRAMES * 2], 2);
+			idleClips[n].open(testMuxer);
+		}
+		float[] clipData = new float[DEFAULT_BUFFER_FRAMES * 2];
+		Arrays.fill(clipData, 0.25f);
+		SoundClip testClip = new SoundClip(clipData, 1);
+		testClip.open(testMuxer);
+
+		// played once, it goes idle after a buffer and wakes up on the next play
+		for (int i = 0; i < 3; i ++) {
+			testClip.play(1, 1, 1, 0);
+			testMuxer.render(testBuffer);
+			for (float sample : testBuffer) {
+				Assertions.assertEquals(0.25f, sample);
+			}
+			testMuxer.render(testBuffer);
+			for (float sample : testBuffer) {
+				Assertions.assertEquals(0, sample);
+			}
+		}
+
+		// clips added and removed while others are idle
+		idleClips[0].close();
+		idleClips[0].open(testMuxer);
+		idleClips[0].play(1, 1, 1, 0);
+		testClip.play(1, 1, 1, 0);
+		testMuxer.render(testBuffer);
+		for (float sample : testBuffer) {
+			Assertions.assertEquals(0.25f, sample);
+		}
+
+		// played before it was opened, so no command wakes it up once it is
+		SoundClip earlyClip = new SoundClip(clipData, 1);
+		earlyClip.play(1, 1, 1, 0);
+		earlyClip.open(testMuxer);
+		testMuxer.render(testBuffer);
+		for (float sample : testBuffer) {
+			Assertions.assertEquals(0.25f, sample);
+		}
+		earlyClip.close();
+
+		for (SoundClip idleClip : idleClips) {
+			idleClip.close();
+		}
+		testClip.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testAudioFormat() throws IOException {
+		AudioFormat audioFormat = new AudioFormat(48000, 16, 2, true, false);
+		SoundMuxer testMuxer = new SoundMuxer((Mixer) null, audioFormat, DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY);
+		Assertions.assertEquals(audioFormat, testMuxer.getAudioFormat());
+		Assertions.assertEquals(audioFormat, testMuxer.getRenderStream(DEFAULT_BUFFER_FRAMES).getFormat());
+		Assertions.assertEquals(44100, new SoundMuxer().getAudioFormat().getSampleRate());
+		for (AudioFormat unsupported : new AudioFormat[] {
+				new AudioFormat(48000, 16, AudioSystem.NOT_SPECIFIED, true, false),
+				new AudioFormat(48000, 8, 2, true, false),
+				new AudioFormat(48000, 16, 2, true, true) }) {
+			Assertions.assertThrows(IllegalArgumentException.class, () -> new SoundMuxer((Mixer) null, unsupported, DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY));
+		}
+
+		// raw PCM plays at any rate, and is timed at the muxer's
+		SoundClip rawClip = new SoundClip(new float[48000 * 2], 1);
+		rawClip.open(testMuxer);
+		Assertions.assertEquals(1_000_000, rawClip.getMicrosecondLength());
+		rawClip.close();
+
+		// loaded PCM only at the rate it was loaded at
+		byte[] pcm = new byte[4800 * 4];
+		SoundClip loadedClip = new SoundClip(new AudioInputStream(new ByteArrayInputStream(pcm), new AudioFormat(44100, 16, 2, true, false), 4800), 1);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> loadedClip.open(testMuxer));
+		loadedClip.close();
+		SoundClip convertedClip = new SoundClip(new AudioInputStream(new ByteArrayInputStream(pcm), new AudioFormat(44100, 16, 2, true, false), 4800),
+				1, SoundClip.Storage.FLOAT, 48000);
+		convertedClip.open(testMuxer);
+		Assertions.assertTrue(convertedClip.isOpen());
+		Assertions.assertEquals(4800 * 1_000_000L / 44100, convertedClip.getMicrosecondLength(), 100);
+		convertedClip.close();
+
+		testMuxer.close();
+	}
+
+	@Test
+	public void testChannelLayouts() throws IOException {
+		float[] clipData = new float[DEFAULT_BUFFER_FRAMES * 8];
+		for (int i = 0; i < clipData.length; i += 2) {
+			clipData[i] = 0.5f;
+			clipData[i + 1] = 0.25f;
+		}
+
+		// 5.1: the first two channels by default, anywhere with channel gains
+		AudioFormat audioFormat = new AudioFormat(44100, 16, 6, true, false);
+		SoundMuxer testMuxer = new SoundMuxer((Mixer) null, audioFormat, DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY);
+		Assertions.assertEquals(6, testMuxer.getChannels());
+		Assertions.assertEquals(DEFAULT_BUFFER_FRAMES * 6, testMuxer.getReadBufferSize());
+		SoundClip testClip = new SoundClip(clipData, 2);
+		testClip.open(testMuxer);
+		testClip.play(1, 1, 1, -1);
+		int instanceID = testClip.play(1, 1, 1, -1);
+		Assertions.assertNull(testClip.getChannelGains(instanceID));
+		float[] buffer = new float[DEFAULT_BUFFER_FRAMES * 6];
+		testMuxer.render(buffer);
+		Assertions.assertArrayEquals(new float[] { 1, 0.5f, 0, 0, 0, 0 }, Arrays.copyOfRange(buffer, 600, 606), 1e-6f);
+
+		// to the center and the surrounds, ramped there over a block
+		testClip.setChannelGains(instanceID, new float[] { 0, 0, 0, 0, 0.5f, 0.5f, 0, 0, 1, 0, 0, 1 });
+		testMuxer.render(buffer);
+		Assertions.assertArrayEquals(new float[] { 0.5f, 0.25f, 0.375f, 0, 0.5f, 0.25f }, Arrays.copyOfRange(buffer, buffer.length - 6, buffer.length), 1e-6f);
+		Assertions.assertTrue(buffer[2] < 0.01f && buffer[0] > 0.99f);
+		testMuxer.render(buffer);
+		Assertions.assertArrayEquals(new float[] { 0.5f, 0.25f, 0.375f, 0, 0.5f, 0.25f }, Arrays.copyOfRange(buffer, 0, 6), 1e-6f);
+		Assertions.assertArrayEquals(new float[] { 0, 0, 0, 0, 0.5f, 0.5f, 0, 0, 1, 0, 0, 1 }, testClip.getChannelGains(instanceID));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> testClip.setChannelGains(instanceID, new float[3]));
+
+		// limited across all channels at once
+		testMuxer.setOutputStage(SoundMuxer.OutputStage.LIMITER);
+		testClip.setChannelGains(instanceID, new float[] { 0, 0, 0, 0, 0, 0, 8, 8 });
+		testMuxer.render(buffer);
+		testMuxer.render(buffer);
+		for (float sample : buffer) {
+			Assertions.assertTrue(Math.abs(sample) <= 1);
+		}
+		Assertions.assertTrue(buffer[buffer.length - 3] > 0.9f);
+		Assertions.assertTrue(buffer[buffer.length - 6] < 0.5f * 0.5f);
+
+		// 16-bit frames of 6 channels
+		byte[] bytes = new byte[DEFAULT_BUFFER_FRAMES * 12];
+		Assertions.assertEquals(bytes.length, testMuxer.getRenderStream(DEFAULT_BUFFER_FRAMES).read(bytes));
+		testClip.close();
+		testMuxer.close();
+
+		// mono: mixed down, or routed
+		testMuxer = new SoundMuxer((Mixer) null, new AudioFormat(44100, 16, 1, true, false), DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY);
+		SoundClip monoClip = new SoundClip(clipData, 2);
+		monoClip.open(testMuxer);
+		int monoID = monoClip.play();
+		buffer = new float[DEFAULT_BUFFER_FRAMES];
+		testMuxer.render(buffer);
+		Assertions.assertEquals(0.375f, buffer[100], 1e-6f);
+		monoClip.setChannelGains(monoID, new float[] { 0, 1 });
+		testMuxer.render(buffer);
+		testMuxer.render(buffer);
+		Assertions.assertEquals(0.25f, buffer[100], 1e-6f);
+		monoClip.close();
+		testMuxer.close();
+	}
+
+	@Test
+	public void testOutputStage() {
+		SoundMuxer testMuxer = new SoundMuxer(DEFAULT_BUFFER_FRAMES);
+		Assertions.assertEquals(SoundMuxer.OutputStage.HARD_CLIP, testMuxer.getOutputStage());
+		float[] testBuffer = new float[DEFAULT_BUFFER_FRAMES * 2];
+
+		// no clipping before the sum is complete, whatever the order of the clips
+		SoundClip testClip0 = dc(0.8f, testMuxer);
+		SoundClip testClip1 = dc(0.8f, testMuxer);
+		SoundClip testClip2 = dc(-0.8f, testMuxer);
+		testMuxer.render(testBuffer);
+		for (float sample : testBuffer) {
+			Assertions.assertEquals(0.8f, sample, 1e-6);
+		}
+
+		testClip2.close();
+		testMuxer.render(testBuffer);
+		for (float sample : testBuffer) {
+			Assertions.assertEquals(1, sample);
+		}
+
+		testMuxer.setOutputStage(SoundMuxer.OutputStage.SOFT_CLIP);
+		testMuxer.render(testBuffer);
+		for (float sample : testBuffer) {
+			Assertions.assertTrue(sample > 0.9 && sample < 1);
+		}
+
+		// held back for the look-ahead, then limited to full scale without clipping
+		testMuxer.setOutputStage(SoundMuxer.OutputStage.LIMITER);
+		testMuxer.render(testBuffer);
+		for (int i = 0; i < 64 * 2; i ++) {
+			Assertions.assertEquals(0, testBuffer[i]);
+		}
+		for (float sample : testBuffer) {
+			Assertions.assertTrue(sample <= 1);
+		}
+		Assertions.assertEquals(1, testBuffer[testBuffer.length - 1], 1e-6);
+
+		// and transparent below, once recovered
+		testClip1.close();
+		for (int i = 0; i < 40; i ++) {
+			testMuxer.render(testBuffer);
+		}
+		for (float sample : testBuffer) {
+			Assertions.assertEquals(0.8f, sample, 1e-6);
+		}
+
+		testClip0.close();
+		testMuxer.close();
+	}
+
+}